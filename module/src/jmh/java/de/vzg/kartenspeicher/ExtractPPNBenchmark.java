@@ -0,0 +1,63 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.jdom2.Element;
+import org.mycore.common.MCRConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExtractPPNBenchmark {
+
+    private Element mods;
+
+    @Setup
+    public void setup() {
+        mods = new Element("mods", MCRConstants.MODS_NAMESPACE);
+        // the catalog uri usually follows other identifiers
+        mods.addContent(identifier("hdl", "21.11116/0000-0001-2345-6"));
+        mods.addContent(identifier("uri", "https://nbn-resolving.org/urn:nbn:de:gbv:45:1-12345"));
+        mods.addContent(identifier("uri", "https://uri.gbv.de/document/ikar:ppn:100619533"));
+    }
+
+    private static Element identifier(String type, String value) {
+        return new Element("identifier", MCRConstants.MODS_NAMESPACE).setAttribute("type", type).setText(value);
+    }
+
+    @Benchmark
+    public IIIFMapImporter.Tuple<String, String> extractPPN() {
+        return IIIFMapImporter.extractPPN(mods);
+    }
+}
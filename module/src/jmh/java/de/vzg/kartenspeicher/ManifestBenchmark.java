@@ -0,0 +1,97 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import de.digitalcollections.iiif.model.sharedcanvas.Manifest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deserializes a synthetic presentation 2 manifest with the shared {@link ValidatedManifest#IIIF_MAPPER}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ManifestBenchmark {
+
+    private static final String BASE_URL = "https://images.example.org/iiif/100619533";
+
+    @Param({ "1", "50" })
+    public int canvases;
+
+    private byte[] manifest;
+
+    @Setup
+    public void setup() {
+        manifest = createManifest(canvases).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String createManifest(int canvases) {
+        StringBuilder json = new StringBuilder()
+            .append("{\"@context\":\"http://iiif.io/api/presentation/2/context.json\",")
+            .append("\"@id\":\"").append(BASE_URL).append("/manifest\",\"@type\":\"sc:Manifest\",")
+            .append("\"label\":\"Karte des Deutschen Reiches\",")
+            .append("\"metadata\":[{\"label\":\"PPN\",\"value\":\"100619533\"}],")
+            .append("\"sequences\":[{\"@type\":\"sc:Sequence\",\"canvases\":[");
+        for (int i = 1; i <= canvases; i++) {
+            String canvas = BASE_URL + "/canvas/" + i;
+            String service = BASE_URL + "/image/" + i;
+            if (i > 1) {
+                json.append(',');
+            }
+            json.append("{\"@id\":\"").append(canvas).append("\",\"@type\":\"sc:Canvas\",")
+                .append("\"label\":\"").append(i).append("\",\"width\":9000,\"height\":7000,")
+                .append("\"images\":[{\"@type\":\"oa:Annotation\",\"motivation\":\"sc:painting\",")
+                .append("\"on\":\"").append(canvas).append("\",")
+                .append("\"resource\":{\"@id\":\"").append(service).append("/full/full/0/default.jpg\",")
+                .append("\"@type\":\"dctypes:Image\",\"format\":\"image/jpeg\",\"width\":9000,\"height\":7000,")
+                .append("\"service\":{\"@context\":\"http://iiif.io/api/image/2/context.json\",")
+                .append("\"@id\":\"").append(service).append("\",")
+                .append("\"profile\":\"http://iiif.io/api/image/2/level1.json\"}}}]}");
+        }
+        return json.append("]}]}").toString();
+    }
+
+    @Benchmark
+    public Manifest deserialize() throws IOException {
+        return ValidatedManifest.IIIF_MAPPER.readValue(manifest, Manifest.class);
+    }
+
+    @Benchmark
+    public Optional<ValidatedManifest> parseAndValidate() {
+        return ValidatedManifest.parse(BASE_URL + "/manifest", manifest);
+    }
+}
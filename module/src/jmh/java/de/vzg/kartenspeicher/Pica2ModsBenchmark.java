@@ -0,0 +1,102 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+import org.junit.rules.TemporaryFolder;
+import org.mycore.common.MCRTestCaseHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transforms the sample record <code>benchmark/pica-record.xml</code> with the compiled pica2mods stylesheet, with
+ * one thread and with as many threads as processors sharing the compiled stylesheet.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Pica2ModsBenchmark {
+
+    @Param("xsl/pica2mods_oldenburg.xsl")
+    public String stylesheet;
+
+    @Param("net.sf.saxon.TransformerFactoryImpl")
+    public String transformerFactory;
+
+    private TemporaryFolder folder;
+
+    private Pica2ModsTransformer transformer;
+
+    private Document record;
+
+    private Map<String, Object> parameters;
+
+    @Setup
+    public void setup() throws Exception {
+        folder = new TemporaryFolder();
+        folder.create();
+        MCRTestCaseHelper.beforeClass(folder);
+        MCRTestCaseHelper.before(new HashMap<>());
+        transformer = new Pica2ModsTransformer(stylesheet, transformerFactory);
+        try (InputStream is = Pica2ModsBenchmark.class.getResourceAsStream("/benchmark/pica-record.xml")) {
+            record = new SAXBuilder().build(is);
+        }
+        parameters = new HashMap<>();
+        parameters.put("institute", "landesbibliothek_oldenburg");
+        parameters.put("collection", "maps");
+    }
+
+    @TearDown
+    public void tearDown() {
+        MCRTestCaseHelper.after();
+        folder.delete();
+    }
+
+    @Benchmark
+    public Element transform() throws Exception {
+        return transformer.transform(record, parameters);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Element transformConcurrently() throws Exception {
+        return transformer.transform(record, parameters);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes synthetic JPEG tiles, stitches them row by row into a {@link StripedImage} and encodes the result as JPEG,
+ * like the download of a tiled image without the network.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class TileStitchingBenchmark {
+
+    @Param("512")
+    public int tileSize;
+
+    /**
+     * Tiles per row and column.
+     */
+    @Param({ "4", "16" })
+    public int tiles;
+
+    private byte[][] encodedTiles;
+
+    private int size;
+
+    @Setup
+    public void setup() throws IOException {
+        size = tileSize * tiles;
+        Random random = new Random(42);
+        encodedTiles = new byte[tiles * tiles][];
+        for (int i = 0; i < encodedTiles.length; i++) {
+            encodedTiles[i] = createTile(random);
+        }
+    }
+
+    private byte[] createTile(Random random) throws IOException {
+        BufferedImage tile = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = tile.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, new Color(random.nextInt()), tileSize, tileSize,
+            new Color(random.nextInt())));
+        graphics.fillRect(0, 0, tileSize, tileSize);
+        // lines like on a map, so the tiles do not compress to nothing
+        graphics.setColor(Color.DARK_GRAY);
+        for (int i = 0; i < 200; i++) {
+            graphics.drawLine(random.nextInt(tileSize), random.nextInt(tileSize), random.nextInt(tileSize),
+                random.nextInt(tileSize));
+        }
+        graphics.dispose();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(tile, "jpg", bytes);
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public long decodeStitchEncode() throws IOException {
+        StripedImage image = new StripedImage(size, size, tileSize, (stripe, y, rows, graphics) -> {
+            for (int x = 0; x < tiles; x++) {
+                BufferedImage tile = ImageIO.read(new ByteArrayInputStream(encodedTiles[stripe * tiles + x]));
+                graphics.drawImage(tile, x * tileSize, 0, null);
+            }
+        });
+        CountingOutputStream out = new CountingOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
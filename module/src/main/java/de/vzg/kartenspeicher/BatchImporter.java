@@ -0,0 +1,551 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.jdom2.Element;
+import org.mycore.common.MCRException;
+import org.mycore.common.MCRSessionMgr;
+import org.mycore.common.MCRUserInformation;
+import org.mycore.common.config.MCRConfiguration2;
+import org.mycore.datamodel.metadata.MCRObjectID;
+import org.mycore.util.concurrent.MCRFixedUserCallable;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Imports the rows of a tab or comma separated file. Every row contains the ppn, catalog, manifest, project,
+ * institute and collection of one map, like the arguments of the import ppn command. Only ppn and catalog are
+ * required, empty columns or <code>null</code> are treated like a missing argument.
+ * <p>
+ * The import of a row is split in the stages of {@link Stage}, every stage has its own threads. So the download of
+ * one map overlaps with the transformation and storage of the next rows. When all rows are done a report with the
+ * result of every row is written.
+ */
+public class BatchImporter {
+
+    public static final String CATALOG_THREADS_PROPERTY = "MCR.Kartenspeicher.Batch.CatalogThreads";
+
+    public static final String TRANSFORM_THREADS_PROPERTY = "MCR.Kartenspeicher.Batch.TransformThreads";
+
+    public static final String PERSIST_THREADS_PROPERTY = "MCR.Kartenspeicher.Batch.PersistThreads";
+
+    public static final String DOWNLOAD_THREADS_PROPERTY = "MCR.Kartenspeicher.Batch.DownloadThreads";
+
+    /**
+     * If true the {@link PPNObjectIndex} is loaded before the rows are imported, otherwise every ppn is looked up in
+     * Solr.
+     */
+    public static final String PRELOAD_INDEX_PROPERTY = "MCR.Kartenspeicher.Batch.PreloadIndex";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+    private final boolean redownload;
+
+    private final IIIFMapImporter.OutputFormat format;
+
+    private final MCRUserInformation userInformation;
+
+    /**
+     * @param redownload if true the maps of objects which already have a derivate are downloaded again
+     * @param format     the format in which tiled maps are stored
+     */
+    public BatchImporter(boolean redownload, IIIFMapImporter.OutputFormat format) {
+        this.redownload = redownload;
+        this.format = format;
+        this.userInformation = MCRSessionMgr.getCurrentSession().getUserInformation();
+    }
+
+    /**
+     * Reads the rows of a file. The file is comma separated if its name ends with <code>.csv</code>, otherwise tab
+     * separated. Empty lines, lines starting with <code>#</code> and a header line starting with <code>ppn</code>
+     * are skipped. Quoting is not supported. A ppn which appears twice in a catalog is only imported with its first
+     * line, otherwise both lines would create an object.
+     */
+    public static List<Row> readRows(Path file) throws IOException {
+        String separator = file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv") ? "," : "\t";
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        List<Row> rows = new ArrayList<>();
+        Map<String, Row> rowsByKey = new HashMap<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] columns = line.split(separator, -1);
+            if (rows.isEmpty() && columns[0].trim().equalsIgnoreCase("ppn")) {
+                continue;
+            }
+            if (columns.length < 2 || columns.length > 6) {
+                throw new MCRException("Line " + (i + 1) + " of " + file + " has " + columns.length
+                    + " columns, but needs ppn, catalog and optional manifest, project, institute and collection!");
+            }
+            Row row = new Row(i + 1, column(columns, 0), column(columns, 1), column(columns, 2), column(columns, 3),
+                column(columns, 4), column(columns, 5));
+            Row first = rowsByKey.putIfAbsent(recordKey(row.catalog, row.ppn), row);
+            if (first != null) {
+                LOGGER.warn("Line {} of {} repeats ppn {} of catalog {} from line {}, it is skipped", row.line, file,
+                    row.ppn, row.catalog, first.line);
+                continue;
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static String column(String[] columns, int index) {
+        if (index >= columns.length) {
+            return null;
+        }
+        String value = columns[index].trim();
+        return value.isEmpty() || value.equals("null") ? null : value;
+    }
+
+    /**
+     * Imports all rows of the file and writes the report.
+     *
+     * @return the rows with their results
+     */
+    public List<Row> importFile(Path file, Path report) throws IOException {
+        List<Row> rows = readRows(file);
+        LOGGER.info("Importing {} rows of {}", rows.size(), file);
+        importRows(rows);
+        writeReport(rows, report);
+
+        Map<Status, Long> statusCount = rows.stream()
+            .collect(Collectors.groupingBy(Row::getStatus, Collectors.counting()));
+        LOGGER.info("Imported {} rows of {}: {}, the report was written to {}", rows.size(), file, statusCount,
+            report);
+        LOGGER.info("Ppn lookups: {}", PPNLookupCache.getInstance());
+        LOGGER.info("Invalid coordinates: {}", CoordinateConverter.getInvalidCounts());
+        return rows;
+    }
+
+    /**
+     * Imports the rows and waits until all of them are done. Failures are stored in the rows.
+     */
+    public void importRows(List<Row> rows) {
+        PPNObjectIndex index = PPNObjectIndex.getInstance();
+        boolean loadIndex = !index.isLoaded() && MCRConfiguration2.getBoolean(PRELOAD_INDEX_PROPERTY).orElse(true);
+        if (loadIndex) {
+            try {
+                index.load();
+            } catch (SolrServerException | IOException e) {
+                throw new MCRException("Could not load the ppn index", e);
+            }
+        }
+        try {
+            importRowsInStages(interleaveByHost(rows));
+        } finally {
+            if (loadIndex) {
+                // the index does not see changes of others, so it is only used while the batch runs
+                index.unload();
+            }
+        }
+    }
+
+    /**
+     * Orders the rows so that consecutive rows download from different hosts, in the order in which the hosts first
+     * appear. The order of the rows of one host is kept. Rows without a manifest url are taken as one host, the url
+     * of their manifest is only known after the record is fetched.
+     */
+    static List<Row> interleaveByHost(List<Row> rows) {
+        Map<String, List<Row>> rowsByHost = rows.stream().collect(Collectors.groupingBy(
+            row -> row.manifestURL == null ? "" : HostScheduler.getHost(row.manifestURL), LinkedHashMap::new,
+            Collectors.toList()));
+        List<Row> interleaved = new ArrayList<>(rows.size());
+        for (int i = 0; interleaved.size() < rows.size(); i++) {
+            for (List<Row> hostRows : rowsByHost.values()) {
+                if (i < hostRows.size()) {
+                    interleaved.add(hostRows.get(i));
+                }
+            }
+        }
+        return interleaved;
+    }
+
+    private void importRowsInStages(List<Row> rows) {
+        int catalogThreads = MCRConfiguration2.getInt(CATALOG_THREADS_PROPERTY).orElse(4);
+        int transformThreads = MCRConfiguration2.getInt(TRANSFORM_THREADS_PROPERTY).orElse(2);
+        int persistThreads = MCRConfiguration2.getInt(PERSIST_THREADS_PROPERTY).orElse(2);
+        int downloadThreads = MCRConfiguration2.getInt(DOWNLOAD_THREADS_PROPERTY).orElse(2);
+
+        Map<Stage, ExecutorService> executors = new EnumMap<>(Stage.class);
+        executors.put(Stage.CATALOG, createExecutor(Stage.CATALOG, catalogThreads));
+        executors.put(Stage.TRANSFORM, createExecutor(Stage.TRANSFORM, transformThreads));
+        executors.put(Stage.PERSIST, createExecutor(Stage.PERSIST, persistThreads));
+        executors.put(Stage.DOWNLOAD, createExecutor(Stage.DOWNLOAD, downloadThreads));
+
+        // the records of a chunk of rows are fetched with one SRU request
+        int chunkSize = Math.max(1, SRUCatalogClient.getBatchSize());
+
+        // limits the rows between the stages, so the catalog stage can not read all records into memory
+        Semaphore inFlight = new Semaphore(
+            Math.max((catalogThreads + transformThreads + persistThreads + downloadThreads) * 2, chunkSize * 2));
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        try {
+            for (int chunkStart = 0; chunkStart < rows.size(); chunkStart += chunkSize) {
+                List<Row> chunk = rows.subList(chunkStart, Math.min(chunkStart + chunkSize, rows.size()));
+                inFlight.acquire(chunk.size());
+                CompletableFuture<Map<String, CatalogRecord>> records = CompletableFuture
+                    .supplyAsync(() -> fetchRecords(chunk), executors.get(Stage.CATALOG));
+                for (Row row : chunk) {
+                    row.start = System.currentTimeMillis();
+                    futures.add(importRow(row, records, inFlight, executors));
+                }
+            }
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MCRException("Interrupted while importing rows", e);
+        } finally {
+            executors.values().forEach(ExecutorService::shutdownNow);
+        }
+    }
+
+    /**
+     * Chains the stages of a row, the row starts when the records of its chunk are fetched.
+     */
+    private CompletableFuture<Void> importRow(Row row, CompletableFuture<Map<String, CatalogRecord>> records,
+        Semaphore inFlight, Map<Stage, ExecutorService> executors) {
+        return records
+            .thenAcceptAsync(fetched -> runStage(row, Stage.CATALOG, r -> fetchRecord(r, fetched)),
+                executors.get(Stage.CATALOG))
+            .thenRunAsync(() -> runStage(row, Stage.TRANSFORM, this::transform), executors.get(Stage.TRANSFORM))
+            .thenRunAsync(() -> runStage(row, Stage.PERSIST, this::persist), executors.get(Stage.PERSIST))
+            .thenRunAsync(() -> runStage(row, Stage.DOWNLOAD, this::download), executors.get(Stage.DOWNLOAD))
+            .handle((result, e) -> {
+                row.finish(e instanceof CompletionException ? e.getCause() : e);
+                inFlight.release();
+                return null;
+            });
+    }
+
+    private static ExecutorService createExecutor(Stage stage, int threads) {
+        if (threads < 1) {
+            throw new MCRException("The number of " + stage + " threads needs to be at least 1, but was " + threads);
+        }
+        int poolNumber = POOL_COUNTER.incrementAndGet();
+        AtomicInteger threadCounter = new AtomicInteger();
+        String prefix = "batch-" + stage.name().toLowerCase(Locale.ROOT) + "-" + poolNumber + "-";
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, prefix + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void runStage(Row row, Stage stage, StageTask task) {
+        row.stage = stage;
+        try {
+            task.run(row);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Fetches the records of the rows with SRU, if it is enabled. Errors are only logged, the records which are
+     * missing are fetched one by one in {@link #fetchRecord(Row, Map)}.
+     *
+     * @return the records by catalog and ppn
+     */
+    private Map<String, CatalogRecord> fetchRecords(List<Row> chunk) {
+        Map<String, CatalogRecord> records = new HashMap<>();
+        if (SRUCatalogClient.getBatchSize() < 1) {
+            return records;
+        }
+        Map<String, List<String>> ppnsByCatalog = chunk.stream().collect(Collectors.groupingBy(Row::getCatalog,
+            Collectors.mapping(Row::getPpn, Collectors.toList())));
+        ppnsByCatalog.forEach((catalog, ppns) -> {
+            try {
+                SRUCatalogClient.fetch(catalog, ppns)
+                    .forEach((ppn, record) -> records.put(recordKey(catalog, ppn), record));
+            } catch (Exception e) {
+                LOGGER.warn("Could not fetch {} records of catalog {} with SRU, fetching them one by one",
+                    ppns.size(), catalog, e);
+            }
+        });
+        return records;
+    }
+
+    private static String recordKey(String catalog, String ppn) {
+        return catalog + ":ppn:" + ppn;
+    }
+
+    private void fetchRecord(Row row, Map<String, CatalogRecord> records) throws Exception {
+        row.existingObject = IIIFMapImporter.checkPPNExists(row.ppn, row.catalog);
+        IIIFMapImporter.checkImportParameters(row.ppn, row.catalog, row.existingObject, row.projectID,
+            row.instituteID, row.collection);
+        CatalogRecord record = records.get(recordKey(row.catalog, row.ppn));
+        row.record = record != null ? record : CatalogRecord.fetch(row.ppn, row.catalog);
+    }
+
+    private boolean isUnchanged(Row row) throws Exception {
+        if (row.unchanged == null) {
+            row.unchanged = row.existingObject != null && !row.record.isModified()
+                && inSession(() -> IIIFMapImporter.keepsInstituteAndCollection(row.existingObject, row.instituteID,
+                    row.collection));
+        }
+        return row.unchanged;
+    }
+
+    private void transform(Row row) throws Exception {
+        if (isUnchanged(row)) {
+            return;
+        }
+        inSession(() -> {
+            row.instituteID = IIIFMapImporter.readInstituteFromOldObject(row.instituteID, row.existingObject);
+            row.collection = IIIFMapImporter.readCollectionFromOldObject(row.collection, row.existingObject);
+            row.mods = IIIFMapImporter.transformRecord(row.record, row.instituteID, row.collection);
+            return null;
+        });
+    }
+
+    private void persist(Row row) throws Exception {
+        if (isUnchanged(row)) {
+            LOGGER.info("Record of ppn {} in catalog {} did not change, skip update of {}", row.ppn, row.catalog,
+                row.existingObject);
+            row.record.commit();
+            row.objectID = row.existingObject;
+            row.status = Status.UNCHANGED;
+            return;
+        }
+        row.objectID = inSession(() -> IIIFMapImporter.persistMods(row.record, row.mods, row.existingObject,
+            row.projectID, row.instituteID, row.collection));
+        row.status = row.existingObject == null ? Status.CREATED : Status.UPDATED;
+        // the mods is not needed anymore, free it while the row waits for the download
+        row.mods = null;
+    }
+
+    private void download(Row row) throws Exception {
+        String manifestURL = IIIFMapImporter.resolveManifestURL(row.manifestURL,
+            row.record.getManifestURL().orElse(null), row.ppn, row.catalog, row.objectID);
+        row.record = null;
+        boolean valid = inSession(() -> IIIFMapImporter.importDerivate(row.objectID, manifestURL, redownload,
+            format));
+        if (!valid) {
+            throw new MCRException("The manifest " + manifestURL + " seems to be invalid!");
+        }
+    }
+
+    private <T> T inSession(Callable<T> callable) throws Exception {
+        return new MCRFixedUserCallable<>(callable, userInformation).call();
+    }
+
+    /**
+     * Writes one tab separated line per row with the line number, ppn, catalog, status, the stage in which the row
+     * failed, the object id, the duration in milliseconds and the error message.
+     */
+    public static void writeReport(List<Row> rows, Path report) throws IOException {
+        Path parent = report.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Function<Object, String> format = value -> value == null ? ""
+            : value.toString().replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+        try (BufferedWriter writer = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+            writer.write("line\tppn\tcatalog\tstatus\tstage\tobject\tmillis\tmessage");
+            writer.newLine();
+            for (Row row : rows) {
+                writer.write(String.join("\t",
+                    Integer.toString(row.line),
+                    format.apply(row.ppn),
+                    format.apply(row.catalog),
+                    format.apply(row.status),
+                    row.status == Status.FAILED ? format.apply(row.stage) : "",
+                    format.apply(row.objectID),
+                    Long.toString(row.end - row.start),
+                    format.apply(row.message)));
+                writer.newLine();
+            }
+        }
+    }
+
+    private interface StageTask {
+        void run(Row row) throws Exception;
+    }
+
+    /**
+     * The stages of the import of a row, in the order in which they are run.
+     */
+    public enum Stage {
+        /**
+         * looks up the existing object and fetches the record from the catalog
+         */
+        CATALOG,
+
+        /**
+         * transforms the record to mods
+         */
+        TRANSFORM,
+
+        /**
+         * imports the host and creates or updates the object
+         */
+        PERSIST,
+
+        /**
+         * downloads the maps of the manifest to the derivate
+         */
+        DOWNLOAD
+    }
+
+    public enum Status {
+        CREATED, UPDATED, UNCHANGED, FAILED
+    }
+
+    /**
+     * A row of the import file together with the state of its import.
+     */
+    public static class Row {
+        private final int line;
+
+        private final String ppn;
+
+        private final String catalog;
+
+        private final String manifestURL;
+
+        private final String projectID;
+
+        private String instituteID;
+
+        private String collection;
+
+        private MCRObjectID existingObject;
+
+        private CatalogRecord record;
+
+        /**
+         * Whether the update of the existing object is skipped, decided once, because it loads the object.
+         */
+        private Boolean unchanged;
+
+        private Element mods;
+
+        private MCRObjectID objectID;
+
+        private Stage stage;
+
+        private Status status;
+
+        private String message;
+
+        private long start;
+
+        private long end;
+
+        Row(int line, String ppn, String catalog, String manifestURL, String projectID, String instituteID,
+            String collection) {
+            this.line = line;
+            this.ppn = ppn;
+            this.catalog = catalog;
+            this.manifestURL = manifestURL;
+            this.projectID = projectID;
+            this.instituteID = instituteID;
+            this.collection = collection;
+        }
+
+        private void finish(Throwable error) {
+            end = System.currentTimeMillis();
+            record = null;
+            mods = null;
+            if (error != null) {
+                status = Status.FAILED;
+                message = error.getMessage() != null ? error.getMessage() : error.toString();
+                LOGGER.error("Import of ppn {} in line {} failed in stage {}", ppn, line, stage, error);
+            }
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public String getPpn() {
+            return ppn;
+        }
+
+        public String getCatalog() {
+            return catalog;
+        }
+
+        public String getManifestURL() {
+            return manifestURL;
+        }
+
+        public String getProjectID() {
+            return projectID;
+        }
+
+        public String getInstituteID() {
+            return instituteID;
+        }
+
+        public String getCollection() {
+            return collection;
+        }
+
+        /**
+         * @return the created or updated object, null if the import failed before it was stored
+         */
+        public MCRObjectID getObjectID() {
+            return objectID;
+        }
+
+        /**
+         * @return the stage which is running or in which the import failed
+         */
+        public Stage getStage() {
+            return stage;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.input.SAXBuilder;
+import org.mycore.common.config.MCRConfiguration2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * The PICA record of a ppn as it was fetched from the catalog or read from the {@link PicaRecordStore}.
+ */
+public class CatalogRecord {
+
+    /**
+     * The base url of the unAPI, the format and the id of the record are appended.
+     */
+    public static final String UNAPI_URL_PROPERTY = "MCR.Kartenspeicher.UnAPI.URL";
+
+    private final String ppn;
+
+    private final String catalog;
+
+    private final Document document;
+
+    private final boolean modified;
+
+    private final ConditionalHttpFetcher.Response response;
+
+    private final boolean fromStore;
+
+    private CatalogRecord(String ppn, String catalog, Document document, boolean modified,
+        ConditionalHttpFetcher.Response response, boolean fromStore) {
+        this.ppn = ppn;
+        this.catalog = catalog;
+        this.document = document;
+        this.modified = modified;
+        this.response = response;
+        this.fromStore = fromStore;
+    }
+
+    /**
+     * Fetches the record of the ppn from the unAPI of the catalog.
+     */
+    public static CatalogRecord fetch(String ppn, String catalog) throws IOException, JDOMException {
+        String url = getURL(ppn, catalog);
+        long start = System.nanoTime();
+        ConditionalHttpFetcher.Response response = ConditionalHttpFetcher.getInstance().fetch(url);
+        Document document = new SAXBuilder().build(new ByteArrayInputStream(response.getContent()), url);
+        ImportMetrics metrics = ImportMetrics.getInstance();
+        metrics.stop(ImportMetrics.Timer.CATALOG, start);
+        if (response.isModified()) {
+            metrics.add(ImportMetrics.Counter.CATALOG_BYTES, response.getContent().length);
+        }
+        return new CatalogRecord(ppn, catalog, document, response.isModified(), response, false);
+    }
+
+    /**
+     * Creates the record of a ppn which was part of a larger response. The record is modified if it differs from
+     * the stored version.
+     */
+    public static CatalogRecord of(String ppn, String catalog, Document document) {
+        boolean modified = !PicaRecordStore.getInstance().containsEqual(catalog, ppn, document);
+        return new CatalogRecord(ppn, catalog, document, modified, null, false);
+    }
+
+    /**
+     * Reads the record of the ppn from the {@link PicaRecordStore}, without asking the catalog. The record always
+     * counts as modified, because it is read to transform it again.
+     *
+     * @return the stored record or an empty optional if the record was never imported
+     */
+    public static Optional<CatalogRecord> readStored(String ppn, String catalog) throws IOException, JDOMException {
+        Optional<byte[]> content = PicaRecordStore.getInstance().get(catalog, ppn);
+        if (!content.isPresent()) {
+            return Optional.empty();
+        }
+        Document document = new SAXBuilder().build(new ByteArrayInputStream(content.get()));
+        return Optional.of(new CatalogRecord(ppn, catalog, document, true, null, true));
+    }
+
+    public static String getURL(String ppn, String catalog) {
+        return MCRConfiguration2.getString(UNAPI_URL_PROPERTY).orElse("https://unapi.k10plus.de/")
+            + "?&format=picaxml&id=" + catalog + ":ppn:" + ppn;
+    }
+
+    public String getPpn() {
+        return ppn;
+    }
+
+    public String getCatalog() {
+        return catalog;
+    }
+
+    public Document getDocument() {
+        return document;
+    }
+
+    /**
+     * @return the url of the IIIF manifest in field 017H, if the record contains one
+     */
+    public Optional<String> getManifestURL() {
+        return document.getRootElement().getChildren("datafield", IIIFMapImporter.PICA_NAMESPACE)
+            .stream()
+            .filter(element -> element.getAttributeValue("tag").equals("017H"))
+            .map(element -> element.getChildren("subfield", IIIFMapImporter.PICA_NAMESPACE)
+                .stream()
+                .filter(field -> field.getAttributeValue("code").equals("u"))
+                .map(Element::getTextTrim)
+                .findFirst())
+            .filter(Optional::isPresent)
+            .map(Optional::get)
+            .findAny();
+    }
+
+    /**
+     * @return false if the catalog confirmed that the record did not change since it was last imported
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Marks the record as imported and stores it, must be called after the object was stored or when it was
+     * skipped because it is unchanged.
+     */
+    public void commit() {
+        if (response != null) {
+            response.commit();
+        }
+        if (!fromStore) {
+            PicaRecordStore store = PicaRecordStore.getInstance();
+            if (!store.containsEqual(catalog, ppn, document)) {
+                store.putQuietly(catalog, ppn, PicaRecordStore.serialize(document));
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mycore.common.MCRException;
+import org.mycore.common.MCRUtils;
+import org.mycore.common.config.MCRConfiguration2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Fetches resources with conditional requests. The ETag and Last-Modified validators of every response are stored
+ * together with its content, the next request sends them back. If the server answers with 304 the stored content is
+ * returned and {@link Response#isModified()} is false, so callers can skip all work which depends only on the
+ * content.
+ * <p>
+ * The validators of a response are only stored when the caller calls {@link Response#commit()} after it processed
+ * the content successfully, so a failed import is not skipped on the next run.
+ */
+public class ConditionalHttpFetcher {
+
+    public static final String DIRECTORY_PROPERTY = "MCR.Kartenspeicher.Revalidation.Directory";
+
+    public static final String ENABLED_PROPERTY = "MCR.Kartenspeicher.Revalidation.Enabled";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final String URL_KEY = "url";
+
+    private static final String ETAG_KEY = "etag";
+
+    private static final String LAST_MODIFIED_KEY = "lastModified";
+
+    private final Path directory;
+
+    private final boolean enabled;
+
+    public ConditionalHttpFetcher(Path directory, boolean enabled) {
+        this.directory = directory;
+        this.enabled = enabled;
+    }
+
+    public static ConditionalHttpFetcher getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Fetches the url. If validators are stored for the url, a conditional request is sent.
+     *
+     * @return the current content of the url
+     * @throws IOException if the request failed or the server answered with an unexpected status
+     */
+    public Response fetch(String url) throws IOException {
+        HttpFetcher httpFetcher = HttpFetcher.getInstance();
+        if (!url.startsWith("http://") && !url.startsWith("https://")) {
+            return new Response(url, httpFetcher.fetch(url), true, null, null);
+        }
+        Map<String, String> headers = new HashMap<>();
+        Properties validators = enabled ? readValidators(url) : null;
+        if (validators != null) {
+            String etag = validators.getProperty(ETAG_KEY);
+            String lastModified = validators.getProperty(LAST_MODIFIED_KEY);
+            if (etag != null) {
+                headers.put("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                headers.put("If-Modified-Since", lastModified);
+            }
+        }
+
+        HttpResponse<byte[]> response = httpFetcher.send(url, headers);
+        int status = response.statusCode();
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && validators != null) {
+            LOGGER.debug("{} was not modified", url);
+            return new Response(url, Files.readAllBytes(getContentFile(url)), false, null, null);
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Request to " + url + " failed with status " + status);
+        }
+        return new Response(url, response.body(), true, response.headers().firstValue("ETag").orElse(null),
+            response.headers().firstValue("Last-Modified").orElse(null));
+    }
+
+    private Properties readValidators(String url) {
+        Path validatorFile = getValidatorFile(url);
+        if (!Files.exists(validatorFile) || !Files.exists(getContentFile(url))) {
+            return null;
+        }
+        Properties validators = new Properties();
+        try (Reader reader = Files.newBufferedReader(validatorFile, StandardCharsets.UTF_8)) {
+            validators.load(reader);
+        } catch (IOException e) {
+            LOGGER.warn("Could not read validators of {} from {}", url, validatorFile, e);
+            return null;
+        }
+        // protect against hash collisions
+        return url.equals(validators.getProperty(URL_KEY)) ? validators : null;
+    }
+
+    private void storeValidators(Response response) throws IOException {
+        String url = response.getUrl();
+        Path validatorFile = getValidatorFile(url);
+        if (response.etag == null && response.lastModified == null) {
+            Files.deleteIfExists(validatorFile);
+            Files.deleteIfExists(getContentFile(url));
+            return;
+        }
+        Files.createDirectories(validatorFile.getParent());
+
+        Path tempContent = Files.createTempFile(validatorFile.getParent(), "tmp-", null);
+        Files.write(tempContent, response.getContent());
+        Files.move(tempContent, getContentFile(url), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+
+        Properties validators = new Properties();
+        validators.setProperty(URL_KEY, url);
+        if (response.etag != null) {
+            validators.setProperty(ETAG_KEY, response.etag);
+        }
+        if (response.lastModified != null) {
+            validators.setProperty(LAST_MODIFIED_KEY, response.lastModified);
+        }
+        Path tempValidators = Files.createTempFile(validatorFile.getParent(), "tmp-", null);
+        try (OutputStream os = Files.newOutputStream(tempValidators)) {
+            validators.store(os, null);
+        }
+        Files.move(tempValidators, validatorFile, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path getValidatorFile(String url) {
+        String hash = hash(url);
+        return directory.resolve(hash.substring(0, 2)).resolve(hash + ".properties");
+    }
+
+    private Path getContentFile(String url) {
+        String hash = hash(url);
+        return directory.resolve(hash.substring(0, 2)).resolve(hash + ".content");
+    }
+
+    private static String hash(String url) {
+        try {
+            return MCRUtils.asSHA256String(1, null, url);
+        } catch (NoSuchAlgorithmException e) {
+            throw new MCRException("SHA-256 is not supported!", e);
+        }
+    }
+
+    public class Response {
+        private final String url;
+
+        private final byte[] content;
+
+        private final boolean modified;
+
+        private final String etag;
+
+        private final String lastModified;
+
+        Response(String url, byte[] content, boolean modified, String etag, String lastModified) {
+            this.url = url;
+            this.content = content;
+            this.modified = modified;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        /**
+         * @return false if the server confirmed that the content did not change since the last committed response
+         */
+        public boolean isModified() {
+            return modified;
+        }
+
+        /**
+         * Stores the validators of this response, so the next request for the url is sent conditionally.
+         * Errors are only logged, because they only cost a full request next time.
+         */
+        public void commit() {
+            if (!enabled || !modified) {
+                return;
+            }
+            try {
+                storeValidators(this);
+            } catch (IOException e) {
+                LOGGER.warn("Could not store validators of {}", url, e);
+            }
+        }
+    }
+
+    private static class InstanceHolder {
+        private static final ConditionalHttpFetcher INSTANCE = new ConditionalHttpFetcher(
+            Paths.get(MCRConfiguration2.getStringOrThrow(DIRECTORY_PROPERTY)),
+            MCRConfiguration2.getBoolean(ENABLED_PROPERTY).orElse(false));
+    }
+}
@@ -18,83 +18,347 @@
 
 package de.vzg.kartenspeicher;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+/**
+ * Converts the coordinates of the catalog like <code>E 005 32 00E 005 33 00N 053 11 00N 053 11 30</code> (western
+ * and eastern longitude, northern and southern latitude in degrees, minutes and optional seconds) to a bounding box.
+ * <p>
+ * The input is read in a single pass without regular expressions or substrings, invalid inputs result in a
+ * {@link BoundingBox} with a {@link Reason} and are counted by reason.
+ */
 public class CoordinateConverter {
 
+    private static final Logger LOGGER = LogManager.getLogger();
 
-    private static final String REG_EXP_STRING = "[ \\/-]*([EW])[ ]?([0-9]?[0-9]?[0-9]?[0-9][ °]?[0-9][0-9][ °]?[0-9]?[0-9])?"
-            + "[ \\/-]*([EW])[ ]?([0-9]?[0-9]?[0-9][ °]?[0-9][0-9][ °]?[0-9]?[0-9])?"
-            + "[ \\/-]*([NS])[ ]?([0-9]?[0-9]?[0-9][ °]?[0-9][0-9][ °]?[0-9]?[0-9])?"
-            + "[ \\/-]*([NS])[ ]?([0-9]?[0-9]?[0-9][ °]?[0-9][0-9][ °]?[0-9]?[0-9])?";
+    private static final AtomicLongArray INVALID_COUNTS = new AtomicLongArray(Reason.values().length);
 
-    private static final Pattern PATTERN = Pattern.compile(REG_EXP_STRING);
+    /**
+     * Parses the coordinates.
+     *
+     * @return the bounding box, check {@link BoundingBox#isValid()} before reading the values
+     */
+    public static BoundingBox parse(CharSequence coordinate) {
+        if (coordinate == null) {
+            return invalid(Reason.EMPTY);
+        }
+        int length = coordinate.length();
+        int pos = 0;
+        double west = 0;
+        double east = 0;
+        double north = 0;
+        double south = 0;
+        for (int i = 0; i < 4; i++) {
+            while (pos < length && isSeparator(coordinate.charAt(pos))) {
+                pos++;
+            }
+            if (pos == length) {
+                return invalid(i == 0 ? Reason.EMPTY : Reason.MISSING_DIRECTION);
+            }
+            char direction = coordinate.charAt(pos++);
+            boolean positive;
+            if (i < 2 ? direction == 'E' : direction == 'N') {
+                positive = true;
+            } else if (i < 2 ? direction == 'W' : direction == 'S') {
+                positive = false;
+            } else {
+                return invalid(Reason.MISSING_DIRECTION);
+            }
+            if (pos + 1 < length && coordinate.charAt(pos) == ' ' && isDigit(coordinate.charAt(pos + 1))) {
+                pos++;
+            }
+            if (pos == length || !isDigit(coordinate.charAt(pos))) {
+                return invalid(Reason.MISSING_VALUE);
+            }
 
-    private static final int WESTLICHSTER = 0;
-    private static final int NOERDLICHSTER = 2;
-    private static final int OESTLICHSTER = 1;
-    private static final int SUEDLICHSTER = 3;
+            // up to three numbers separated by a single space or degree sign
+            int maxLeadingDigits = i == 0 ? 4 : 3;
+            int count = 0;
+            int first = 0;
+            int second = 0;
+            int third = 0;
+            int firstLength = 0;
+            int secondLength = 0;
+            int thirdLength = 0;
+            while (true) {
+                int number = 0;
+                int digits = 0;
+                while (pos < length && isDigit(coordinate.charAt(pos))) {
+                    if (++digits > maxLeadingDigits + 4) {
+                        return invalid(Reason.INVALID_VALUE);
+                    }
+                    number = number * 10 + coordinate.charAt(pos++) - '0';
+                }
+                if (count == 0) {
+                    first = number;
+                    firstLength = digits;
+                } else if (count == 1) {
+                    second = number;
+                    secondLength = digits;
+                } else {
+                    third = number;
+                    thirdLength = digits;
+                }
+                count++;
+                if (pos + 1 < length && isNumberSeparator(coordinate.charAt(pos))
+                    && isDigit(coordinate.charAt(pos + 1))) {
+                    if (count == 3) {
+                        return invalid(Reason.INVALID_VALUE);
+                    }
+                    pos++;
+                } else {
+                    break;
+                }
+            }
 
-    public static String convertCoordinate(String coordinate) {
-        Matcher matcher = PATTERN.matcher(coordinate);
+            int degrees;
+            int minutes;
+            int seconds = 0;
+            if (count == 3 && inRange(firstLength, 1, maxLeadingDigits) && secondLength == 2
+                && inRange(thirdLength, 1, 2)) {
+                degrees = first;
+                minutes = second;
+                seconds = third;
+            } else if (count == 2 && (inRange(firstLength, 1, maxLeadingDigits) && inRange(secondLength, 3, 4)
+                || inRange(firstLength, 3, maxLeadingDigits + 2) && inRange(secondLength, 1, 2))) {
+                degrees = first;
+                minutes = second;
+            } else if (count == 1 && firstLength == 5) {
+                degrees = first / 100;
+                minutes = first % 100;
+            } else {
+                return invalid(Reason.INVALID_VALUE);
+            }
 
-        if (!matcher.matches() || matcher.groupCount() != 8) {
-            invalidInfo(coordinate);
-            return null; // need 4 coordinates with 4 directions
+            double value = ((double) degrees) + (minutes / 60.0) + (seconds / 3600.0);
+            value = positive ? value : -value;
+            if (i == 0) {
+                west = value;
+            } else if (i == 1) {
+                east = value;
+            } else if (i == 2) {
+                north = value;
+            } else {
+                south = value;
+            }
         }
-        double[] vals = new double[4];
+        if (pos != length) {
+            return invalid(Reason.TRAILING_CHARACTERS);
+        }
+        return new BoundingBox(west, east, north, south);
+    }
 
+    /**
+     * Parses the corners written by {@link #convertCoordinate(String)}. Invalid polygons are not counted, because
+     * they are usually coordinates which were never converted.
+     *
+     * @return the bounding box, check {@link BoundingBox#isValid()} before reading the values
+     */
+    public static BoundingBox parsePolygon(CharSequence polygon) {
+        if (polygon == null) {
+            return Reason.EMPTY.result;
+        }
+        String[] corners = polygon.toString().trim().split(",");
+        if (corners.length != 4) {
+            return Reason.INVALID_VALUE.result;
+        }
+        double[] values = new double[8];
         for (int i = 0; i < 4; i++) {
-            char direction = matcher.group(i * 2 + 1).charAt(0);
-            String numbersAsString = matcher.group(i * 2 + 2);
-            String[] numbers = numbersAsString.split("[° ]");
-            String firstNumber;
-            String secondNumber;
-            String thirdNumber = null;
-            if( numbers.length == 3) {
-                firstNumber = numbers[0];
-                secondNumber = numbers[1];
-                thirdNumber = numbers[2];
-            } else if (numbers.length == 2) {
-                firstNumber = numbers[0];
-                secondNumber = numbers[1];
-            } else if (numbers.length == 1) {
-                if (numbers[0].length() == 5) {
-                    firstNumber = numbers[0].substring(0, 3);
-                    secondNumber = numbers[0].substring(3, 5);
-                } else {
-                    invalidInfo(coordinate);
-                    return null;
-                }
-            } else {
-                invalidInfo(coordinate);
-                return null;
+            String[] corner = corners[i].trim().split(" +");
+            if (corner.length != 2) {
+                return Reason.INVALID_VALUE.result;
+            }
+            try {
+                values[i * 2] = Double.parseDouble(corner[0]);
+                values[i * 2 + 1] = Double.parseDouble(corner[1]);
+            } catch (NumberFormatException e) {
+                return Reason.INVALID_VALUE.result;
+            }
+        }
+        // west north, east north, east south, west south
+        if (values[0] != values[6] || values[2] != values[4] || values[1] != values[3] || values[5] != values[7]) {
+            return Reason.INVALID_VALUE.result;
+        }
+        return new BoundingBox(values[0], values[2], values[1], values[5]);
+    }
+
+    /**
+     * Converts the coordinates to the corners of the bounding box in the order north west, north east, south east,
+     * south west, like <code>5.533333 53.183333, 5.550000 53.183333, 5.550000 53.191667, 5.533333 53.191667 </code>.
+     *
+     * @return the corners or null if the coordinates are invalid
+     */
+    public static String convertCoordinate(String coordinate) {
+        BoundingBox box = parse(coordinate);
+        if (!box.isValid()) {
+            LOGGER.debug("Coordinate is invalid ({}): {}", box.getReason(), coordinate);
+            return null;
+        }
+        String west = format(box.getWest());
+        String east = format(box.getEast());
+        String north = format(box.getNorth());
+        String south = format(box.getSouth());
+        return new StringBuilder(128)
+            .append(west).append(' ').append(north).append(", ")
+            .append(east).append(' ').append(north).append(", ")
+            .append(east).append(' ').append(south).append(", ")
+            .append(west).append(' ').append(south).append(' ')
+            .toString();
+    }
+
+    /**
+     * @return the number of invalid coordinates since the start
+     */
+    public static long getInvalidCount() {
+        long sum = 0;
+        for (int i = 0; i < INVALID_COUNTS.length(); i++) {
+            sum += INVALID_COUNTS.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the number of invalid coordinates by reason since the start, reasons which never occurred are missing
+     */
+    public static Map<Reason, Long> getInvalidCounts() {
+        Map<Reason, Long> counts = new EnumMap<>(Reason.class);
+        for (Reason reason : Reason.values()) {
+            long count = INVALID_COUNTS.get(reason.ordinal());
+            if (count > 0) {
+                counts.put(reason, count);
             }
-            int deg1 = Integer.parseInt(firstNumber, 10);
-            int deg2 = Integer.parseInt(secondNumber, 10);
-            int deg3 = thirdNumber!=null? Integer.parseInt(thirdNumber, 10): 0;
-
-            double result = (direction == 'E' || direction == 'N') ?
-                    ((double) deg1) + (deg2 / 60.0)  + (deg3 / 3600.0):
-                    -(((double) deg1) + (deg2 / 60.0) + (deg3 / 3600.0));
-
-            vals[i] = result;
-        }
-        return String.format(Locale.ROOT, "%f %f, %f %f, %f %f, %f %f ",
-                vals[WESTLICHSTER], vals[NOERDLICHSTER],
-                vals[OESTLICHSTER], vals[NOERDLICHSTER],
-                vals[OESTLICHSTER], vals[SUEDLICHSTER],
-                vals[WESTLICHSTER], vals[SUEDLICHSTER]
-        );
+        }
+        return counts;
+    }
+
+    /**
+     * Formats like <code>String.format(Locale.ROOT, "%f", value)</code>: the shortest decimal representation of the
+     * value rounded half up to six digits.
+     */
+    static String format(double value) {
+        String digits = new BigDecimal(Double.toString(Math.abs(value))).setScale(6, RoundingMode.HALF_UP)
+            .toPlainString();
+        return Double.compare(value, 0.0) < 0 ? "-" + digits : digits;
+    }
+
+    private static BoundingBox invalid(Reason reason) {
+        INVALID_COUNTS.incrementAndGet(reason.ordinal());
+        return reason.result;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '/' || c == '-';
+    }
+
+    private static boolean isNumberSeparator(char c) {
+        return c == ' ' || c == '°';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
     }
-    public static void invalidInfo(String coord) {
-        //LOGGER.error("Coordinate is invalid: " + coord);
+
+    private static boolean inRange(int value, int min, int max) {
+        return value >= min && value <= max;
     }
 
     public static void main(String[] args) {
         System.out.println(convertCoordinate("E 005 32 00E 005 33 00N 053 11 00N 053 11 30"));
     }
+
+    public enum Reason {
+        /**
+         * The input is null or contains only separators.
+         */
+        EMPTY,
+        /**
+         * E or W was expected for the longitudes and N or S for the latitudes.
+         */
+        MISSING_DIRECTION,
+        /**
+         * A direction is not followed by a number.
+         */
+        MISSING_VALUE,
+        /**
+         * A number has the wrong count of digits or groups.
+         */
+        INVALID_VALUE,
+        /**
+         * There are characters after the southern latitude.
+         */
+        TRAILING_CHARACTERS;
+
+        private final BoundingBox result = new BoundingBox(this);
+    }
+
+    /**
+     * The result of {@link #parse(CharSequence)}, the values are degrees with negative values for west and south.
+     */
+    public static final class BoundingBox {
+
+        private final double west;
+
+        private final double east;
+
+        private final double north;
+
+        private final double south;
+
+        private final Reason reason;
+
+        BoundingBox(double west, double east, double north, double south) {
+            this.west = west;
+            this.east = east;
+            this.north = north;
+            this.south = south;
+            this.reason = null;
+        }
+
+        private BoundingBox(Reason reason) {
+            this.west = Double.NaN;
+            this.east = Double.NaN;
+            this.north = Double.NaN;
+            this.south = Double.NaN;
+            this.reason = reason;
+        }
+
+        public boolean isValid() {
+            return reason == null;
+        }
+
+        /**
+         * @return why the coordinates are invalid or null if they are valid
+         */
+        public Reason getReason() {
+            return reason;
+        }
+
+        public double getWest() {
+            return west;
+        }
+
+        public double getEast() {
+            return east;
+        }
+
+        public double getNorth() {
+            return north;
+        }
+
+        public double getSouth() {
+            return south;
+        }
+
+        @Override
+        public String toString() {
+            return isValid() ? "W " + west + " E " + east + " N " + north + " S " + south : "invalid: " + reason;
+        }
+    }
 }
@@ -0,0 +1,477 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mycore.datamodel.niofs.utils.MCRRecursiveDeleter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Brings the images of a derivate in line with its manifest without emptying it first. The derivate remembers in
+ * {@link #RECORD_FILE} which canvas and image service every file was downloaded from. Only images of new or changed
+ * canvases are downloaded, into the hidden directory {@link #STAGING_DIRECTORY} of the derivate, and each one is
+ * moved over its file only when it is complete. The move stays within the store of the derivate and is atomic where
+ * the file system supports it, otherwise the file is replaced by a rename, so a reader sees either the old or the
+ * new file but never a partly written one.
+ * Files which neither belong to a canvas nor are a rendition of such a file are removed at the very end, so the
+ * object shows its images during the whole update and keeps the old ones if a download fails.
+ * <p>
+ * Derivates which were imported before the record existed are matched by the file names which the importer
+ * derives from the image service ids.
+ * <p>
+ * The record also holds the manifest url and the size, MD5 and SHA-256 of every downloaded file, so
+ * {@link #verify(Path)} can check a derivate without downloading it again.
+ */
+public class DerivateSync {
+
+    /**
+     * The file in the derivate which records the source of every image.
+     */
+    public static final String RECORD_FILE = ".iiif-sync.properties";
+
+    /**
+     * The directory of the derivate in which new images are downloaded before they are moved to their place.
+     */
+    public static final String STAGING_DIRECTORY = ".iiif-sync-staging";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final Path root;
+
+    private final ValidatedManifest manifest;
+
+    private final IIIFMapImporter.OutputFormat format;
+
+    private final boolean force;
+
+    /**
+     * @param root  the root of the derivate
+     * @param force download every image again, for example because the files are damaged
+     */
+    public DerivateSync(Path root, ValidatedManifest manifest, IIIFMapImporter.OutputFormat format, boolean force) {
+        this.root = root;
+        this.manifest = manifest;
+        this.format = format;
+        this.force = force;
+    }
+
+    /**
+     * Downloads the new and changed images, swaps them in and removes the stale files.
+     *
+     * @return the result with the main file of the derivate
+     */
+    public Result sync() throws IOException {
+        Map<String, Source> record = readRecord(root).getSources();
+        boolean legacy = !Files.exists(root.resolve(RECORD_FILE));
+        Map<String, Source> newRecord = new LinkedHashMap<>();
+        List<String> staged = new ArrayList<>();
+        String mainFile = null;
+        int kept = 0;
+
+        Path staging = root.resolve(STAGING_DIRECTORY);
+        if (Files.exists(staging)) {
+            // left behind by an interrupted sync
+            Files.walkFileTree(staging, MCRRecursiveDeleter.instance());
+        }
+        Files.createDirectory(staging);
+        try (IIIFTileFetcher tileFetcher = new IIIFTileFetcher()) {
+            for (ValidatedManifest.ManifestImage image : manifest.getImages()) {
+                Source expected = new Source(null, image.getCanvasId(), image.getServiceId(), image.getWidth(),
+                    image.getHeight(), format.name(), null);
+                Source current = force ? null : findCurrentFile(record, legacy, expected);
+                Source source;
+                if (current != null) {
+                    source = expected.withFile(current.getFilename(), current.getDigest());
+                    kept++;
+                } else if (newRecord.containsKey(image.getServiceId())) {
+                    // the same image in two canvases
+                    source = newRecord.get(image.getServiceId());
+                } else {
+                    IIIFMapImporter.Tuple<String, FileDigest> file = IIIFMapImporter.downloadImage(tileFetcher,
+                        manifest.getUrl(), image, staging, format);
+                    source = expected.withFile(file.getE1(), file.getE2());
+                    staged.add(file.getE1());
+                }
+                newRecord.put(image.getServiceId(), source);
+                if (mainFile == null) {
+                    mainFile = source.getFilename();
+                }
+            }
+
+            // the images and their renditions
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(staging)) {
+                for (Path file : files) {
+                    moveIntoPlace(file, root.resolve(file.getFileName().toString()));
+                }
+            }
+        } finally {
+            Files.walkFileTree(staging, MCRRecursiveDeleter.instance());
+        }
+
+        writeRecord(newRecord);
+        int removed = removeStaleFiles(newRecord);
+        LOGGER.info("Synchronized {} with {}: {} downloaded, {} unchanged, {} removed", root, manifest.getUrl(),
+            staged.size(), kept, removed);
+        return new Result(mainFile, staged.size(), kept, removed);
+    }
+
+    private static void moveIntoPlace(Path file, Path target) throws IOException {
+        try {
+            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Checks the files of a derivate against the digests in its record. Files without digest, which were adopted from
+     * a derivate without record by an older version, are only checked for existence until the next sync records
+     * their digest.
+     *
+     * @return the result or an empty optional if the derivate has no record
+     */
+    public static Optional<Verification> verify(Path root) throws IOException {
+        if (!Files.exists(root.resolve(RECORD_FILE))) {
+            return Optional.empty();
+        }
+        Record record = readRecord(root);
+        List<String> damaged = new ArrayList<>();
+        for (Source source : record.getSources().values()) {
+            Path file = root.resolve(source.getFilename());
+            if (!Files.exists(file)) {
+                LOGGER.warn("{} is missing", file);
+                damaged.add(source.getFilename());
+            } else if (source.getDigest() != null) {
+                FileDigest digest = FileDigest.of(file);
+                if (!digest.equals(source.getDigest())) {
+                    LOGGER.warn("{} has {}, but {} was stored", file, digest, source.getDigest());
+                    damaged.add(source.getFilename());
+                }
+            }
+        }
+        return Optional.of(new Verification(record.getManifestURL(), record.getFormat(), damaged));
+    }
+
+    /**
+     * Returns the file which already holds the expected image. Adopted files get the digest of their current content,
+     * so {@link #verify(Path)} notices later damage.
+     *
+     * @return the recorded source which already holds the expected image or null if it has to be downloaded
+     */
+    private Source findCurrentFile(Map<String, Source> record, boolean legacy, Source expected) throws IOException {
+        if (legacy) {
+            String serviceId = expected.getServiceId();
+            String baseName = serviceId.substring(serviceId.lastIndexOf('/') + 1);
+            // a file of another format is downloaded again, so the record never claims a format the file has not
+            String candidate = baseName + "." + format.getExtension();
+            Path file = root.resolve(candidate);
+            return Files.exists(file) ? expected.withFile(candidate, FileDigest.of(file)) : null;
+        }
+        Source current = record.get(expected.getServiceId());
+        if (current == null || !current.isSameImage(expected) || !Files.exists(root.resolve(current.getFilename()))) {
+            return null;
+        }
+        if (current.getDigest() == null) {
+            return current.withFile(current.getFilename(), FileDigest.of(root.resolve(current.getFilename())));
+        }
+        return current;
+    }
+
+    private int removeStaleFiles(Map<String, Source> newRecord) throws IOException {
+        Set<String> current = new HashSet<>();
+        current.add(RECORD_FILE);
+        current.add(STAGING_DIRECTORY);
+        newRecord.values().forEach(source -> current.add(source.getFilename()));
+
+        List<Path> stale = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root)) {
+            for (Path file : files) {
+                if (!current.contains(file.getFileName().toString())) {
+                    stale.add(file);
+                }
+            }
+        }
+        stale.removeIf(file -> newRecord.values().stream()
+            .anyMatch(source -> RenditionBuilder.isRenditionOf(file.getFileName().toString(), source.getFilename())));
+        for (Path file : stale) {
+            LOGGER.info("Removing {}, it is no longer part of the manifest", file);
+            Files.walkFileTree(file, MCRRecursiveDeleter.instance());
+        }
+        return stale.size();
+    }
+
+    private static Record readRecord(Path root) throws IOException {
+        Map<String, Source> sources = new LinkedHashMap<>();
+        Path recordFile = root.resolve(RECORD_FILE);
+        if (!Files.exists(recordFile)) {
+            return new Record(null, sources);
+        }
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(recordFile)) {
+            properties.load(is);
+        }
+        for (int i = 0; properties.containsKey(i + ".file"); i++) {
+            FileDigest digest = null;
+            if (properties.containsKey(i + ".sha256")) {
+                digest = new FileDigest(Long.parseLong(properties.getProperty(i + ".size")),
+                    properties.getProperty(i + ".md5"), properties.getProperty(i + ".sha256"));
+            }
+            Source source = new Source(properties.getProperty(i + ".file"), properties.getProperty(i + ".canvas"),
+                properties.getProperty(i + ".service"), parseInteger(properties.getProperty(i + ".width")),
+                parseInteger(properties.getProperty(i + ".height")), properties.getProperty(i + ".format"), digest);
+            sources.put(source.getServiceId(), source);
+        }
+        return new Record(properties.getProperty("manifest"), sources);
+    }
+
+    private void writeRecord(Map<String, Source> record) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("manifest", manifest.getUrl());
+        int i = 0;
+        for (Source source : record.values()) {
+            properties.setProperty(i + ".file", source.getFilename());
+            properties.setProperty(i + ".service", source.getServiceId());
+            setIfPresent(properties, i + ".canvas", source.getCanvasId());
+            setIfPresent(properties, i + ".width", source.getWidth());
+            setIfPresent(properties, i + ".height", source.getHeight());
+            properties.setProperty(i + ".format", source.getFormat());
+            if (source.getDigest() != null) {
+                properties.setProperty(i + ".size", Long.toString(source.getDigest().getSize()));
+                properties.setProperty(i + ".md5", source.getDigest().getMD5());
+                properties.setProperty(i + ".sha256", source.getDigest().getSHA256());
+            }
+            i++;
+        }
+        try (OutputStream os = Files.newOutputStream(root.resolve(RECORD_FILE))) {
+            properties.store(os, "Sources of the images, written by the import");
+        }
+    }
+
+    private static void setIfPresent(Properties properties, String key, Object value) {
+        if (value != null) {
+            properties.setProperty(key, value.toString());
+        }
+    }
+
+    private static Integer parseInteger(String value) {
+        return value == null ? null : Integer.valueOf(value);
+    }
+
+    /**
+     * The canvas and image service from which a file was downloaded.
+     */
+    private static class Source {
+        private final String filename;
+
+        private final String canvasId;
+
+        private final String serviceId;
+
+        private final Integer width;
+
+        private final Integer height;
+
+        private final String format;
+
+        private final FileDigest digest;
+
+        Source(String filename, String canvasId, String serviceId, Integer width, Integer height, String format,
+            FileDigest digest) {
+            this.filename = filename;
+            this.canvasId = canvasId;
+            this.serviceId = serviceId;
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.digest = digest;
+        }
+
+        Source withFile(String filename, FileDigest digest) {
+            return new Source(filename, canvasId, serviceId, width, height, format, digest);
+        }
+
+        /**
+         * A canvas with other dimensions shows another image, even if the service id stayed the same.
+         */
+        boolean isSameImage(Source other) {
+            return Objects.equals(canvasId, other.canvasId) && Objects.equals(serviceId, other.serviceId)
+                && Objects.equals(width, other.width) && Objects.equals(height, other.height)
+                && Objects.equals(format, other.format);
+        }
+
+        String getFilename() {
+            return filename;
+        }
+
+        String getCanvasId() {
+            return canvasId;
+        }
+
+        String getServiceId() {
+            return serviceId;
+        }
+
+        Integer getWidth() {
+            return width;
+        }
+
+        Integer getHeight() {
+            return height;
+        }
+
+        String getFormat() {
+            return format;
+        }
+
+        /**
+         * @return the digest of the file or null if the file was adopted before digests were recorded
+         */
+        FileDigest getDigest() {
+            return digest;
+        }
+    }
+
+    private static class Record {
+        private final String manifestURL;
+
+        private final Map<String, Source> sources;
+
+        Record(String manifestURL, Map<String, Source> sources) {
+            this.manifestURL = manifestURL;
+            this.sources = sources;
+        }
+
+        String getManifestURL() {
+            return manifestURL;
+        }
+
+        /**
+         * @return the first format of the files, which is the format the derivate was synchronized with
+         */
+        IIIFMapImporter.OutputFormat getFormat() {
+            return sources.values().stream().findFirst()
+                .map(source -> IIIFMapImporter.OutputFormat.valueOf(source.getFormat()))
+                .orElseGet(IIIFMapImporter.OutputFormat::getConfigured);
+        }
+
+        Map<String, Source> getSources() {
+            return sources;
+        }
+    }
+
+    /**
+     * The files of a derivate which do not match their recorded digests.
+     */
+    public static class Verification {
+        private final String manifestURL;
+
+        private final IIIFMapImporter.OutputFormat format;
+
+        private final List<String> damaged;
+
+        Verification(String manifestURL, IIIFMapImporter.OutputFormat format, List<String> damaged) {
+            this.manifestURL = manifestURL;
+            this.format = format;
+            this.damaged = Collections.unmodifiableList(damaged);
+        }
+
+        /**
+         * @return the manifest the derivate was synchronized with, null for records written before it was stored
+         */
+        public String getManifestURL() {
+            return manifestURL;
+        }
+
+        /**
+         * @return the format in which the derivate stores tiled images
+         */
+        public IIIFMapImporter.OutputFormat getFormat() {
+            return format;
+        }
+
+        /**
+         * @return the missing files and the files with another digest than recorded
+         */
+        public List<String> getDamaged() {
+            return damaged;
+        }
+
+        public boolean isIntact() {
+            return damaged.isEmpty();
+        }
+    }
+
+    /**
+     * What a synchronization changed.
+     */
+    public static class Result {
+        private final String mainFile;
+
+        private final int downloaded;
+
+        private final int kept;
+
+        private final int removed;
+
+        Result(String mainFile, int downloaded, int kept, int removed) {
+            this.mainFile = mainFile;
+            this.downloaded = downloaded;
+            this.kept = kept;
+            this.removed = removed;
+        }
+
+        /**
+         * @return the file of the first canvas, which should be the main file of the derivate
+         */
+        public String getMainFile() {
+            return mainFile;
+        }
+
+        public int getDownloaded() {
+            return downloaded;
+        }
+
+        public int getKept() {
+            return kept;
+        }
+
+        public int getRemoved() {
+            return removed;
+        }
+    }
+}
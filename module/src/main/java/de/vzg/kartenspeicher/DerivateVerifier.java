@@ -0,0 +1,173 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mycore.common.MCRException;
+import org.mycore.common.MCRSessionMgr;
+import org.mycore.common.MCRUserInformation;
+import org.mycore.common.config.MCRConfiguration2;
+import org.mycore.datamodel.common.MCRXMLMetadataManager;
+import org.mycore.datamodel.metadata.MCRMetaEnrichedLinkID;
+import org.mycore.datamodel.metadata.MCRMetadataManager;
+import org.mycore.datamodel.metadata.MCRObject;
+import org.mycore.datamodel.metadata.MCRObjectID;
+import org.mycore.datamodel.niofs.MCRPath;
+import org.mycore.util.concurrent.MCRFixedUserCallable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the derivates of all objects of a project against the digests which were recorded when their images were
+ * written, spread over {@link #THREADS_PROPERTY} threads. Only the files are read, nothing is downloaded. The images
+ * of objects with missing or damaged files are downloaded again from the manifest they were imported from. Derivates
+ * which only reference their images are skipped.
+ */
+public class DerivateVerifier {
+
+    public static final String THREADS_PROPERTY = "MCR.Kartenspeicher.Verify.Threads";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final String project;
+
+    private final boolean reimport;
+
+    private final MCRUserInformation userInformation;
+
+    private final AtomicInteger intact = new AtomicInteger();
+
+    private final AtomicInteger damaged = new AtomicInteger();
+
+    private final AtomicInteger reimported = new AtomicInteger();
+
+    private final AtomicInteger unverifiable = new AtomicInteger();
+
+    private final AtomicInteger referenced = new AtomicInteger();
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * @param project  the project id of the objects, the part before <code>_mods_</code>
+     * @param reimport if false the damaged objects are only logged
+     */
+    public DerivateVerifier(String project, boolean reimport) {
+        this.project = project;
+        this.reimport = reimport;
+        this.userInformation = MCRSessionMgr.getCurrentSession().getUserInformation();
+    }
+
+    /**
+     * Verifies all objects of the project and waits until all of them are done.
+     *
+     * @return the number of objects which are still damaged or could not be verified because of an error
+     */
+    public int run() {
+        List<String> ids = MCRXMLMetadataManager.instance().listIDsForBase(project + "_mods");
+        int threads = MCRConfiguration2.getInt(THREADS_PROPERTY)
+            .orElse(Runtime.getRuntime().availableProcessors());
+        LOGGER.info("Verifying the derivates of {} objects of project {} with {} threads", ids.size(), project,
+            threads);
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "verify-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (String id : ids) {
+                futures.add(executor.submit(() -> verify(MCRObjectID.getInstance(id))));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MCRException("Interrupted while verifying project " + project, e);
+        } catch (ExecutionException e) {
+            throw new MCRException("Could not verify project " + project, e);
+        } finally {
+            executor.shutdownNow();
+        }
+        LOGGER.info(String.format(Locale.ROOT,
+            "Verified project %s in %.1f s: %d intact, %d damaged, %d reimported, %d without digests, "
+                + "%d only referenced, %d failed",
+            project, (System.nanoTime() - start) / 1e9, intact.get(), damaged.get(), reimported.get(),
+            unverifiable.get(), referenced.get(), failed.get()));
+        return damaged.get() - reimported.get() + failed.get();
+    }
+
+    private void verify(MCRObjectID objectId) {
+        try {
+            new MCRFixedUserCallable<>(() -> {
+                MCRObject object = MCRMetadataManager.retrieveMCRObject(objectId);
+                Optional<MCRMetaEnrichedLinkID> derivate = object.getStructure().getDerivates().stream().findFirst();
+                if (!derivate.isPresent()) {
+                    return null;
+                }
+                MCRPath root = MCRPath.getPath(derivate.get().getXLinkHref(), "/");
+                if (IIIFReferences.read(root).isPresent()) {
+                    // the images stay on the server of the library, there are no files to verify
+                    referenced.incrementAndGet();
+                    return null;
+                }
+                Optional<DerivateSync.Verification> verification = DerivateSync.verify(root);
+                if (!verification.isPresent()) {
+                    LOGGER.info("{} has no recorded digests, it was imported before they were stored", objectId);
+                    unverifiable.incrementAndGet();
+                } else if (verification.get().isIntact()) {
+                    intact.incrementAndGet();
+                } else {
+                    damaged.incrementAndGet();
+                    LOGGER.warn("{} has damaged files: {}", objectId, verification.get().getDamaged());
+                    if (reimport) {
+                        reimport(objectId, verification.get());
+                    }
+                }
+                return null;
+            }, userInformation).call();
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            LOGGER.error("Could not verify {}", objectId, e);
+        }
+    }
+
+    private void reimport(MCRObjectID objectId, DerivateSync.Verification verification) throws Exception {
+        if (verification.getManifestURL() == null) {
+            LOGGER.error("The manifest of {} is not recorded, it has to be imported again by hand", objectId);
+            return;
+        }
+        if (IIIFMapImporter.importDerivate(objectId, verification.getManifestURL(), true, verification.getFormat(),
+            true)) {
+            reimported.incrementAndGet();
+        }
+    }
+}
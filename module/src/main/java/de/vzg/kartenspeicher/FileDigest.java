@@ -0,0 +1,180 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+
+/**
+ * The size, MD5 and SHA-256 of a file. The importer computes them with a {@link DigestingOutputStream} while it
+ * writes the file, so storing an image does not read it a second time.
+ */
+public class FileDigest {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long size;
+
+    private final String md5;
+
+    private final String sha256;
+
+    public FileDigest(long size, String md5, String sha256) {
+        this.size = size;
+        this.md5 = md5;
+        this.sha256 = sha256;
+    }
+
+    /**
+     * Wraps a stream, the digest of everything written is available after it was closed.
+     */
+    public static DigestingOutputStream digesting(OutputStream out) {
+        return new DigestingOutputStream(out);
+    }
+
+    /**
+     * Reads a file and computes its digest.
+     */
+    public static FileDigest of(Path file) throws IOException {
+        DigestingOutputStream digesting = digesting(OutputStream.nullOutputStream());
+        try (InputStream is = Files.newInputStream(file); digesting) {
+            is.transferTo(digesting);
+        }
+        return digesting.getDigest();
+    }
+
+    private static MessageDigest getMessageDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to support MD5 and SHA-256
+            throw new IllegalStateException(algorithm + " is not supported", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the MD5 as lower case hex string
+     */
+    public String getMD5() {
+        return md5;
+    }
+
+    /**
+     * @return the SHA-256 as lower case hex string
+     */
+    public String getSHA256() {
+        return sha256;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        FileDigest that = (FileDigest) o;
+        return size == that.size && md5.equals(that.md5) && sha256.equals(that.sha256);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(size, md5, sha256);
+    }
+
+    @Override
+    public String toString() {
+        return size + " bytes, MD5 " + md5 + ", SHA-256 " + sha256;
+    }
+
+    /**
+     * Computes the digest of the bytes which pass through.
+     */
+    public static class DigestingOutputStream extends FilterOutputStream {
+
+        private final MessageDigest md5 = getMessageDigest("MD5");
+
+        private final MessageDigest sha256 = getMessageDigest("SHA-256");
+
+        private long size;
+
+        private FileDigest digest;
+
+        DigestingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            md5.update((byte) b);
+            sha256.update((byte) b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream would write byte by byte
+            out.write(b, off, len);
+            md5.update(b, off, len);
+            sha256.update(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (digest == null) {
+                digest = new FileDigest(size, toHex(md5.digest()), toHex(sha256.digest()));
+            }
+        }
+
+        /**
+         * @return the digest of all written bytes
+         * @throws IllegalStateException if the stream is not closed yet
+         */
+        public FileDigest getDigest() {
+            if (digest == null) {
+                throw new IllegalStateException("The digest is only complete after the stream was closed");
+            }
+            return digest;
+        }
+    }
+}
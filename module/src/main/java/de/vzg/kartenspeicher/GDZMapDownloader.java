@@ -0,0 +1,263 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.mycore.common.MCRException;
+import org.mycore.common.MCRSessionMgr;
+import org.mycore.common.MCRUserInformation;
+import org.mycore.common.config.MCRConfiguration2;
+import org.mycore.datamodel.metadata.MCRDerivate;
+import org.mycore.datamodel.metadata.MCRMetaLinkID;
+import org.mycore.datamodel.metadata.MCRMetadataManager;
+import org.mycore.datamodel.metadata.MCRObject;
+import org.mycore.datamodel.metadata.MCRObjectID;
+import org.mycore.datamodel.niofs.MCRPath;
+import org.mycore.solr.MCRSolrClientFactory;
+import org.mycore.util.concurrent.MCRFixedUserCallable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Downloads the TIFF of the GDZ for all objects of a Solr query into their <code>MAP_DOWNLOAD</code> derivates. The
+ * ppns and the existing derivates are read from Solr with one cursor each, so no object or derivate is loaded to find
+ * them. The downloads run on {@link #THREADS_PROPERTY} threads, the {@link HostScheduler} keeps them within the
+ * budget of the GDZ host. A file which is already present with the size the server reports is not downloaded again.
+ * <p>
+ * The fields <code>mods.location.url</code> and <code>derivateLabel</code> are only indexed since this downloader
+ * exists, so the index has to be rebuilt once before it is used. Solr only serves as a shortcut for the derivates: an
+ * object which is not listed there is checked for a <code>MAP_DOWNLOAD</code> derivate before one is created.
+ */
+public class GDZMapDownloader {
+
+    public static final String THREADS_PROPERTY = "MCR.Kartenspeicher.GDZ.Threads";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final String query;
+
+    private final MCRUserInformation userInformation;
+
+    private final AtomicInteger done = new AtomicInteger();
+
+    private final AtomicInteger downloaded = new AtomicInteger();
+
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final List<String> failed = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @param query a Solr query which matches the objects
+     */
+    public GDZMapDownloader(String query) {
+        this.query = query;
+        this.userInformation = MCRSessionMgr.getCurrentSession().getUserInformation();
+    }
+
+    /**
+     * Returns the url of the TIFF of an object.
+     *
+     * @param locationURL the <code>mods:location/mods:url</code> of the object, the ppn follows the question mark
+     */
+    public static String getImageURL(String locationURL) {
+        int questionMark = locationURL.indexOf('?');
+        if (questionMark < 0) {
+            throw new MCRException("There is no ppn in the url " + locationURL);
+        }
+        return String.format(Locale.ROOT, VZGKartenSpeicherCommands.URL_TEMPLATE,
+            locationURL.substring(questionMark + 1));
+    }
+
+    /**
+     * Downloads the maps of all objects of the query and waits until all of them are done.
+     *
+     * @return the objects whose map could not be downloaded
+     */
+    public List<String> run() throws SolrServerException, IOException {
+        SolrClient solrClient = MCRSolrClientFactory.getMainSolrClient();
+        Map<String, String> locationURLs = new LinkedHashMap<>();
+        SolrQuery objectQuery = new SolrQuery(query);
+        objectQuery.addFilterQuery("objectType:mods");
+        objectQuery.setFields("id", "mods.location.url");
+        forEachDocument(solrClient, objectQuery, document -> {
+            Collection<Object> urls = document.getFieldValues("mods.location.url");
+            String id = (String) document.getFirstValue("id");
+            if (urls == null || urls.isEmpty()) {
+                LOGGER.warn("{} has no mods:location/mods:url, it is not downloaded", id);
+                failed.add(id);
+            } else {
+                locationURLs.put(id, urls.iterator().next().toString());
+            }
+        });
+
+        // the derivates of the objects of the query, with the query passed as parameter so it is not escaped
+        Map<String, String> derivates = new HashMap<>();
+        SolrQuery derivateQuery = new SolrQuery(
+            "+objectType:derivate +derivateLabel:" + VZGKartenSpeicherCommands.MAP_DOWNLOAD);
+        derivateQuery.set("objects", query);
+        derivateQuery.addFilterQuery("{!join from=id to=returnId v=$objects}");
+        derivateQuery.setFields("id", "returnId");
+        forEachDocument(solrClient, derivateQuery,
+            document -> derivates.put((String) document.getFirstValue("returnId"),
+                (String) document.getFirstValue("id")));
+
+        int threads = MCRConfiguration2.getInt(THREADS_PROPERTY).orElse(4);
+        LOGGER.info("Downloading the maps of {} objects, {} of them have a {} derivate, with {} threads",
+            locationURLs.size(), derivates.size(), VZGKartenSpeicherCommands.MAP_DOWNLOAD, threads);
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "gdz-download-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            locationURLs.forEach((objectID, locationURL) -> futures.add(executor.submit(
+                () -> download(objectID, locationURL, derivates.get(objectID), locationURLs.size(), start))));
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MCRException("Interrupted while downloading the maps of " + query, e);
+        } catch (ExecutionException e) {
+            throw new MCRException("Could not download the maps of " + query, e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        LOGGER.info(String.format(Locale.ROOT,
+            "Downloaded the maps of %s in %.1f s: %d downloaded, %d already present, %d failed, %.1f MB, %.1f MB/s",
+            query, seconds, downloaded.get(), skipped.get(), failed.size(), bytes.get() / 1e6,
+            seconds > 0 ? bytes.get() / 1e6 / seconds : 0));
+        if (!failed.isEmpty()) {
+            LOGGER.warn("The maps of these objects could not be downloaded: {}", failed);
+        }
+        return failed;
+    }
+
+    private static void forEachDocument(SolrClient solrClient, SolrQuery query, Consumer<SolrDocument> consumer)
+        throws SolrServerException, IOException {
+        query.setRows(MCRConfiguration2.getInt(PPNObjectIndex.PAGE_SIZE_PROPERTY).orElse(1000));
+        query.setSort("id", SolrQuery.ORDER.asc);
+        String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+        while (true) {
+            query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+            QueryResponse response = solrClient.query(query);
+            response.getResults().forEach(consumer);
+            String nextCursorMark = response.getNextCursorMark();
+            if (cursorMark.equals(nextCursorMark)) {
+                return;
+            }
+            cursorMark = nextCursorMark;
+        }
+    }
+
+    private void download(String objectID, String locationURL, String derivateID, int total, long start) {
+        try {
+            new MCRFixedUserCallable<>(() -> {
+                downloadMap(objectID, locationURL, derivateID);
+                return null;
+            }, userInformation).call();
+        } catch (Exception e) {
+            failed.add(objectID);
+            LOGGER.error("Could not download the map of {}", objectID, e);
+        }
+        int count = done.incrementAndGet();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        LOGGER.info(String.format(Locale.ROOT, "%d of %d objects done (%.0f %%), %.1f MB in %.0f s, about %.0f s left",
+            count, total, count * 100.0 / total, bytes.get() / 1e6, seconds, seconds / count * (total - count)));
+    }
+
+    private void downloadMap(String objectID, String locationURL, String derivateID) throws Exception {
+        String imageURL = getImageURL(locationURL);
+        String fileName = imageURL.substring(imageURL.lastIndexOf('/') + 1);
+        HttpFetcher fetcher = HttpFetcher.getInstance();
+
+        // the index may not know a derivate yet, the object always does
+        String existingID = derivateID != null ? derivateID : findDerivate(objectID).orElse(null);
+        MCRDerivate derivate;
+        if (existingID != null) {
+            Path file = MCRPath.getPath(existingID, "/").resolve(fileName);
+            if (Files.exists(file) && Files.size(file) == fetcher.getContentLength(imageURL)) {
+                LOGGER.info("{} of {} is already present", fileName, objectID);
+                skipped.incrementAndGet();
+                return;
+            }
+            derivate = MCRMetadataManager.retrieveMCRDerivate(MCRObjectID.getInstance(existingID));
+        } else {
+            derivate = VZGKartenSpeicherCommands.createDerivate(objectID, VZGKartenSpeicherCommands.MAP_DOWNLOAD);
+        }
+
+        LOGGER.info("Download {} to {}", imageURL, derivate.getId());
+        long imageStart = System.nanoTime();
+        MCRPath root = MCRPath.getPath(derivate.getId().toString(), "/");
+        long size = fetcher.download(imageURL, root.resolve(fileName));
+        ImportMetrics metrics = ImportMetrics.getInstance();
+        metrics.stop(ImportMetrics.Timer.IMAGE, imageStart);
+        metrics.add(ImportMetrics.Counter.IMAGE_BYTES, size);
+        metrics.add(ImportMetrics.Counter.WRITTEN_BYTES, size);
+        bytes.addAndGet(size);
+        downloaded.incrementAndGet();
+        if (!fileName.equals(derivate.getDerivate().getInternals().getMainDoc())) {
+            derivate.getDerivate().getInternals().setMainDoc(fileName);
+            MCRMetadataManager.update(derivate);
+        }
+    }
+
+    private static Optional<String> findDerivate(String objectID) {
+        MCRObject object = MCRMetadataManager.retrieveMCRObject(MCRObjectID.getInstance(objectID));
+        return object.getStructure().getDerivates().stream()
+            .map(MCRMetaLinkID::getXLinkHrefID)
+            .map(MCRMetadataManager::retrieveMCRDerivate)
+            .filter(derivate -> VZGKartenSpeicherCommands.MAP_DOWNLOAD.equals(derivate.getLabel()))
+            .map(derivate -> derivate.getId().toString())
+            .findAny();
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the requests to every host within its budget: at most a number of concurrent requests and a number of
+ * request starts per second. A host which answered with <code>Retry-After</code> gets no requests until the time has
+ * passed. Hosts are independent, so parallel downloads from different libraries do not slow each other down.
+ * <p>
+ * The limits are configured for all hosts in {@link #MAX_CONCURRENT_PROPERTY} and
+ * {@link #REQUESTS_PER_SECOND_PROPERTY} and for a single host in the same property followed by a dot and the host
+ * name.
+ */
+public class HostScheduler {
+
+    public static final String MAX_CONCURRENT_PROPERTY = "MCR.Kartenspeicher.Http.MaxConcurrent";
+
+    /**
+     * The request starts per second, 0 for no limit.
+     */
+    public static final String REQUESTS_PER_SECOND_PROPERTY = "MCR.Kartenspeicher.Http.RequestsPerSecond";
+
+    /**
+     * The longest time in seconds a host is paused because of a <code>Retry-After</code> header.
+     */
+    public static final String MAX_RETRY_AFTER_PROPERTY = "MCR.Kartenspeicher.Http.MaxRetryAfter";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final int maxConcurrent;
+
+    private final double requestsPerSecond;
+
+    private final Duration maxRetryAfter;
+
+    private final Map<String, Integer> maxConcurrentByHost;
+
+    private final Map<String, Double> requestsPerSecondByHost;
+
+    private final ConcurrentMap<String, HostBudget> budgets = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxConcurrentByHost     limits which differ from <code>maxConcurrent</code> by host name
+     * @param requestsPerSecondByHost limits which differ from <code>requestsPerSecond</code> by host name
+     */
+    public HostScheduler(int maxConcurrent, double requestsPerSecond, Duration maxRetryAfter,
+        Map<String, Integer> maxConcurrentByHost, Map<String, Double> requestsPerSecondByHost) {
+        this.maxConcurrent = maxConcurrent;
+        this.requestsPerSecond = requestsPerSecond;
+        this.maxRetryAfter = maxRetryAfter;
+        this.maxConcurrentByHost = Collections.unmodifiableMap(maxConcurrentByHost);
+        this.requestsPerSecondByHost = Collections.unmodifiableMap(requestsPerSecondByHost);
+    }
+
+    /**
+     * Waits until a request to the host of the url is allowed.
+     *
+     * @return the permit, which has to be closed when the response is read completely
+     */
+    public Permit acquire(String url) throws InterruptedException {
+        long start = System.nanoTime();
+        HostBudget budget = getBudget(getHost(url));
+        budget.concurrency.acquire();
+        try {
+            budget.awaitSlot();
+        } catch (InterruptedException e) {
+            budget.concurrency.release();
+            throw e;
+        }
+        ImportMetrics.getInstance().stop(ImportMetrics.Timer.HOST_WAIT, start);
+        return budget.concurrency::release;
+    }
+
+    /**
+     * Pauses the host of the url, because it answered with a <code>Retry-After</code> header.
+     */
+    public void retryAfter(String url, Duration delay) {
+        Duration pause = delay.compareTo(maxRetryAfter) > 0 ? maxRetryAfter : delay;
+        String host = getHost(url);
+        LOGGER.warn("{} asked to retry after {}, pausing it for {}", host, delay, pause);
+        getBudget(host).pauseUntil(System.nanoTime() + pause.toNanos());
+    }
+
+    /**
+     * Parses the value of a <code>Retry-After</code> header, which is either a number of seconds or an HTTP date.
+     *
+     * @return the time to wait or an empty optional if the value is invalid
+     */
+    public static Optional<Duration> parseRetryAfter(String value, Instant now) {
+        if (value == null || value.isBlank()) {
+            return Optional.empty();
+        }
+        String trimmed = value.trim();
+        try {
+            return Optional.of(Duration.ofSeconds(Math.max(0, Long.parseLong(trimmed))));
+        } catch (NumberFormatException e) {
+            // not a number of seconds, try the date
+        }
+        try {
+            Instant date = ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            return Optional.of(date.isAfter(now) ? Duration.between(now, date) : Duration.ZERO);
+        } catch (DateTimeParseException e) {
+            return Optional.empty();
+        }
+    }
+
+    static String getHost(String url) {
+        try {
+            String host = URI.create(url).getHost();
+            return host == null ? "" : host.toLowerCase(Locale.ROOT);
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+
+    private HostBudget getBudget(String host) {
+        return budgets.computeIfAbsent(host, h -> {
+            int concurrent = maxConcurrentByHost.getOrDefault(h, maxConcurrent);
+            double rate = requestsPerSecondByHost.getOrDefault(h, requestsPerSecond);
+            LOGGER.info("Requests to {}: at most {} at the same time and {} per second", h.isEmpty() ? "files" : h,
+                concurrent, rate > 0 ? rate : "unlimited");
+            return new HostBudget(concurrent, rate);
+        });
+    }
+
+    /**
+     * A request slot of a host.
+     */
+    @FunctionalInterface
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static class HostBudget {
+
+        private final Semaphore concurrency;
+
+        private final long intervalNanos;
+
+        private long nextStart = System.nanoTime();
+
+        private long pausedUntil = System.nanoTime();
+
+        HostBudget(int maxConcurrent, double requestsPerSecond) {
+            this.concurrency = new Semaphore(Math.max(1, maxConcurrent), true);
+            this.intervalNanos = requestsPerSecond > 0 ? (long) (1e9 / requestsPerSecond) : 0;
+        }
+
+        /**
+         * Reserves the next start time of the host and sleeps until it is reached. A pause which began while
+         * sleeping is respected by reserving again.
+         */
+        void awaitSlot() throws InterruptedException {
+            while (true) {
+                long slot;
+                synchronized (this) {
+                    long now = System.nanoTime();
+                    slot = Math.max(now, Math.max(nextStart, pausedUntil));
+                    if (slot == now && pausedUntil - now <= 0) {
+                        nextStart = now + intervalNanos;
+                        return;
+                    }
+                    nextStart = slot + intervalNanos;
+                }
+                TimeUnit.NANOSECONDS.sleep(slot - System.nanoTime());
+                synchronized (this) {
+                    if (pausedUntil - System.nanoTime() <= 0) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        synchronized void pauseUntil(long nanoTime) {
+            if (nanoTime - pausedUntil > 0) {
+                pausedUntil = nanoTime;
+            }
+        }
+    }
+}
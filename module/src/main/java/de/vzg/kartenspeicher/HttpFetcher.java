@@ -0,0 +1,471 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mycore.common.config.MCRConfiguration2;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * The HTTP client of all requests of the import: catalog records, manifests, info.json, tiles and the TIFFs of the
+ * GDZ. One {@link HttpClient} is shared, so connections are kept alive and reused and HTTP/2 is used by servers which
+ * support it.
+ * <p>
+ * Requests which fail with an I/O error, a timeout or the status 429, 500, 502, 503 or 504 are repeated up to
+ * {@link #MAX_RETRIES_PROPERTY} times with an exponential backoff with full jitter. Every request waits for a slot of
+ * its host in the {@link HostScheduler}, a <code>Retry-After</code> header of a 429 or 503 response pauses the whole
+ * host. Urls which are not http or https are read with {@link URL#openStream()}.
+ */
+public class HttpFetcher {
+
+    /**
+     * The time in milliseconds to establish a connection.
+     */
+    public static final String CONNECT_TIMEOUT_PROPERTY = "MCR.Kartenspeicher.Http.ConnectTimeout";
+
+    /**
+     * The time in milliseconds until a response is complete, for streamed downloads until the headers are received.
+     */
+    public static final String REQUEST_TIMEOUT_PROPERTY = "MCR.Kartenspeicher.Http.RequestTimeout";
+
+    /**
+     * The time in milliseconds a streamed download may wait for the next bytes of the body, defaults to the request
+     * timeout.
+     */
+    public static final String READ_TIMEOUT_PROPERTY = "MCR.Kartenspeicher.Http.ReadTimeout";
+
+    public static final String MAX_RETRIES_PROPERTY = "MCR.Kartenspeicher.Http.MaxRetries";
+
+    /**
+     * The delay in milliseconds before the first retry, it doubles with every further retry.
+     */
+    public static final String RETRY_DELAY_PROPERTY = "MCR.Kartenspeicher.Http.RetryDelay";
+
+    public static final String MAX_RETRY_DELAY_PROPERTY = "MCR.Kartenspeicher.Http.MaxRetryDelay";
+
+    /**
+     * HTTP_2 or HTTP_1_1, HTTP_2 falls back to HTTP/1.1 for servers which do not support it.
+     */
+    public static final String VERSION_PROPERTY = "MCR.Kartenspeicher.Http.Version";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    /**
+     * Closes the bodies of streamed downloads which stalled, a blocked read ends with an exception when its stream is
+     * closed.
+     */
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "http-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final HttpClient client;
+
+    private final HostScheduler scheduler;
+
+    private final Duration requestTimeout;
+
+    private final Duration readTimeout;
+
+    private final int maxRetries;
+
+    private final long retryDelayMillis;
+
+    private final long maxRetryDelayMillis;
+
+    public HttpFetcher(HttpClient.Version version, Duration connectTimeout, Duration requestTimeout, int maxRetries,
+        long retryDelayMillis, long maxRetryDelayMillis, HostScheduler scheduler) {
+        this(version, connectTimeout, requestTimeout, requestTimeout, maxRetries, retryDelayMillis,
+            maxRetryDelayMillis, scheduler);
+    }
+
+    /**
+     * @param readTimeout the time a streamed download may wait for the next bytes of the body
+     */
+    public HttpFetcher(HttpClient.Version version, Duration connectTimeout, Duration requestTimeout,
+        Duration readTimeout, int maxRetries, long retryDelayMillis, long maxRetryDelayMillis,
+        HostScheduler scheduler) {
+        this.client = HttpClient.newBuilder()
+            .version(version)
+            .connectTimeout(connectTimeout)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+        this.scheduler = scheduler;
+        this.requestTimeout = requestTimeout;
+        this.readTimeout = readTimeout;
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+        this.maxRetryDelayMillis = maxRetryDelayMillis;
+    }
+
+    public static HttpFetcher getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Reads the whole content of the url.
+     *
+     * @throws IOException if the request still fails after all retries or the status is not 200
+     */
+    public byte[] fetch(String url) throws IOException {
+        if (!isHttp(url)) {
+            try (InputStream is = new URL(url).openStream()) {
+                return is.readAllBytes();
+            }
+        }
+        HttpResponse<byte[]> response = send(url, Collections.emptyMap());
+        checkOK(url, response.statusCode());
+        return response.body();
+    }
+
+    /**
+     * Sends a GET request with the headers and returns the response with any status which is not retried, so the
+     * caller can handle statuses like 304 or 404 itself.
+     *
+     * @param url an http or https url
+     * @throws IOException if the request still fails after all retries
+     */
+    public HttpResponse<byte[]> send(String url, Map<String, String> headers) throws IOException {
+        HttpRequest request = buildRequest(url, headers);
+        return withRetries(url, () -> {
+            HttpResponse<byte[]> response;
+            HostScheduler.Permit permit = scheduler.acquire(url);
+            try {
+                CompletableFuture<HttpResponse<byte[]>> future = client.sendAsync(request,
+                    HttpResponse.BodyHandlers.ofByteArray());
+                try {
+                    // the timeout of the request only covers the headers, a stalled body would hang forever
+                    response = future.get(requestTimeout.toMillis(), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    future.cancel(true);
+                    throw e;
+                } catch (TimeoutException e) {
+                    future.cancel(true);
+                    throw new HttpTimeoutException("No complete response from " + url + " within " + requestTimeout);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("Request to " + url + " failed", e.getCause());
+                }
+            } finally {
+                permit.close();
+            }
+            checkRetryable(url, response);
+            return response;
+        });
+    }
+
+    /**
+     * Asks for the size of the content of the url with a HEAD request, without downloading it.
+     *
+     * @return the size or -1 if the server does not tell it
+     * @throws IOException if the request still fails after all retries or the status is not 200
+     */
+    public long getContentLength(String url) throws IOException {
+        if (!isHttp(url)) {
+            return new URL(url).openConnection().getContentLengthLong();
+        }
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(URI.create(url)).timeout(requestTimeout)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody()).build();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid url " + url, e);
+        }
+        HttpResponse<Void> response = withRetries(url, () -> {
+            HttpResponse<Void> headResponse;
+            HostScheduler.Permit permit = scheduler.acquire(url);
+            try {
+                headResponse = client.send(request, HttpResponse.BodyHandlers.discarding());
+            } finally {
+                permit.close();
+            }
+            checkRetryable(url, headResponse);
+            return headResponse;
+        });
+        checkOK(url, response.statusCode());
+        return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+    }
+
+    /**
+     * Downloads the url to a file, an existing file is replaced. The download is repeated from the start if it fails,
+     * the content is never held in memory. The file is written beside the target and only replaces it when it is
+     * complete, so a failed download leaves the previous file. A body which stalls for longer than the read timeout
+     * fails the attempt.
+     *
+     * @return the number of bytes written
+     * @throws IOException if the download still fails after all retries or the status is not 200
+     */
+    public long download(String url, Path target) throws IOException {
+        return downloadWithDigest(url, target).getSize();
+    }
+
+    /**
+     * Downloads the url to a file like {@link #download(String, Path)} and computes the digest of the file while it
+     * is written.
+     *
+     * @return the digest of the written file
+     * @throws IOException if the download still fails after all retries or the status is not 200
+     */
+    public FileDigest downloadWithDigest(String url, Path target) throws IOException {
+        if (!isHttp(url)) {
+            try (InputStream is = new URL(url).openStream()) {
+                return copy(is, target);
+            }
+        }
+        return withRetries(url, () -> {
+            // the slot is kept until the whole file is written, the watchdog ends stalled bodies
+            HostScheduler.Permit permit = scheduler.acquire(url);
+            try (InputStream is = openStream(url)) {
+                return copyWithWatchdog(url, is, target);
+            } finally {
+                permit.close();
+            }
+        });
+    }
+
+    private FileDigest copyWithWatchdog(String url, InputStream is, Path target) throws IOException {
+        AtomicLong lastRead = new AtomicLong(System.nanoTime());
+        AtomicBoolean stalled = new AtomicBoolean();
+        long checkMillis = Math.max(10, readTimeout.toMillis() / 4);
+        ScheduledFuture<?> watchdog = WATCHDOG.scheduleWithFixedDelay(() -> {
+            if (System.nanoTime() - lastRead.get() > readTimeout.toNanos() && !stalled.getAndSet(true)) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Could not close the stalled body of {}", url, e);
+                }
+            }
+        }, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+        try {
+            return copy(new FilterInputStream(is) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    lastRead.set(System.nanoTime());
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    lastRead.set(System.nanoTime());
+                    return read;
+                }
+            }, target);
+        } catch (IOException e) {
+            if (stalled.get()) {
+                throw new HttpTimeoutException("The body of " + url + " stalled for more than " + readTimeout);
+            }
+            throw e;
+        } finally {
+            watchdog.cancel(false);
+        }
+    }
+
+    private static FileDigest copy(InputStream is, Path target) throws IOException {
+        Path temp = target.resolveSibling("." + target.getFileName() + ".part");
+        try {
+            FileDigest.DigestingOutputStream os = FileDigest.digesting(Files.newOutputStream(temp));
+            try (os) {
+                is.transferTo(os);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return os.getDigest();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private InputStream openStream(String url) throws IOException {
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(buildRequest(url, Collections.emptyMap()),
+                HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while requesting " + url);
+        }
+        if (response.statusCode() != 200) {
+            response.body().close();
+            checkRetryable(url, response);
+            checkOK(url, response.statusCode());
+        }
+        return response.body();
+    }
+
+    private HttpRequest buildRequest(String url, Map<String, String> headers) throws IOException {
+        HttpRequest.Builder builder;
+        try {
+            builder = HttpRequest.newBuilder(URI.create(url)).timeout(requestTimeout).GET();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid url " + url, e);
+        }
+        headers.forEach(builder::header);
+        return builder.build();
+    }
+
+    private <T> T withRetries(String url, Request<T> request) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            try {
+                return request.send();
+            } catch (IOException e) {
+                boolean retryable = !(e instanceof StatusException) || ((StatusException) e).isRetryable();
+                if (!retryable || attempt >= maxRetries || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                // the delay of a Retry-After header is awaited by the scheduler on the next request
+                retryAfterDelay(url, attempt, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while requesting " + url);
+            }
+        }
+    }
+
+    private void retryAfterDelay(String url, int attempt, IOException cause) throws InterruptedIOException {
+        long maxDelay = Math.min(maxRetryDelayMillis, retryDelayMillis << Math.min(attempt, 20));
+        long delay = ThreadLocalRandom.current().nextLong(maxDelay + 1);
+        LOGGER.warn("Request to {} failed ({}), retry {} of {} in {} ms", url, cause.getMessage(), attempt + 1,
+            maxRetries, delay);
+        ImportMetrics.getInstance().increment(ImportMetrics.Counter.RETRIES);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry " + url);
+        }
+    }
+
+    private void checkRetryable(String url, HttpResponse<?> response) throws StatusException {
+        int status = response.statusCode();
+        if (status == 429 || status == 503) {
+            HostScheduler.parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null), Instant.now())
+                .ifPresent(delay -> scheduler.retryAfter(url, delay));
+        }
+        if (status == 429 || status == 500 || status == 502 || status == 503 || status == 504) {
+            throw new StatusException(url, status, true);
+        }
+    }
+
+    private static void checkOK(String url, int status) throws StatusException {
+        if (status != 200) {
+            throw new StatusException(url, status, false);
+        }
+    }
+
+    private static boolean isHttp(String url) {
+        return url.regionMatches(true, 0, "http://", 0, 7) || url.regionMatches(true, 0, "https://", 0, 8);
+    }
+
+    private interface Request<T> {
+        T send() throws IOException, InterruptedException;
+    }
+
+    /**
+     * A response with an unexpected status.
+     */
+    public static class StatusException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        private final boolean retryable;
+
+        StatusException(String url, int status, boolean retryable) {
+            super("Request to " + url + " failed with status " + status);
+            this.status = status;
+            this.retryable = retryable;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return true if the status is temporary and the request is worth repeating
+         */
+        public boolean isRetryable() {
+            return retryable;
+        }
+    }
+
+    private static class InstanceHolder {
+        private static final HttpFetcher INSTANCE = new HttpFetcher(
+            HttpClient.Version.valueOf(MCRConfiguration2.getString(VERSION_PROPERTY).orElse("HTTP_2")),
+            Duration.ofMillis(MCRConfiguration2.getLong(CONNECT_TIMEOUT_PROPERTY).orElse(10_000L)),
+            Duration.ofMillis(MCRConfiguration2.getLong(REQUEST_TIMEOUT_PROPERTY).orElse(120_000L)),
+            Duration.ofMillis(MCRConfiguration2.getLong(READ_TIMEOUT_PROPERTY)
+                .orElseGet(() -> MCRConfiguration2.getLong(REQUEST_TIMEOUT_PROPERTY).orElse(120_000L))),
+            MCRConfiguration2.getInt(MAX_RETRIES_PROPERTY).orElse(3),
+            MCRConfiguration2.getLong(RETRY_DELAY_PROPERTY).orElse(1_000L),
+            MCRConfiguration2.getLong(MAX_RETRY_DELAY_PROPERTY).orElse(30_000L),
+            new HostScheduler(MCRConfiguration2.getInt(HostScheduler.MAX_CONCURRENT_PROPERTY).orElse(4),
+                MCRConfiguration2.getDouble(HostScheduler.REQUESTS_PER_SECOND_PROPERTY).orElse(0d),
+                Duration.ofSeconds(MCRConfiguration2.getLong(HostScheduler.MAX_RETRY_AFTER_PROPERTY).orElse(300L)),
+                getHostLimits(HostScheduler.MAX_CONCURRENT_PROPERTY, Integer::valueOf),
+                getHostLimits(HostScheduler.REQUESTS_PER_SECOND_PROPERTY, Double::valueOf)));
+
+        private static <T> Map<String, T> getHostLimits(String property, Function<String, T> parser) {
+            Map<String, T> limits = new HashMap<>();
+            MCRConfiguration2.getSubPropertiesMap(property + ".")
+                .forEach((host, value) -> limits.put(host.toLowerCase(Locale.ROOT), parser.apply(value.trim())));
+            return limits;
+        }
+    }
+}
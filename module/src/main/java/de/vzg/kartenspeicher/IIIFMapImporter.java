@@ -19,23 +19,13 @@
 package de.vzg.kartenspeicher;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import de.digitalcollections.iiif.model.ImageContent;
-import de.digitalcollections.iiif.model.Service;
 import de.digitalcollections.iiif.model.image.ImageService;
 import de.digitalcollections.iiif.model.image.TileInfo;
-import de.digitalcollections.iiif.model.jackson.IiifObjectMapper;
-import de.digitalcollections.iiif.model.openannotation.Annotation;
-import de.digitalcollections.iiif.model.sharedcanvas.Canvas;
-import de.digitalcollections.iiif.model.sharedcanvas.Manifest;
-import de.digitalcollections.iiif.model.sharedcanvas.Resource;
-import de.digitalcollections.iiif.model.sharedcanvas.Sequence;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.solr.common.SolrDocument;
-import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.Namespace;
-import org.jdom2.input.SAXBuilder;
 import org.mycore.access.MCRAccessException;
 import org.mycore.common.MCRConstants;
 import org.mycore.common.MCRException;
@@ -55,28 +45,27 @@ import org.mycore.datamodel.metadata.MCRMetadataManager;
 import org.mycore.datamodel.metadata.MCRObject;
 import org.mycore.datamodel.metadata.MCRObjectID;
 import org.mycore.datamodel.niofs.MCRPath;
-import org.mycore.datamodel.niofs.utils.MCRRecursiveDeleter;
 import org.mycore.mods.MCRMODSWrapper;
 import org.mycore.solr.MCRSolrClientFactory;
 import org.mycore.solr.search.MCRSolrSearchUtils;
 
 import javax.imageio.ImageIO;
-import java.awt.*;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.RenderedImage;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URL;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -84,7 +73,8 @@ import java.util.stream.Collectors;
 public class IIIFMapImporter {
 
     private static final Logger LOGGER = LogManager.getLogger();
-    private static final Map<String, MCRObjectID> existingPPNMap = new HashMap<>();
+
+    private static final SingleFlight<String, MCRObjectID> HOST_IMPORTS = new SingleFlight<>();
 
     private static final String CATALOG_URL_REG_EXP_STR = "https?:\\/\\/uri.gbv.de\\/document\\/([a-zA-Z0-9]+):ppn:([a-zA-Z0-9]+)";
 
@@ -95,20 +85,44 @@ public class IIIFMapImporter {
     public static final String COLLECTION_CLASSIFICATION = "http://kartenspeicher.gbv.de/mir/api/v1/classifications/collection";
     private static final String APPEND_MAX_QUALITY_JPG = "/full/full/0/default.jpg";
 
+    /**
+     * Either <code>stripes</code> to hold only one row of tiles in memory while the image is written or
+     * <code>canvas</code> to draw the whole image before it is written.
+     */
+    public static final String STITCHING_PROPERTY = "MCR.Kartenspeicher.Download.Stitching";
+    private static final String STITCHING_STRIPES = "stripes";
+
+    /**
+     * The {@link OutputFormat} of tiled images, if none is passed to the import.
+     */
+    public static final String FORMAT_PROPERTY = "MCR.Kartenspeicher.Download.Format";
+
     public static void main(String[] args) throws IOException, ClassNotFoundException {
         //importMaps("https://digital.lb-oldenburg.de/i3f/v21/1227819/manifest");
         //downloadMaps("https://digitale-sammlungen.gwlb.de/content/100650309/manifest.json", Paths.get("/home/sebastian/karten/"))
     }
 
     public static void updateObject(String obj, boolean redownload) throws Exception {
+        updateObject(obj, redownload, OutputFormat.getConfigured());
+    }
+
+    public static void updateObject(String obj, boolean redownload, OutputFormat format) throws Exception {
+        updateObject(obj, redownload, format, false);
+    }
+
+    /**
+     * @param force download all images again, even those which did not change in the manifest
+     */
+    public static void updateObject(String obj, boolean redownload, OutputFormat format, boolean force)
+        throws Exception {
         MCRObjectID objectID = MCRObjectID.getInstance(obj);
         MCRObject object = MCRMetadataManager.retrieveMCRObject(objectID);
         Element mods = new MCRMODSWrapper(object).getMODS();
         Tuple<String, String> stringStringTuple = extractPPN(mods);
         String ppn = stringStringTuple.getE2();
         String catalog = stringStringTuple.getE1();
-        existingPPNMap.put(ppn, objectID);
-        importPair(ppn, catalog, null, null,null, null, redownload);
+        PPNLookupCache.getInstance().put(catalog, ppn, objectID);
+        importPair(ppn, catalog, null, null,null, null, redownload, format, force);
     }
 
     public static void importPair(String ppn,
@@ -118,45 +132,107 @@ public class IIIFMapImporter {
                                   String instituteID,
                                   String collection,
                                   boolean redownload) throws Exception {
+        importPair(ppn, catalog, manifestURL, projectID, instituteID, collection, redownload,
+            OutputFormat.getConfigured());
+    }
+
+    public static void importPair(String ppn,
+                                  String catalog,
+                                  String manifestURL,
+                                  String projectID,
+                                  String instituteID,
+                                  String collection,
+                                  boolean redownload,
+                                  OutputFormat format) throws Exception {
+        importPair(ppn, catalog, manifestURL, projectID, instituteID, collection, redownload, format, false);
+    }
+
+    /**
+     * @param force download all images again, even those which did not change in the manifest
+     */
+    public static void importPair(String ppn,
+                                  String catalog,
+                                  String manifestURL,
+                                  String projectID,
+                                  String instituteID,
+                                  String collection,
+                                  boolean redownload,
+                                  OutputFormat format,
+                                  boolean force) throws Exception {
+        long start = System.nanoTime();
         Tuple<MCRObjectID, String> objectIdManifest = importPPN(ppn, catalog, projectID, instituteID, collection, true);
 
         MCRObjectID objectId = objectIdManifest.getE1();
+        manifestURL = resolveManifestURL(manifestURL, objectIdManifest.getE2(), ppn, catalog, objectId);
+        importDerivate(objectId, manifestURL, redownload, format, force);
+        ImportMetrics.getInstance().stop(ImportMetrics.Timer.IMPORT, start);
+    }
 
-        MCRObject mcrObject = MCRMetadataManager.retrieveMCRObject(objectId);
-        Optional<MCRMetaEnrichedLinkID> mayDerivate = mcrObject.getStructure().getDerivates().stream().findFirst();
-        MCRDerivate derivate;
-
+    /**
+     * Returns the manifest url which was passed to the import or the one of the catalog record, if none was passed.
+     *
+     * @throws MCRException if there is neither
+     */
+    static String resolveManifestURL(String manifestURL, String catalogManifestURL, String ppn, String catalog,
+        MCRObjectID objectId) {
         if (manifestURL == null || manifestURL.equals("null")) {
-            if (objectIdManifest.getE2() == null) {
+            if (catalogManifestURL == null) {
                 throw new MCRException("There is not manifest for (catalog, ppn, object) (" + catalog + "," + ppn + "," + objectId.toString() + ")");
             }
-            manifestURL = objectIdManifest.getE2();
+            return catalogManifestURL;
         }
+        return manifestURL;
+    }
 
-        if (!testManifest(manifestURL)) {
+    /**
+     * Downloads the images of the manifest to the first derivate of the object. If the object already has a derivate
+     * it is only synchronized with the manifest if <code>redownload</code> is true, see {@link DerivateSync}. With
+     * {@link OutputFormat#IIIF_REFERENCE} only the renditions are downloaded, the derivate references the images.
+     *
+     * @return false if the manifest is invalid
+     */
+    static boolean importDerivate(MCRObjectID objectId, String manifestURL, boolean redownload,
+        OutputFormat format) throws Exception {
+        return importDerivate(objectId, manifestURL, redownload, format, false);
+    }
+
+    /**
+     * Downloads the images of the manifest to the first derivate of the object like
+     * {@link #importDerivate(MCRObjectID, String, boolean, OutputFormat)}.
+     *
+     * @param force download all images again, even those which did not change in the manifest
+     * @return false if the manifest is invalid
+     */
+    static boolean importDerivate(MCRObjectID objectId, String manifestURL, boolean redownload,
+        OutputFormat format, boolean force) throws Exception {
+        MCRObject mcrObject = MCRMetadataManager.retrieveMCRObject(objectId);
+        Optional<MCRMetaEnrichedLinkID> mayDerivate = mcrObject.getStructure().getDerivates().stream().findFirst();
+        MCRDerivate derivate;
+
+        Optional<ValidatedManifest> manifest = ValidatedManifest.read(manifestURL);
+        if (!manifest.isPresent()) {
             LOGGER.error("The manifest " + manifestURL + " seems to be invalid!");
-            return;
+            return false;
         }
 
         boolean derivateExisting = mayDerivate.isPresent();
         if (derivateExisting) {
             derivate = MCRMetadataManager.retrieveMCRDerivate(mayDerivate.get().getXLinkHrefID());
-            if (redownload) {
-                MCRPath root = MCRPath.getPath(derivate.getId().toString(), "/");
-                Files.walkFileTree(root, MCRRecursiveDeleter.instance());
-            }
         } else {
             derivate = createDerivate(objectId, new ArrayList<>());
         }
 
         if (!derivateExisting || redownload) {
             MCRPath derivateRoot = MCRPath.getPath(derivate.getId().toString(), "/");
-            String mainFile = downloadMaps(manifestURL, derivateRoot);
-            if (mainFile != null) {
+            String mainFile = format == OutputFormat.IIIF_REFERENCE
+                ? IIIFReferences.write(derivateRoot, manifest.get())
+                : new DerivateSync(derivateRoot, manifest.get(), format, force).sync().getMainFile();
+            if (mainFile != null && !mainFile.equals(derivate.getDerivate().getInternals().getMainDoc())) {
                 derivate.getDerivate().getInternals().setMainDoc(mainFile);
                 MCRMetadataManager.update(derivate);
             }
         }
+        return true;
     }
 
     /**
@@ -171,7 +247,56 @@ public class IIIFMapImporter {
      */
     public static Tuple<MCRObjectID, String> importPPN(String ppn, String catalog, String projectID, String instituteID, String collection, boolean overwrite) throws Exception {
         MCRObjectID existingObject = checkPPNExists(ppn, catalog);
+        checkImportParameters(ppn, catalog, existingObject, projectID, instituteID, collection);
 
+        if (existingObject != null && !overwrite) {
+            return new Tuple<>(existingObject, null);
+        }
+
+        CatalogRecord record = CatalogRecord.fetch(ppn, catalog);
+        Optional<String> manifestURL = record.getManifestURL();
+
+        if (existingObject != null && !record.isModified()
+            && keepsInstituteAndCollection(existingObject, instituteID, collection)) {
+            LOGGER.info("Record of ppn {} in catalog {} did not change, skip update of {}", ppn, catalog,
+                existingObject);
+            record.commit();
+            return new Tuple<>(existingObject, manifestURL.orElse(null));
+        }
+
+        instituteID = readInstituteFromOldObject(instituteID, existingObject);
+        collection = readCollectionFromOldObject(collection, existingObject);
+
+        Element mods = transformRecord(record, instituteID, collection);
+        MCRObjectID objectID = persistMods(record, mods, existingObject, projectID, instituteID, collection);
+        return new Tuple<>(objectID, manifestURL.orElse(null));
+    }
+
+    /**
+     * Transforms the stored record of a ppn again and updates its object, without asking the catalog.
+     *
+     * @return the id of the updated object
+     * @throws MCRException if there is no object or no stored record for the ppn
+     */
+    public static MCRObjectID retransformStoredRecord(String ppn, String catalog) throws Exception {
+        MCRObjectID existingObject = checkPPNExists(ppn, catalog);
+        if (existingObject == null) {
+            throw new MCRException("There is no existing object for ppn : " + ppn + " in catalog " + catalog);
+        }
+        CatalogRecord record = CatalogRecord.readStored(ppn, catalog).orElseThrow(
+            () -> new MCRException("There is no stored record for ppn : " + ppn + " in catalog " + catalog));
+
+        String instituteID = readInstituteFromOldObject(null, existingObject);
+        String collection = readCollectionFromOldObject(null, existingObject);
+        Element mods = transformRecord(record, instituteID, collection);
+        return persistMods(record, mods, existingObject, existingObject.getProjectId(), instituteID, collection);
+    }
+
+    /**
+     * Objects which do not exist yet can only be created if the project, institute and collection are known.
+     */
+    static void checkImportParameters(String ppn, String catalog, MCRObjectID existingObject, String projectID,
+        String instituteID, String collection) {
         if (existingObject == null && (
                 collection == null ||
                         collection.equals("null") ||
@@ -182,40 +307,42 @@ public class IIIFMapImporter {
         )) {
             throw new MCRException("There is no existing object for ppn : " + ppn + " in catalog " + catalog + " and institute or collection is missing!");
         }
+    }
 
-        if (existingObject != null && !overwrite) {
-            return new Tuple<>(existingObject, null);
-        }
-
-        String url = constructCatalogURL(ppn, catalog);
-        Document picaDocument = new SAXBuilder().build(new URL(url));
-
-        Optional<String> manifestURL = picaDocument.getRootElement().getChildren("datafield", PICA_NAMESPACE)
-                .stream()
-                .filter(element -> element.getAttributeValue("tag").equals("017H"))
-                .map(element -> element.getChildren("subfield", PICA_NAMESPACE)
-                        .stream()
-                        .filter(field -> field.getAttributeValue("code").equals("u"))
-                        .map(Element::getTextTrim)
-                        .findFirst())
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .findAny();
-
-        instituteID = readInstituteFromOldObject(instituteID, existingObject);
-        collection = readCollectionFromOldObject(collection, existingObject);
-
+    /**
+     * Transforms a catalog record to mods and converts its coordinates.
+     */
+    static Element transformRecord(CatalogRecord record, String instituteID, String collection)
+        throws Exception {
         MCRParameterCollector parameter = new MCRParameterCollector();
         parameter.setParameter("institute", instituteID);
         parameter.setParameter("collection", collection);
-        parameter.setParameter("MCR.PICA2MODS.DATABASE", catalog);
-        MCRParameterizedTransformer tx = (MCRParameterizedTransformer) MCRLayoutService.getContentTransformer("pica2mods_iiif",
-                parameter);
-        MCRContent resultMods = tx.transform(new MCRJDOMContent(picaDocument), parameter);
+        parameter.setParameter("MCR.PICA2MODS.DATABASE", record.getCatalog());
+        long start = System.nanoTime();
+        Element mods;
+        if (Pica2ModsTransformer.isEnabled()) {
+            mods = Pica2ModsTransformer.getInstance().transform(record.getDocument(), parameter);
+        } else {
+            MCRParameterizedTransformer tx = (MCRParameterizedTransformer) MCRLayoutService.getContentTransformer("pica2mods_iiif",
+                    parameter);
+            MCRContent resultMods = tx.transform(new MCRJDOMContent(record.getDocument()), parameter);
+            mods = resultMods.asXML().detachRootElement();
+        }
+        converCoordinates(mods);
+        ImportMetrics.getInstance().stop(ImportMetrics.Timer.TRANSFORM, start);
+        return mods;
+    }
 
+    /**
+     * Creates or updates the object of the mods. The host of the mods is imported first, if it does not exist yet.
+     * The catalog record is committed once the object is stored.
+     *
+     * @param existingObject the object of the ppn or null if it should be created
+     * @return the id of the object
+     */
+    static MCRObjectID persistMods(CatalogRecord record, Element mods, MCRObjectID existingObject, String projectID,
+        String instituteID, String collection) throws Exception {
         MCRMODSWrapper mw = new MCRMODSWrapper();
-        Element mods = resultMods.asXML().detachRootElement();
-        converCoordinates(mods);
         mw.setMODS(mods);
         MCRObject mcrObject = mw.getMCRObject();
 
@@ -228,7 +355,8 @@ public class IIIFMapImporter {
 
             Tuple<String, String> catalogPpnTuple = extractPPN(relatedItem);
 
-            MCRObjectID id = importPPN(catalogPpnTuple.getE2(), catalogPpnTuple.getE1(), projectID, instituteID, collection, false).getE1();
+            MCRObjectID id = importHost(catalogPpnTuple.getE2(), catalogPpnTuple.getE1(), projectID, instituteID,
+                collection);
             relatedItem.setAttribute("href", id.toString(), MCRConstants.XLINK_NAMESPACE);
             relatedItem.setAttribute("type", "simple", MCRConstants.XLINK_NAMESPACE);
             List<Element> children = relatedItem.getChildren()
@@ -239,20 +367,81 @@ public class IIIFMapImporter {
             children.forEach(relatedItem::removeContent);
         }
 
+        // the host is imported before the timer starts, it is timed by its own import
+        long start = System.nanoTime();
+        MCRObjectID objectID;
         if (existingObject != null) {
             mcrObject.setId(existingObject);
             MCRMetadataManager.update(mcrObject);
+            objectID = existingObject;
         } else {
-            MCRObjectID objectID = MCRObjectID.getNextFreeId(projectID + "_mods");
-            mcrObject.setId(objectID);
-            MCRMetadataManager.create(mcrObject);
-            existingPPNMap.put(ppn, objectID);
+            String key = record.getCatalog() + ":ppn:" + record.getPpn();
+            if (HOST_IMPORTS.isRunByCurrentThread(key)) {
+                // this is the import of a host, which already holds the key
+                objectID = createOrUpdate(record, mcrObject, projectID);
+            } else {
+                objectID = HOST_IMPORTS.run(key, () -> createOrUpdate(record, mcrObject, projectID));
+            }
+        }
+        ImportMetrics.getInstance().stop(ImportMetrics.Timer.PERSIST, start);
+        record.commit();
+
+        return objectID;
+    }
+
+    /**
+     * Creates the object of a ppn. The ppn is looked up again right before, because the object may have been
+     * created since the import looked it up, for example as host of another map.
+     */
+    private static MCRObjectID createOrUpdate(CatalogRecord record, MCRObject mcrObject, String projectID)
+        throws Exception {
+        MCRObjectID existingObject = checkPPNExists(record.getPpn(), record.getCatalog());
+        if (existingObject != null) {
+            LOGGER.info("Object {} for ppn {} was created in the meantime, update it", existingObject,
+                record.getPpn());
+            mcrObject.setId(existingObject);
+            MCRMetadataManager.update(mcrObject);
+            return existingObject;
         }
+        MCRObjectID objectID = MCRObjectID.getNextFreeId(projectID + "_mods");
+        mcrObject.setId(objectID);
+        MCRMetadataManager.create(mcrObject);
+        PPNLookupCache.getInstance().put(record.getCatalog(), record.getPpn(), objectID);
+        PPNObjectIndex.getInstance().put(record.getCatalog(), record.getPpn(), objectID);
+        return objectID;
+    }
+
+    /**
+     * Imports the host of a map, if it does not exist yet. Concurrent imports of the same host wait for the first
+     * one, so every host is created once, even if many sheets of a series are imported at the same time. The
+     * creation of objects in {@link #persistMods} uses the same keys, so a host is also created once if it is
+     * imported by its own row of a batch.
+     */
+    private static MCRObjectID importHost(String ppn, String catalog, String projectID, String instituteID,
+        String collection) throws Exception {
+        return HOST_IMPORTS.run(catalog + ":ppn:" + ppn,
+            () -> importPPN(ppn, catalog, projectID, instituteID, collection, false).getE1());
+    }
+
+    /**
+     * An object whose record did not change is only left alone if the import does not bring another institute or
+     * collection.
+     *
+     * @return true if the institute and collection were not passed or equal those of the object
+     */
+    static boolean keepsInstituteAndCollection(MCRObjectID existingObject, String instituteID, String collection) {
+        return keepsValue(instituteID, () -> readInstituteFromOldObject(null, existingObject))
+            && keepsValue(collection, () -> readCollectionFromOldObject(null, existingObject));
+    }
 
-        return new Tuple<>(mcrObject.getId(), manifestURL.orElse(null));
+    /**
+     * @param current reads the value of the object, only if a value was passed
+     */
+    static boolean keepsValue(String passed, Supplier<String> current) {
+        return passed == null || passed.equals("null") || passed.equals(current.get());
     }
 
-    private static String readInstituteFromOldObject(String instituteID, MCRObjectID existingObject) {
+    static String readInstituteFromOldObject(String instituteID, MCRObjectID existingObject) {
         MCRObject oldObj;
         if ((instituteID == null || instituteID.equals("null")) && existingObject != null) {
             oldObj = MCRMetadataManager.retrieveMCRObject(existingObject);
@@ -262,7 +451,7 @@ public class IIIFMapImporter {
         return instituteID;
     }
 
-    private static String readCollectionFromOldObject(String collection, MCRObjectID existingObject) {
+    static String readCollectionFromOldObject(String collection, MCRObjectID existingObject) {
         MCRObject oldObj;
         if ((collection == null || collection.equals("null")) && existingObject != null) {
             oldObj = MCRMetadataManager.retrieveMCRObject(existingObject);
@@ -272,22 +461,27 @@ public class IIIFMapImporter {
         return collection;
     }
 
-    private static String constructCatalogURL(String ppn, String catalog) {
-        return "https://unapi.k10plus.de/?&format=picaxml&id=" + catalog + ":ppn:" + ppn;
-    }
-
     public static Tuple<String, String> extractPPN(Element relatedItemOrMods) {
         return relatedItemOrMods
                 .getChildren("identifier", MCRConstants.MODS_NAMESPACE)
                 .stream()
                 .filter(el -> "uri".equals(el.getAttributeValue("type")))
                 .map(Element::getTextTrim)
-                .map(CATALOG_URL_REG_EXP_PATTERN::matcher)
-                .filter(Matcher::matches)
-                .map(matcher -> new Tuple<>(matcher.group(1), matcher.group(2)))
+                .map(IIIFMapImporter::parseCatalogURI)
+                .filter(Objects::nonNull)
                 .findFirst().orElse(null);
     }
 
+    /**
+     * Parses an identifier like <code>https://uri.gbv.de/document/ikar:ppn:100619533</code>.
+     *
+     * @return the catalog and the ppn or null if the identifier does not point to a catalog record
+     */
+    static Tuple<String, String> parseCatalogURI(String identifier) {
+        Matcher matcher = CATALOG_URL_REG_EXP_PATTERN.matcher(identifier);
+        return matcher.matches() ? new Tuple<>(matcher.group(1), matcher.group(2)) : null;
+    }
+
     private static void converCoordinates(Element modsRoot) {
         modsRoot.getChildren("subject", MCRConstants.MODS_NAMESPACE).forEach(ch -> {
             Element cartographics = ch.getChild("cartographics", MCRConstants.MODS_NAMESPACE);
@@ -305,134 +499,307 @@ public class IIIFMapImporter {
     }
 
     public static boolean testManifest(String manifestURL){
-        ObjectMapper iiifMapper = new IiifObjectMapper();
+        return ValidatedManifest.read(manifestURL).isPresent();
+    }
 
-        Manifest manifest = null;
-        try {
-            manifest = iiifMapper.readValue(
-                    new URL(manifestURL),
-                    Manifest.class);
-        } catch (IOException e) {
-            return false;
+    public static String downloadMaps(String manifestURL, Path targetFolder) throws IOException {
+        return downloadMaps(manifestURL, targetFolder, OutputFormat.getConfigured());
+    }
+
+    /**
+     * Downloads all images of the manifest to the target folder.
+     *
+     * @param format the format in which tiled images are stored, images without tiles are always stored as jpg
+     * @return the name of the first file, which should be used as main file of the derivate
+     */
+    public static String downloadMaps(String manifestURL, Path targetFolder, OutputFormat format) throws IOException {
+        Optional<ValidatedManifest> manifest = ValidatedManifest.read(manifestURL);
+        if (!manifest.isPresent()) {
+            return null;
         }
+        return downloadMaps(manifest.get(), targetFolder, format);
+    }
 
-        for (Sequence sequence : manifest.getSequences()) {
-            for (Canvas canvas : sequence.getCanvases()) {
-                List<Annotation> images = canvas.getImages();
-                if (images.size() != 1) {
-                    LOGGER.warn("More than or less then one Image found in Canvas {}", canvas);
-                    return false;
-                }
-                Annotation image = images.stream().findFirst().get();
-                Resource<ImageContent> imageResource = (Resource<ImageContent>) image.getResource();
-                List<Service> services = imageResource.getServices();
-                if (services.size() != 1) {
-                    LOGGER.warn("More than or less then one Services found in Image {}", image);
-                    return false;
+    /**
+     * Downloads all images of a validated manifest to the target folder.
+     *
+     * @param format the format in which tiled images are stored, images without tiles are always stored as jpg
+     * @return the name of the first file, which should be used as main file of the derivate
+     */
+    public static String downloadMaps(ValidatedManifest manifest, Path targetFolder, OutputFormat format)
+        throws IOException {
+        String mainFile = null;
+        try (IIIFTileFetcher tileFetcher = new IIIFTileFetcher()) {
+            for (ValidatedManifest.ManifestImage manifestImage : manifest.getImages()) {
+                Tuple<String, FileDigest> file = downloadImage(tileFetcher, manifest.getUrl(), manifestImage,
+                    targetFolder, format);
+                if (mainFile == null) {
+                    mainFile = file.getE1();
                 }
             }
         }
-        return true;
+        return mainFile;
     }
 
-    public static String downloadMaps(String manifestURL, Path targetFolder) throws IOException {
-        ObjectMapper iiifMapper = new IiifObjectMapper();
-        String mainFile = null;
-
-        Manifest manifest = iiifMapper.readValue(
-            new URL(manifestURL),
-            Manifest.class);
-
-        for (Sequence sequence : manifest.getSequences()) {
-            for (Canvas canvas : sequence.getCanvases()) {
-                List<Annotation> images = canvas.getImages();
-                if (images.size() != 1) {
-                    LOGGER.warn("More than or less then one Image found in Canvas {}", canvas);
-                    return null;
+    /**
+     * Downloads the image of one canvas to the target folder. The digest of the file is computed while it is written.
+     *
+     * @param manifestURL the url of the manifest, it is only used in messages
+     * @param format      the format in which tiled images are stored, images without tiles are always stored as jpg
+     * @return the name and the digest of the written file
+     */
+    static Tuple<String, FileDigest> downloadImage(IIIFTileFetcher tileFetcher, String manifestURL,
+        ValidatedManifest.ManifestImage manifestImage, Path targetFolder, OutputFormat format) throws IOException {
+        ObjectMapper iiifMapper = ValidatedManifest.IIIF_MAPPER;
+        ImportMetrics metrics = ImportMetrics.getInstance();
+        long imageStart = System.nanoTime();
+        String imageUrl = manifestImage.getServiceId();
+
+        byte[] bytes = readInfoJson(imageUrl);
+        // this is a hack because native quality is not supported in the iiif we use
+        String jsonContent = new String(bytes, StandardCharsets.UTF_8);
+        String s = jsonContent.replaceAll("\"native\",?", "");
+        ImageService imageService = iiifMapper.readValue(s, ImageService.class);
+
+        Integer width = imageService.getWidth();
+        Integer height = imageService.getHeight();
+
+        List<TileInfo> tiles = imageService.getTiles();
+        String baseName = imageUrl.substring(imageUrl.lastIndexOf('/') + 1);
+
+        String filename;
+        FileDigest digest;
+        if (tiles == null || tiles.size() == 0) {
+            filename = baseName + ".jpg";
+            String downloadURL = imageUrl + APPEND_MAX_QUALITY_JPG;
+            LOGGER.info("Download {} to {}", downloadURL, filename);
+            long downloadStart = System.nanoTime();
+            digest = HttpFetcher.getInstance().downloadWithDigest(downloadURL, targetFolder.resolve(filename));
+            metrics.add(ImportMetrics.Counter.IMAGE_BYTES, digest.getSize());
+            metrics.add(ImportMetrics.Counter.WRITTEN_BYTES, digest.getSize());
+            metrics.stop(ImportMetrics.Timer.TILE_DOWNLOAD, downloadStart);
+        } else {
+            TileInfo tileInfo = tiles.stream().findFirst().get();
+            filename = baseName + "." + format.getExtension();
+            TilePlanner planner = new TilePlanner(imageUrl, imageService, tileInfo);
+
+            int tileSizeWidth = tileInfo.getWidth();
+            // the height is optional and defaults to the width
+            int tileSizeHeight = tileInfo.getHeight() != null ? tileInfo.getHeight() : tileSizeWidth;
+
+            LOGGER.info("Writing resulting Image to {}", filename);
+            // the stripes are stitched while the writer encodes, their time is taken out of the encoding
+            AtomicLong stitchNanos = new AtomicLong();
+            RenditionBuilder renditions = null;
+            long writeStart = System.nanoTime();
+            FileDigest.DigestingOutputStream os = FileDigest.digesting(
+                Files.newOutputStream(targetFolder.resolve(filename)));
+            try (os) {
+                if (format == OutputFormat.PYRAMID_TIFF) {
+                    List<Integer> scaleFactors = getPyramidScaleFactors(tileInfo, width, height);
+                    int renditionLevel = getRenditionScaleFactor(scaleFactors, width, height);
+                    List<RenderedImage> levels = new ArrayList<>();
+                    for (int scaleFactor : scaleFactors) {
+                        int levelWidth = (width + scaleFactor - 1) / scaleFactor;
+                        int levelHeight = (height + scaleFactor - 1) / scaleFactor;
+                        RenditionBuilder levelRenditions = null;
+                        if (scaleFactor == renditionLevel) {
+                            renditions = RenditionBuilder.createConfigured(levelWidth, levelHeight);
+                            levelRenditions = renditions;
+                        }
+                        TilePlanner.Plan plan = planner.plan(scaleFactor);
+                        // the writer reads a whole row of tiff tiles before the next one, so a row of tiff tiles
+                        // must not span two stripes
+                        int tiffTileHeight = PyramidTiffWriter.roundToTiffTileSize(tileSizeHeight);
+                        int stripeHeight = (plan.getRowHeight() + tiffTileHeight - 1) / tiffTileHeight
+                            * tiffTileHeight;
+                        levels.add(createStripedImage(tileFetcher, plan.getTiles(), levelWidth, levelHeight,
+                            stripeHeight, filename, stitchNanos, levelRenditions));
+                    }
+                    PyramidTiffWriter.write(levels, tileSizeWidth, tileSizeHeight, os);
+                } else {
+                    TilePlanner.Plan plan = planner.plan(1);
+                    List<IIIFTileFetcher.Tile> tileList = plan.getTiles();
+                    LOGGER.info("Requesting {} regions of {}", tileList.size(), imageUrl);
+                    RenderedImage result;
+                    renditions = RenditionBuilder.createConfigured(width, height);
+                    if (isStripeStitching()) {
+                        if (!StripedImage.fitsInRaster(width, height)) {
+                            throw new IOException("The image " + filename + " in manifest " + manifestURL
+                                + " has " + width + "x" + height
+                                + " pixels, which is more than the JPEG writer can address!");
+                        }
+                        result = createStripedImage(tileFetcher, tileList, width, height,
+                            plan.getRowHeight(), filename, stitchNanos, renditions);
+                    } else {
+                        long stitchStart = System.nanoTime();
+                        BufferedImage stitched = new BufferedImage(width, height,
+                            BufferedImage.TYPE_INT_RGB);
+                        Graphics2D graphics = stitched.createGraphics();
+                        tileFetcher.fetch(tileList);
+                        drawTiles(tileFetcher, 0, height, graphics, filename, tileList.size());
+                        graphics.dispose();
+                        result = stitched;
+                        stitchNanos.addAndGet(System.nanoTime() - stitchStart);
+                        renditions.addRows(((DataBufferInt) stitched.getRaster().getDataBuffer()).getData(), 0, 0,
+                            height);
+                    }
+                    if (!ImageIO.write(result, "jpg", os)) {
+                        throw new IOException("Could not find a writer for the Image: " + filename + " in manifest "
+                            + manifestURL);
+                    }
                 }
-                Annotation image = images.stream().findFirst().get();
-                Resource<ImageContent> imageResource = (Resource<ImageContent>) image.getResource();
-                List<Service> services = imageResource.getServices();
-                if (services.size() != 1) {
-                    LOGGER.warn("More than or less then one Services found in Image {}", image);
-                    return null;
+            } catch (UncheckedIOException e) {
+                // a tile could not be fetched while the stripes were written
+                throw e.getCause();
+            }
+            // the rows of the renditions are averaged while the writer encodes, like the stitching
+            long rowNanos = renditions != null ? renditions.getNanos() : 0;
+            metrics.record(ImportMetrics.Timer.STITCH, stitchNanos.get());
+            metrics.record(ImportMetrics.Timer.ENCODE, System.nanoTime() - writeStart - stitchNanos.get() - rowNanos);
+            digest = os.getDigest();
+            metrics.add(ImportMetrics.Counter.WRITTEN_BYTES, digest.getSize());
+            if (renditions != null && !renditions.isEmpty()) {
+                for (String rendition : renditions.write(targetFolder, filename)) {
+                    metrics.add(ImportMetrics.Counter.WRITTEN_BYTES, Files.size(targetFolder.resolve(rendition)));
                 }
+                metrics.record(ImportMetrics.Timer.RENDITION, renditions.getNanos());
+            }
+        }
+        metrics.stop(ImportMetrics.Timer.IMAGE, imageStart);
+        return new Tuple<>(filename, digest);
+    }
 
-                Service service = services.stream().findFirst().get();
-                String imageUrl = service.getIdentifier().toString();
-
+    /**
+     * Reads the info.json of an image service. It is revalidated with a conditional request if revalidation is
+     * enabled, otherwise it is taken from the tile cache.
+     */
+    private static byte[] readInfoJson(String imageUrl) throws IOException {
+        String infoURL = imageUrl + "/info.json";
+        long start = System.nanoTime();
+        ConditionalHttpFetcher fetcher = ConditionalHttpFetcher.getInstance();
+        byte[] content;
+        if (fetcher.isEnabled()) {
+            ConditionalHttpFetcher.Response response = fetcher.fetch(infoURL);
+            response.commit();
+            content = response.getContent();
+        } else {
+            content = IIIFTileCache.getInstance().getOrLoad(IIIFTileCache.key(imageUrl, "info.json", ""),
+                () -> HttpFetcher.getInstance().fetch(infoURL));
+        }
+        ImportMetrics.getInstance().stop(ImportMetrics.Timer.IMAGE_INFO, start);
+        return content;
+    }
 
-                URL imageURL = new URL(imageUrl + "/info.json");
-                String s;
-                // this is a hack because native quality is not supported in the iiif we use
-                try (InputStream is = imageURL.openStream()) {
-                    byte[] bytes = is.readAllBytes();
-                    String jsonContent = new String(bytes, StandardCharsets.UTF_8);
-                    s = jsonContent.replaceAll("\"native\",?", "");
-                }
-                ImageService imageService = iiifMapper.readValue(s, ImageService.class);
+    /**
+     * Returns the scale factors of the levels of a pyramid tiff. It starts with the full resolution and ends with the
+     * first level which fits in a single tile.
+     */
+    private static List<Integer> getPyramidScaleFactors(TileInfo tileInfo, int width, int height) {
+        int tileSizeWidth = tileInfo.getWidth();
+        int tileSizeHeight = tileInfo.getHeight() != null ? tileInfo.getHeight() : tileSizeWidth;
+        List<Integer> scaleFactors = new ArrayList<>();
+        scaleFactors.add(1);
+        if (tileInfo.getScaleFactors() == null) {
+            return scaleFactors;
+        }
+        List<Integer> available = tileInfo.getScaleFactors().stream()
+            .filter(scaleFactor -> scaleFactor > 1)
+            .sorted()
+            .collect(Collectors.toList());
+        for (int scaleFactor : available) {
+            if (width <= tileSizeWidth * scaleFactors.get(scaleFactors.size() - 1)
+                && height <= tileSizeHeight * scaleFactors.get(scaleFactors.size() - 1)) {
+                break;
+            }
+            scaleFactors.add(scaleFactor);
+        }
+        return scaleFactors;
+    }
 
-                Integer width = imageService.getWidth();
-                Integer height = imageService.getHeight();
+    /**
+     * Creates an image which fetches the tiles of a row when the image writer reaches it. The stripes do not have to
+     * line up with the rows of tiles, tiles which reach into the next stripe are drawn into it again.
+     *
+     * @param stitchNanos the time spent waiting for and drawing tiles is added to it
+     */
+    private static StripedImage createStripedImage(IIIFTileFetcher tileFetcher, List<IIIFTileFetcher.Tile> tileList,
+        int width, int height, int stripeHeight, String filename, AtomicLong stitchNanos,
+        StripedImage.StripeListener listener) {
+        List<IIIFTileFetcher.FetchedTile> overlapping = new ArrayList<>();
+        return new StripedImage(width, height, stripeHeight, (stripe, y, rows, graphics) -> {
+            long start = System.nanoTime();
+            if (stripe == 0) {
+                // the tiles of a level are only requested when the writer reaches it
+                tileFetcher.fetch(tileList);
+            }
+            List<IIIFTileFetcher.FetchedTile> previous = new ArrayList<>(overlapping);
+            overlapping.clear();
+            for (IIIFTileFetcher.FetchedTile fetchedTile : previous) {
+                drawTile(fetchedTile, y, y + rows, graphics, overlapping);
+            }
+            drawTiles(tileFetcher, y, y + rows, graphics, filename, tileList.size(), overlapping);
+            stitchNanos.addAndGet(System.nanoTime() - start);
+        }, listener);
+    }
 
-                List<TileInfo> tiles = imageService.getTiles();
-                String filename = imageUrl.substring(imageUrl.lastIndexOf('/') + 1) + ".jpg";
+    /**
+     * Returns the scale factor of the smallest pyramid level which is still larger than all renditions, so the
+     * renditions average as few pixels as possible.
+     */
+    private static int getRenditionScaleFactor(List<Integer> scaleFactors, int width, int height) {
+        int largestRendition = RenditionBuilder.getConfiguredSizes().values().stream()
+            .mapToInt(Integer::intValue).max().orElse(0);
+        int renditionScaleFactor = 1;
+        for (int scaleFactor : scaleFactors) {
+            int levelLongEdge = (Math.max(width, height) + scaleFactor - 1) / scaleFactor;
+            if (levelLongEdge > largestRendition) {
+                renditionScaleFactor = scaleFactor;
+            }
+        }
+        return renditionScaleFactor;
+    }
 
-                if (tiles == null || tiles.size() == 0) {
-                    String downloadURL = imageUrl + APPEND_MAX_QUALITY_JPG;
-                    LOGGER.info("Download {} to {}", downloadURL, filename);
-                    try (InputStream is = new URL(downloadURL).openStream()) {
-                        if (mainFile == null) {
-                            mainFile = filename;
-                        }
-                        Files.copy(is, targetFolder.resolve(filename), StandardCopyOption.REPLACE_EXISTING);
-                    }
-                } else {
-                    TileInfo tileInfo = tiles.stream().findFirst().get();
-
-                    Integer tileSizeWidth = tileInfo.getWidth();
-                    Integer tileSizeHeight = tileInfo.getHeight();
-
-                    double xTiles = Math.ceil((double) width / tileSizeWidth);
-                    double yTiles = Math.ceil((double) height / tileSizeHeight);
-
-                    BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-                    Graphics graphics = result.getGraphics();
-
-                    for (int yTile = 0; yTile < yTiles; yTile++) {
-                        int yStart = yTile * tileSizeWidth;
-                        int yEnd = Math.min(yStart + tileSizeHeight, height); // should only be triggered at corner tile
-                        int curTileHeight = yEnd - yStart;
-                        for (int xTile = 0; xTile < xTiles; xTile++) {
-                            int xStart = xTile * tileSizeWidth;
-                            int xEnd = Math.min(xStart + tileSizeWidth, width); // should only be triggered at corner tile
-                            int curTileWidth = xEnd - xStart;
-
-                            String tileURL = imageUrl + "/" + xStart + "," + yStart + "," + curTileWidth + "," + curTileHeight + "/full/0/default.jpg";
-                            LOGGER.info("Downloading and draw tile {}/{} x:{}/{} y:{}/{} of {}", (yTile * xTiles) + xTile, xTiles * yTiles, xTile, xTiles, yTile, yTiles, filename);
-                            try (InputStream is = new URL(tileURL).openStream()) {
-                                BufferedImage tileImage = ImageIO.read(is);
-                                graphics.drawImage(tileImage, xStart, yStart, null);
-                            }
-                        }
-                    }
-                    graphics.dispose();
+    private static boolean isStripeStitching() {
+        return MCRConfiguration2.getString(STITCHING_PROPERTY).orElse(STITCHING_STRIPES).equals(STITCHING_STRIPES);
+    }
 
+    /**
+     * Draws the next tiles of the fetcher until all tiles which start above the row <code>yEnd</code> are drawn.
+     *
+     * @param yStart   the row of the target image which is the point 0 of the graphics
+     */
+    private static void drawTiles(IIIFTileFetcher tileFetcher, int yStart, int yEnd, Graphics2D graphics,
+        String filename, int tileCount) throws IOException {
+        drawTiles(tileFetcher, yStart, yEnd, graphics, filename, tileCount, null);
+    }
 
-                    LOGGER.info("Writing resulting Image to {}", filename);
-                    try (OutputStream os = Files.newOutputStream(targetFolder.resolve(filename))) {
-                        if (!ImageIO.write(result, "jpg", os)) {
-                            throw new IOException("Could not find a writer for the Image: " + filename + " in manifest " + manifestURL);
-                        }
-                        if (mainFile == null) {
-                            mainFile = filename;
-                        }
-                    }
-                }
+    /**
+     * Draws the next tiles like {@link #drawTiles(IIIFTileFetcher, int, int, Graphics2D, String, int)}.
+     *
+     * @param overlapping the tiles which reach below the row <code>yEnd</code> are added to it, may be null
+     */
+    private static void drawTiles(IIIFTileFetcher tileFetcher, int yStart, int yEnd, Graphics2D graphics,
+        String filename, int tileCount, List<IIIFTileFetcher.FetchedTile> overlapping) throws IOException {
+        while (tileFetcher.hasNext() && tileFetcher.peek().getY() < yEnd) {
+            IIIFTileFetcher.FetchedTile fetchedTile = tileFetcher.next();
+            IIIFTileFetcher.Tile tile = fetchedTile.getTile();
+            LOGGER.info("Downloaded and draw tile {}/{} x:{} y:{} of {}", fetchedTile.getNumber(), tileCount,
+                tile.getX(), tile.getY(), filename);
+            drawTile(fetchedTile, yStart, yEnd, graphics, overlapping);
+            ImportMetrics.getInstance().increment(ImportMetrics.Counter.TILES);
+        }
+    }
 
-            }
+    private static void drawTile(IIIFTileFetcher.FetchedTile fetchedTile, int yStart, int yEnd, Graphics2D graphics,
+        List<IIIFTileFetcher.FetchedTile> overlapping) {
+        IIIFTileFetcher.Tile tile = fetchedTile.getTile();
+        // the server derives the height of a scaled tile from its width and may round it differently
+        graphics.drawImage(fetchedTile.getImage(), tile.getX(), tile.getY() - yStart, tile.getWidth(),
+            tile.getHeight(), null);
+        if (overlapping != null && tile.getY() + tile.getHeight() > yEnd) {
+            overlapping.add(fetchedTile);
         }
-        return mainFile;
     }
 
     private static MCRObjectID getNewCreateDerivateID(MCRObjectID objId) {
@@ -469,20 +836,28 @@ public class IIIFMapImporter {
         return derivate;
     }
 
-    private static MCRObjectID checkPPNExists(String ppn, String catalog) {
+    static MCRObjectID checkPPNExists(String ppn, String catalog) {
+        PPNObjectIndex index = PPNObjectIndex.getInstance();
+        if (index.isLoaded()) {
+            return index.get(catalog, ppn).orElse(null);
+        }
         // check if already exist
-        if (existingPPNMap.containsKey(ppn)) {
+        PPNLookupCache cache = PPNLookupCache.getInstance();
+        Optional<MCRObjectID> cached = cache.get(catalog, ppn);
+        if (cached.isPresent()) {
             LOGGER.info("Object for ppn {} already exists!", ppn);
-            return existingPPNMap.get(ppn);
+            return cached.get();
         }
         try {
+            long start = System.nanoTime();
             final SolrDocument first = MCRSolrSearchUtils
-                    .first(MCRSolrClientFactory.getMainSolrClient(), "+mods.identifier:\"" + "https://uri.gbv.de/document/" + catalog + ":ppn:" + ppn + "\"");
+                    .first(MCRSolrClientFactory.getMainSolrClient(), "+mods.identifier:\"" + PPNObjectIndex.CATALOG_URI_PREFIX + catalog + ":ppn:" + ppn + "\"");
+            ImportMetrics.getInstance().stop(ImportMetrics.Timer.SOLR_LOOKUP, start);
             if (first != null) {
                 LOGGER.info("Object for ppn {} already exists!", ppn);
                 final String id = (String) first.getFirstValue("id");
                 MCRObjectID objectID = MCRObjectID.getInstance(id);
-                existingPPNMap.put(ppn, objectID);
+                PPNLookupCache.getInstance().put(catalog, ppn, objectID);
                 return objectID;
             } else {
                 return null;
@@ -493,6 +868,40 @@ public class IIIFMapImporter {
     }
 
 
+    /**
+     * The file formats in which stitched images can be stored.
+     */
+    public enum OutputFormat {
+        /**
+         * a single baseline jpg
+         */
+        JPEG("jpg"),
+
+        /**
+         * a tiled tiff which contains all resolution levels the image service offers
+         */
+        PYRAMID_TIFF("tif"),
+
+        /**
+         * only the renditions, the derivate references the images in full resolution, see {@link IIIFReferences}
+         */
+        IIIF_REFERENCE("jpg");
+
+        private final String extension;
+
+        OutputFormat(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public static OutputFormat getConfigured() {
+            return MCRConfiguration2.getString(FORMAT_PROPERTY).map(OutputFormat::valueOf).orElse(JPEG);
+        }
+    }
+
     public static class Tuple<T1,T2> {
         T1 e1;
         T2 e2;
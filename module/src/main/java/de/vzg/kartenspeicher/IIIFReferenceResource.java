@@ -0,0 +1,64 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.mycore.access.MCRAccessManager;
+import org.mycore.datamodel.metadata.MCRObjectID;
+import org.mycore.datamodel.niofs.MCRPath;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Optional;
+
+/**
+ * Serves the images of derivates which only reference them in full resolution, see {@link IIIFReferences}. The
+ * first request of an image stitches it from the image service of the library, later requests read it from the local
+ * cache. The renditions, which the derivate holds as well, are fetched with a size request.
+ * <p>
+ * The images are available at <code>rsc/kartenspeicher/reference/{derivate}/{file}</code>, the renditions of an image
+ * under their usual names.
+ */
+@Path("kartenspeicher/reference")
+public class IIIFReferenceResource {
+
+    @GET
+    @Path("{derivate}/{file}")
+    public Response getImage(@PathParam("derivate") String derivate, @PathParam("file") String file)
+        throws IOException {
+        if (!MCRObjectID.isValid(derivate)) {
+            throw new NotFoundException();
+        }
+        MCRObjectID derivateID = MCRObjectID.getInstance(derivate);
+        if (!MCRAccessManager.checkDerivateContentPermission(derivateID, MCRAccessManager.PERMISSION_READ)) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        Optional<IIIFReferences> references = IIIFReferences.read(MCRPath.getPath(derivate, "/"));
+        if (!references.isPresent()) {
+            throw new NotFoundException();
+        }
+        java.nio.file.Path image = references.get().fetch(file).orElseThrow(NotFoundException::new);
+        // the stream keeps the file readable even if the cache evicts it in the meantime
+        return Response.ok(Files.newInputStream(image), "image/jpeg").build();
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mycore.common.MCRException;
+import org.mycore.common.config.MCRConfiguration2;
+import org.mycore.datamodel.niofs.utils.MCRRecursiveDeleter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * A derivate which stores only references to the images of a manifest instead of their pixels, for collections whose
+ * library runs a IIIF server we can rely on. The import writes {@link #RECORD_FILE} with the image service, canvas
+ * and dimensions of every image. Beside it the derivate only holds the renditions of the images, each fetched with a
+ * single IIIF size request, so the viewer, the thumbnails and the file listing find real files and the largest
+ * rendition of the first image is the main file. Images smaller than every rendition are stored as they are.
+ * <p>
+ * The images in full resolution are stitched when they are requested for the first time and kept in a local cache,
+ * which is limited to {@link #CACHE_MAX_SIZE_PROPERTY} bytes and drops the least recently viewed images first. A
+ * rendition requested from the cache is fetched with a size request as well, without stitching the image.
+ */
+public class IIIFReferences {
+
+    /**
+     * The file in the derivate which holds the references.
+     */
+    public static final String RECORD_FILE = ".iiif-references.properties";
+
+    public static final String CACHE_DIRECTORY_PROPERTY = "MCR.Kartenspeicher.ReferenceCache.Directory";
+
+    public static final String CACHE_MAX_SIZE_PROPERTY = "MCR.Kartenspeicher.ReferenceCache.MaxSize";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    /**
+     * Concurrent first requests of an image or of a rendition fetch it only once.
+     */
+    private static final SingleFlight<String, Integer> FETCHES = new SingleFlight<>();
+
+    private final String manifestURL;
+
+    private final Map<String, ValidatedManifest.ManifestImage> images;
+
+    private IIIFReferences(String manifestURL, Map<String, ValidatedManifest.ManifestImage> images) {
+        this.manifestURL = manifestURL;
+        this.images = images;
+    }
+
+    /**
+     * Replaces the content of the derivate with the references to the images of the manifest and their renditions.
+     * Downloaded images of an earlier import are removed after the renditions were fetched.
+     *
+     * @param root the root of the derivate
+     * @return the largest rendition of the first image, which should be used as main file of the derivate
+     */
+    public static String write(Path root, ValidatedManifest manifest) throws IOException {
+        Map<String, ValidatedManifest.ManifestImage> images = new LinkedHashMap<>();
+        for (ValidatedManifest.ManifestImage image : manifest.getImages()) {
+            // the same image in two canvases is referenced once
+            images.putIfAbsent(getFilename(image.getServiceId()), image);
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty("manifest", manifest.getUrl());
+        int i = 0;
+        for (Map.Entry<String, ValidatedManifest.ManifestImage> image : images.entrySet()) {
+            properties.setProperty(i + ".file", image.getKey());
+            properties.setProperty(i + ".service", image.getValue().getServiceId());
+            setIfPresent(properties, i + ".canvas", image.getValue().getCanvasId());
+            setIfPresent(properties, i + ".width", image.getValue().getWidth());
+            setIfPresent(properties, i + ".height", image.getValue().getHeight());
+            i++;
+        }
+        try (OutputStream os = Files.newOutputStream(root.resolve(RECORD_FILE))) {
+            properties.store(os, "References to the images, written by the import");
+        }
+
+        Set<String> current = new HashSet<>();
+        current.add(RECORD_FILE);
+        String mainFile = null;
+        HttpFetcher fetcher = HttpFetcher.getInstance();
+        for (Map.Entry<String, ValidatedManifest.ManifestImage> image : images.entrySet()) {
+            List<String> files = new ArrayList<>();
+            Map<String, Integer> renditions = getRenditionSizes(image.getValue());
+            if (renditions.isEmpty()) {
+                fetcher.download(image.getValue().getServiceId() + "/full/full/0/default.jpg",
+                    root.resolve(image.getKey()));
+                files.add(image.getKey());
+            }
+            for (Map.Entry<String, Integer> rendition : renditions.entrySet()) {
+                String filename = RenditionBuilder.getFilename(image.getKey(), rendition.getKey());
+                fetcher.download(getSizeURL(image.getValue(), rendition.getValue()), root.resolve(filename));
+                files.add(filename);
+            }
+            current.addAll(files);
+            if (mainFile == null) {
+                mainFile = files.get(0);
+            }
+        }
+
+        List<Path> stale = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root)) {
+            for (Path file : files) {
+                if (!current.contains(file.getFileName().toString())) {
+                    stale.add(file);
+                }
+            }
+        }
+        for (Path file : stale) {
+            LOGGER.info("Removing {}, the derivate only references its images now", file);
+            Files.walkFileTree(file, MCRRecursiveDeleter.instance());
+        }
+        LOGGER.info("Referenced {} images of {} in {} with {} renditions", images.size(), manifest.getUrl(), root,
+            current.size() - 1);
+        return mainFile;
+    }
+
+    /**
+     * Reads the references of a derivate.
+     *
+     * @param root the root of the derivate
+     * @return the references or an empty optional if the derivate stores its images
+     */
+    public static Optional<IIIFReferences> read(Path root) throws IOException {
+        Path recordFile = root.resolve(RECORD_FILE);
+        if (!Files.exists(recordFile)) {
+            return Optional.empty();
+        }
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(recordFile)) {
+            properties.load(is);
+        }
+        Map<String, ValidatedManifest.ManifestImage> images = new LinkedHashMap<>();
+        for (int i = 0; properties.containsKey(i + ".file"); i++) {
+            images.put(properties.getProperty(i + ".file"), new ValidatedManifest.ManifestImage(
+                properties.getProperty(i + ".canvas"), properties.getProperty(i + ".service"),
+                parseInteger(properties.getProperty(i + ".width")),
+                parseInteger(properties.getProperty(i + ".height"))));
+        }
+        return Optional.of(new IIIFReferences(properties.getProperty("manifest"), images));
+    }
+
+    /**
+     * @return the sizes of the configured renditions which are smaller than the image, largest first
+     */
+    private static Map<String, Integer> getRenditionSizes(ValidatedManifest.ManifestImage image) {
+        int longEdge = image.getWidth() == null || image.getHeight() == null ? Integer.MAX_VALUE
+            : Math.max(image.getWidth(), image.getHeight());
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        RenditionBuilder.getConfiguredSizes().entrySet().stream()
+            .filter(size -> size.getValue() < longEdge)
+            .sorted(Map.Entry.<String, Integer>comparingByValue(Comparator.reverseOrder()))
+            .forEach(size -> sizes.put(size.getKey(), size.getValue()));
+        return sizes;
+    }
+
+    /**
+     * @param size the longer edge of the requested image
+     * @return the IIIF request of the whole image scaled to the size
+     */
+    private static String getSizeURL(ValidatedManifest.ManifestImage image, int size) {
+        if (image.getWidth() == null || image.getHeight() == null) {
+            return image.getServiceId() + "/full/!" + size + "," + size + "/0/default.jpg";
+        }
+        int width = Math.max(1, (int) Math.round((double) image.getWidth() * size
+            / Math.max(image.getWidth(), image.getHeight())));
+        return image.getServiceId() + "/full/" + width + ",/0/default.jpg";
+    }
+
+    /**
+     * @return the name under which the importer stores the image of the service
+     */
+    static String getFilename(String serviceId) {
+        return serviceId.substring(serviceId.lastIndexOf('/') + 1) + "."
+            + IIIFMapImporter.OutputFormat.JPEG.getExtension();
+    }
+
+    public String getManifestURL() {
+        return manifestURL;
+    }
+
+    /**
+     * @return the names of the referenced images
+     */
+    public Set<String> getFilenames() {
+        return Collections.unmodifiableSet(images.keySet());
+    }
+
+    /**
+     * @return the referenced image with its dimensions
+     */
+    public Optional<ValidatedManifest.ManifestImage> getImage(String filename) {
+        return Optional.ofNullable(images.get(filename));
+    }
+
+    /**
+     * Returns the local copy of a referenced image or of one of its renditions. An image which is not cached is
+     * stitched first, a rendition is fetched with a size request.
+     *
+     * @param filename the name of an image or a rendition
+     * @return the cached file or an empty optional if the derivate has no such file
+     */
+    public Optional<Path> fetch(String filename) throws IOException {
+        return fetch(filename, InstanceHolder.CACHE);
+    }
+
+    Optional<Path> fetch(String filename, IIIFTileCache cache) throws IOException {
+        if (!cache.isEnabled()) {
+            throw new MCRException("The referenced images can not be fetched, because " + CACHE_MAX_SIZE_PROPERTY
+                + " is 0");
+        }
+        for (Map.Entry<String, ValidatedManifest.ManifestImage> image : images.entrySet()) {
+            if (image.getKey().equals(filename)) {
+                return fetch(filename, image.getValue(), cache, image.getValue().getServiceId(),
+                    () -> stitch(image.getValue(), cache));
+            }
+            for (Map.Entry<String, Integer> rendition : getRenditionSizes(image.getValue()).entrySet()) {
+                if (RenditionBuilder.getFilename(image.getKey(), rendition.getKey()).equals(filename)) {
+                    String url = getSizeURL(image.getValue(), rendition.getValue());
+                    return fetch(filename, image.getValue(), cache, url,
+                        () -> download(image.getValue(), url, filename, cache));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Fetches a file into the cache if it is not there yet.
+     *
+     * @param flight the key under which concurrent fetches of the same file are merged
+     */
+    private static Optional<Path> fetch(String filename, ValidatedManifest.ManifestImage image, IIIFTileCache cache,
+        String flight, Callable<Integer> fetcher) throws IOException {
+        String key = IIIFTileCache.key(image.getServiceId(), "full", filename);
+        Optional<Path> cached = cache.getCachedFile(key);
+        if (cached.isPresent()) {
+            return cached;
+        }
+        try {
+            FETCHES.run(flight, fetcher);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not fetch " + filename + " from " + image.getServiceId(), e);
+        }
+        return cache.getCachedFile(key);
+    }
+
+    /**
+     * Downloads a rendition with a size request into a temporary directory of the cache and moves it in.
+     *
+     * @return the number of cached files
+     */
+    private static int download(ValidatedManifest.ManifestImage image, String url, String filename,
+        IIIFTileCache cache) throws IOException {
+        Path temp = cache.createTempDirectory();
+        try {
+            Path file = temp.resolve(filename);
+            HttpFetcher.getInstance().download(url, file);
+            cache.putFile(IIIFTileCache.key(image.getServiceId(), "full", filename), file);
+            return 1;
+        } finally {
+            Files.walkFileTree(temp, MCRRecursiveDeleter.instance());
+        }
+    }
+
+    /**
+     * Stitches the image and its renditions into a temporary directory of the cache and moves them in.
+     *
+     * @return the number of cached files
+     */
+    private int stitch(ValidatedManifest.ManifestImage image, IIIFTileCache cache) throws IOException {
+        long start = System.nanoTime();
+        Path temp = cache.createTempDirectory();
+        try {
+            try (IIIFTileFetcher tileFetcher = new IIIFTileFetcher()) {
+                IIIFMapImporter.downloadImage(tileFetcher, manifestURL, image, temp,
+                    IIIFMapImporter.OutputFormat.JPEG);
+            }
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stitched = Files.newDirectoryStream(temp)) {
+                stitched.forEach(files::add);
+            }
+            for (Path file : files) {
+                cache.putFile(IIIFTileCache.key(image.getServiceId(), "full", file.getFileName().toString()), file);
+            }
+            LOGGER.info("Fetched {} referenced by {} in {} ms", image.getServiceId(), manifestURL,
+                (System.nanoTime() - start) / 1_000_000);
+            return files.size();
+        } finally {
+            Files.walkFileTree(temp, MCRRecursiveDeleter.instance());
+        }
+    }
+
+    private static void setIfPresent(Properties properties, String key, Object value) {
+        if (value != null) {
+            properties.setProperty(key, value.toString());
+        }
+    }
+
+    private static Integer parseInteger(String value) {
+        return value == null ? null : Integer.valueOf(value);
+    }
+
+    private static class InstanceHolder {
+        private static final IIIFTileCache CACHE = new IIIFTileCache(
+            Paths.get(MCRConfiguration2.getStringOrThrow(CACHE_DIRECTORY_PROPERTY)),
+            MCRConfiguration2.getLong(CACHE_MAX_SIZE_PROPERTY).orElse(0L));
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mycore.common.MCRException;
+import org.mycore.common.MCRUtils;
+import org.mycore.common.config.MCRConfiguration2;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A local cache for the responses of IIIF image services. The entries are keyed by the image service id, the region
+ * and the size of the request and survive restarts, so an interrupted or repeated import of a manifest reads the
+ * tiles it already fetched from disk.
+ * <p>
+ * The cache is limited to {@link #MAX_SIZE_PROPERTY} bytes. If it grows larger the least recently used entries are
+ * deleted.
+ */
+public class IIIFTileCache {
+
+    public static final String DIRECTORY_PROPERTY = "MCR.Kartenspeicher.TileCache.Directory";
+
+    public static final String MAX_SIZE_PROPERTY = "MCR.Kartenspeicher.TileCache.MaxSize";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    /**
+     * After an eviction the cache is filled to this fraction of the maximum size, so not every write evicts again.
+     */
+    private static final double EVICTION_TARGET = 0.9;
+
+    private static final String TEMP_PREFIX = "tmp-";
+
+    private final Path directory;
+
+    private final long maxSize;
+
+    private final AtomicLong size = new AtomicLong(-1);
+
+    public IIIFTileCache(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    public static IIIFTileCache getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * @return true if the cache stores anything, it is disabled by setting the maximum size to 0
+     */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Builds the key of a request to an image service.
+     *
+     * @param serviceId the id of the image service
+     * @param region    the region parameter of the request or <code>info.json</code>
+     * @param size      the size parameter of the request, empty for the info.json
+     */
+    public static String key(String serviceId, String region, String size) {
+        return serviceId + "/" + region + "/" + size;
+    }
+
+    /**
+     * Reads a cached entry and marks it as recently used.
+     *
+     * @return the content or an empty optional if the key is not cached
+     */
+    public Optional<byte[]> get(String key) {
+        if (!isEnabled()) {
+            return Optional.empty();
+        }
+        Path file = getFile(key);
+        try {
+            byte[] content = Files.readAllBytes(file);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return Optional.of(content);
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            LOGGER.warn("Could not read cached entry {} from {}", key, file, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Stores an entry. Errors are only logged, because a failing cache should not break an import.
+     */
+    public void put(String key, byte[] content) {
+        if (!isEnabled()) {
+            return;
+        }
+        Path file = getFile(key);
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), TEMP_PREFIX, null);
+            Files.write(temp, content);
+            long previousSize = Files.exists(file) ? Files.size(file) : 0;
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (getSize().addAndGet(content.length - previousSize) > maxSize) {
+                evict();
+            }
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.warn("Could not cache entry {} in {}", key, file, e);
+        }
+    }
+
+    /**
+     * Returns the file of a cached entry and marks it as recently used. Large entries, like whole images, should be
+     * read from the file instead of {@link #get(String)}.
+     *
+     * @return the file or an empty optional if the key is not cached
+     */
+    public Optional<Path> getCachedFile(String key) {
+        if (!isEnabled()) {
+            return Optional.empty();
+        }
+        Path file = getFile(key);
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return Optional.of(file);
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            LOGGER.warn("Could not touch cached entry {} in {}", key, file, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Moves a file into the cache as the entry of the key. The file has to be on the same file system as the cache.
+     *
+     * @return the file of the entry
+     */
+    public Path putFile(String key, Path source) throws IOException {
+        Path file = getFile(key);
+        Files.createDirectories(file.getParent());
+        long previousSize = Files.exists(file) ? Files.size(file) : 0;
+        long fileSize = Files.size(source);
+        Files.move(source, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (getSize().addAndGet(fileSize - previousSize) > maxSize) {
+            evict();
+        }
+        return file;
+    }
+
+    /**
+     * Creates a temporary directory in the cache, so files written to it can be moved in with
+     * {@link #putFile(String, Path)}.
+     */
+    public Path createTempDirectory() throws IOException {
+        Files.createDirectories(directory);
+        return Files.createTempDirectory(directory, TEMP_PREFIX);
+    }
+
+    public void remove(String key) {
+        if (!isEnabled()) {
+            return;
+        }
+        Path file = getFile(key);
+        try {
+            long fileSize = Files.size(file);
+            if (Files.deleteIfExists(file)) {
+                getSize().addAndGet(-fileSize);
+            }
+        } catch (NoSuchFileException e) {
+            // nothing to remove
+        } catch (IOException e) {
+            LOGGER.warn("Could not remove cached entry {} from {}", key, file, e);
+        }
+    }
+
+    /**
+     * Returns the cached entry or loads and caches it.
+     */
+    public byte[] getOrLoad(String key, Loader loader) throws IOException {
+        Optional<byte[]> cached = get(key);
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+        byte[] content = loader.load();
+        put(key, content);
+        return content;
+    }
+
+    private Path getFile(String key) {
+        String hash = hash(key);
+        return directory.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    private static String hash(String key) {
+        try {
+            return MCRUtils.asSHA256String(1, null, key);
+        } catch (NoSuchAlgorithmException e) {
+            throw new MCRException("SHA-256 is not supported!", e);
+        }
+    }
+
+    private AtomicLong getSize() {
+        if (size.get() < 0) {
+            synchronized (size) {
+                if (size.get() < 0) {
+                    size.set(listEntries().stream().mapToLong(Entry::getSize).sum());
+                }
+            }
+        }
+        return size;
+    }
+
+    private List<Entry> listEntries() {
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files
+                .filter(Files::isRegularFile)
+                .filter(file -> !isTemporary(file))
+                .map(Entry::new)
+                .filter(entry -> entry.getSize() >= 0)
+                .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return true for temporary files and the files in temporary directories, which are not entries yet
+     */
+    private boolean isTemporary(Path file) {
+        for (Path name : directory.relativize(file)) {
+            if (name.toString().startsWith(TEMP_PREFIX)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache is below {@link #EVICTION_TARGET} of its maximum size.
+     */
+    private synchronized void evict() {
+        if (size.get() <= maxSize) {
+            return;
+        }
+        List<Entry> entries = listEntries();
+        long currentSize = entries.stream().mapToLong(Entry::getSize).sum();
+        long targetSize = (long) (maxSize * EVICTION_TARGET);
+        entries.sort(Comparator.comparing(Entry::getLastModified));
+        int deleted = 0;
+        for (Entry entry : entries) {
+            if (currentSize <= targetSize) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(entry.getFile());
+                currentSize -= entry.getSize();
+                deleted++;
+            } catch (IOException e) {
+                LOGGER.warn("Could not evict {} from tile cache", entry.getFile(), e);
+            }
+        }
+        size.set(currentSize);
+        LOGGER.info("Evicted {} entries from the tile cache in {}, it now contains {} bytes", deleted, directory,
+            currentSize);
+    }
+
+    public interface Loader {
+        byte[] load() throws IOException;
+    }
+
+    private static class Entry {
+        private final Path file;
+
+        private final long size;
+
+        private final FileTime lastModified;
+
+        Entry(Path file) {
+            this.file = file;
+            long fileSize;
+            FileTime fileTime;
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                fileSize = attributes.size();
+                fileTime = attributes.lastModifiedTime();
+            } catch (IOException e) {
+                // the file was removed in the meantime
+                fileSize = -1;
+                fileTime = FileTime.fromMillis(0);
+            }
+            this.size = fileSize;
+            this.lastModified = fileTime;
+        }
+
+        Path getFile() {
+            return file;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        FileTime getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private static class InstanceHolder {
+        private static final IIIFTileCache INSTANCE = new IIIFTileCache(
+            Paths.get(MCRConfiguration2.getStringOrThrow(DIRECTORY_PROPERTY)),
+            MCRConfiguration2.getLong(MAX_SIZE_PROPERTY).orElse(0L));
+    }
+}
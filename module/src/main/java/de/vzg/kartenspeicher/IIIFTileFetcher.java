@@ -0,0 +1,317 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mycore.common.config.MCRConfiguration2;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads and decodes the tiles of one image concurrently, but hands them out in the order in which they were
+ * requested. Only a bounded number of tiles is fetched ahead of the consumer, so the decoded tiles waiting in memory
+ * never exceed a few times the number of worker threads.
+ */
+public class IIIFTileFetcher implements AutoCloseable {
+
+    public static final String TILE_THREADS_PROPERTY = "MCR.Kartenspeicher.Download.TileThreads";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+    private final ExecutorService executor;
+
+    private final int lookAhead;
+
+    private final Deque<PendingTile> pending = new ArrayDeque<>();
+
+    private Iterator<Tile> tiles;
+
+    private int fetched;
+
+    /**
+     * Creates a fetcher with the number of threads configured in {@link #TILE_THREADS_PROPERTY}.
+     */
+    public IIIFTileFetcher() {
+        this(MCRConfiguration2.getInt(TILE_THREADS_PROPERTY).orElse(4));
+    }
+
+    public IIIFTileFetcher(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of tile threads needs to be at least 1, but was " + threads);
+        }
+        int poolNumber = POOL_COUNTER.incrementAndGet();
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "tile-fetcher-" + poolNumber + "-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.lookAhead = threads * 2;
+    }
+
+    /**
+     * Starts fetching the given tiles. Tiles of a previous call which were not consumed are discarded.
+     *
+     * @param tiles the tiles in the order in which they should be returned by {@link #next()}
+     */
+    public void fetch(List<Tile> tiles) {
+        cancelPending();
+        this.tiles = tiles.iterator();
+        this.fetched = 0;
+        fillWindow();
+    }
+
+    public boolean hasNext() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * @return the tile which will be returned by the next call of {@link #next()}, without waiting for it
+     */
+    public Tile peek() {
+        PendingTile next = pending.peek();
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        return next.tile;
+    }
+
+    /**
+     * Waits for the next tile in request order and schedules further tiles.
+     *
+     * @return the next tile together with its decoded image
+     * @throws IOException if the tile could not be downloaded or decoded
+     */
+    public FetchedTile next() throws IOException {
+        PendingTile next = pending.poll();
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        fillWindow();
+        try {
+            return new FetchedTile(next.tile, next.image.get(), fetched++);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelPending();
+            throw new InterruptedIOException("Interrupted while waiting for tile " + next.tile.getUrl());
+        } catch (ExecutionException e) {
+            cancelPending();
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Could not fetch tile " + next.tile.getUrl(), cause);
+        }
+    }
+
+    private void fillWindow() {
+        while (tiles != null && tiles.hasNext() && pending.size() < lookAhead) {
+            Tile tile = tiles.next();
+            pending.add(new PendingTile(tile, executor.submit(() -> readTile(tile))));
+        }
+    }
+
+    private void cancelPending() {
+        pending.forEach(p -> p.image.cancel(true));
+        pending.clear();
+        tiles = null;
+    }
+
+    private static BufferedImage readTile(Tile tile) throws IOException {
+        ImportMetrics metrics = ImportMetrics.getInstance();
+        IIIFTileCache cache = IIIFTileCache.getInstance();
+        String cacheKey = tile.getCacheKey();
+        Optional<byte[]> cached = cache.get(cacheKey);
+        if (cached.isPresent()) {
+            BufferedImage image = decode(cached.get());
+            if (image != null) {
+                metrics.increment(ImportMetrics.Counter.TILE_CACHE_HITS);
+                return image;
+            }
+            LOGGER.warn("Cached tile {} is broken and will be downloaded again", tile.getUrl());
+            cache.remove(cacheKey);
+        }
+
+        LOGGER.debug("Downloading tile {}", tile.getUrl());
+        long start = System.nanoTime();
+        byte[] content = HttpFetcher.getInstance().fetch(tile.getUrl());
+        metrics.stop(ImportMetrics.Timer.TILE_DOWNLOAD, start);
+        metrics.add(ImportMetrics.Counter.IMAGE_BYTES, content.length);
+        BufferedImage image = decode(content);
+        if (image == null) {
+            throw new IOException("Could not decode tile " + tile.getUrl());
+        }
+        cache.put(cacheKey, content);
+        return image;
+    }
+
+    private static BufferedImage decode(byte[] content) throws IOException {
+        long start = System.nanoTime();
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(content));
+        ImportMetrics.getInstance().stop(ImportMetrics.Timer.TILE_DECODE, start);
+        return image;
+    }
+
+    @Override
+    public void close() {
+        cancelPending();
+        executor.shutdownNow();
+    }
+
+    private static class PendingTile {
+        private final Tile tile;
+
+        private final Future<BufferedImage> image;
+
+        PendingTile(Tile tile, Future<BufferedImage> image) {
+            this.tile = tile;
+            this.image = image;
+        }
+    }
+
+    /**
+     * A region of the target image and the image service request which delivers it.
+     */
+    public static class Tile {
+        private final int x;
+
+        private final int y;
+
+        private final int width;
+
+        private final int height;
+
+        private final String serviceId;
+
+        private final String region;
+
+        private final String size;
+
+        /**
+         * @param x         the column of the target image where the tile starts
+         * @param y         the row of the target image where the tile starts
+         * @param serviceId the id of the image service
+         * @param region    the region parameter of the image request
+         * @param size      the size parameter of the image request
+         */
+        public Tile(int x, int y, int width, int height, String serviceId, String region, String size) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.serviceId = serviceId;
+            this.region = region;
+            this.size = size;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public String getServiceId() {
+            return serviceId;
+        }
+
+        public String getRegion() {
+            return region;
+        }
+
+        public String getSize() {
+            return size;
+        }
+
+        public String getUrl() {
+            return serviceId + "/" + region + "/" + size + "/0/default.jpg";
+        }
+
+        public String getCacheKey() {
+            return IIIFTileCache.key(serviceId, region, size);
+        }
+
+        @Override
+        public String toString() {
+            return "Tile{" +
+                    "x=" + x +
+                    ", y=" + y +
+                    ", width=" + width +
+                    ", height=" + height +
+                    ", url='" + getUrl() + '\'' +
+                    '}';
+        }
+    }
+
+    public static class FetchedTile {
+        private final Tile tile;
+
+        private final BufferedImage image;
+
+        private final int number;
+
+        FetchedTile(Tile tile, BufferedImage image, int number) {
+            this.tile = tile;
+            this.image = image;
+            this.number = number;
+        }
+
+        public Tile getTile() {
+            return tile;
+        }
+
+        public BufferedImage getImage() {
+            return image;
+        }
+
+        /**
+         * @return the position of the tile in the list passed to {@link #fetch(List)}
+         */
+        public int getNumber() {
+            return number;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mycore.services.mbeans.MCRJMXBridge;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Times the stages of the import and counts what they transfer. The values are collected for the whole runtime and
+ * exposed over JMX as <code>Kartenspeicher:type=ImportMetrics</code>, commands wrapped in
+ * {@link #measure(String, Task)} log the difference of their run at the end.
+ * <p>
+ * A stage is timed by passing the result of {@link System#nanoTime()} at its start to {@link #stop(Timer, long)}.
+ */
+public class ImportMetrics implements ImportMetricsMXBean {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final AtomicLongArray counts = new AtomicLongArray(Timer.values().length);
+
+    private final AtomicLongArray nanos = new AtomicLongArray(Timer.values().length);
+
+    private final AtomicLongArray maxNanos = new AtomicLongArray(Timer.values().length);
+
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+    public static ImportMetrics getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Records the time of a stage which started at <code>startNanos</code>.
+     *
+     * @param startNanos the value of {@link System#nanoTime()} when the stage started
+     */
+    public void stop(Timer timer, long startNanos) {
+        record(timer, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a stage which took <code>duration</code> nanoseconds.
+     */
+    public void record(Timer timer, long duration) {
+        int index = timer.ordinal();
+        counts.incrementAndGet(index);
+        nanos.addAndGet(index, duration);
+        maxNanos.accumulateAndGet(index, duration, Math::max);
+    }
+
+    public void add(Counter counter, long value) {
+        counters.addAndGet(counter.ordinal(), value);
+    }
+
+    public void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    /**
+     * @return the current values, which can be subtracted from later ones
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(toArray(counts), toArray(nanos), toArray(counters));
+    }
+
+    /**
+     * Runs a command and logs the timers and counters of its run at the end, even if it failed. Concurrent commands
+     * are included in the summary, because the metrics are shared.
+     */
+    public static void measure(String command, Task task) throws Exception {
+        ImportMetrics metrics = getInstance();
+        Snapshot before = metrics.snapshot();
+        long start = System.nanoTime();
+        try {
+            task.run();
+        } finally {
+            long wallNanos = System.nanoTime() - start;
+            LOGGER.info("Metrics of {}:{}", command, metrics.snapshot().since(before).format(wallNanos));
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Timer timer : Timer.values()) {
+            result.put(timer.name(), counts.get(timer.ordinal()));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getTotalMillis() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (Timer timer : Timer.values()) {
+            result.put(timer.name(), nanos.get(timer.ordinal()) / 1e6);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getAverageMillis() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (Timer timer : Timer.values()) {
+            long count = counts.get(timer.ordinal());
+            result.put(timer.name(), count > 0 ? nanos.get(timer.ordinal()) / 1e6 / count : 0);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getMaxMillis() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (Timer timer : Timer.values()) {
+            result.put(timer.name(), maxNanos.get(timer.ordinal()) / 1e6);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Counter counter : Counter.values()) {
+            result.put(counter.name(), counters.get(counter.ordinal()));
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+            nanos.set(i, 0);
+            maxNanos.set(i, 0);
+        }
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    private static long[] toArray(AtomicLongArray array) {
+        long[] values = new long[array.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.get(i);
+        }
+        return values;
+    }
+
+    /**
+     * The stages of an import.
+     */
+    public enum Timer {
+        /**
+         * Fetching a record from the unAPI or a batch of records with SRU.
+         */
+        CATALOG,
+        /**
+         * Transforming a record to mods.
+         */
+        TRANSFORM,
+        /**
+         * Looking up the object of a ppn in Solr.
+         */
+        SOLR_LOOKUP,
+        /**
+         * Creating or updating an object.
+         */
+        PERSIST,
+        /**
+         * Fetching and validating a manifest.
+         */
+        MANIFEST,
+        /**
+         * Fetching the info.json of an image service.
+         */
+        IMAGE_INFO,
+        /**
+         * Downloading a tile or an image without tiles.
+         */
+        TILE_DOWNLOAD,
+        /**
+         * Decoding a downloaded or cached tile.
+         */
+        TILE_DECODE,
+        /**
+         * Waiting for tiles and drawing them into the image.
+         */
+        STITCH,
+        /**
+         * Encoding and writing an image, without the time spent stitching the stripes.
+         */
+        ENCODE,
+        /**
+         * Downscaling an image to its renditions and writing them.
+         */
+        RENDITION,
+        /**
+         * Downloading and storing a whole image.
+         */
+        IMAGE,
+        /**
+         * Importing an object and its derivate.
+         */
+        IMPORT,
+        /**
+         * Waiting for a request slot of a host.
+         */
+        HOST_WAIT
+    }
+
+    /**
+     * The amounts transferred by the import.
+     */
+    public enum Counter {
+        /**
+         * The bytes of catalog records received.
+         */
+        CATALOG_BYTES,
+        /**
+         * The bytes of manifests received.
+         */
+        MANIFEST_BYTES,
+        /**
+         * The bytes of tiles and images received.
+         */
+        IMAGE_BYTES,
+        /**
+         * The tiles drawn, from the network or the cache.
+         */
+        TILES,
+        /**
+         * The tiles read from the tile cache.
+         */
+        TILE_CACHE_HITS,
+        /**
+         * The bytes of images written to derivates.
+         */
+        WRITTEN_BYTES,
+        /**
+         * The requests which were repeated after an error.
+         */
+        RETRIES
+    }
+
+    /**
+     * A command which is measured.
+     */
+    @FunctionalInterface
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * The values of all timers and counters at one point in time or the difference of two points.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+
+        private final long[] nanos;
+
+        private final long[] counters;
+
+        Snapshot(long[] counts, long[] nanos, long[] counters) {
+            this.counts = counts;
+            this.nanos = nanos;
+            this.counters = counters;
+        }
+
+        /**
+         * @return the values which were added after the earlier snapshot
+         */
+        public Snapshot since(Snapshot earlier) {
+            return new Snapshot(subtract(counts, earlier.counts), subtract(nanos, earlier.nanos),
+                subtract(counters, earlier.counters));
+        }
+
+        public long getCount(Timer timer) {
+            return counts[timer.ordinal()];
+        }
+
+        public long getNanos(Timer timer) {
+            return nanos[timer.ordinal()];
+        }
+
+        public long get(Counter counter) {
+            return counters[counter.ordinal()];
+        }
+
+        /**
+         * Formats all timers and counters which are not zero, one per line, followed by the throughput.
+         *
+         * @param wallNanos the wall time the values were collected in, to compute tiles/s and MB/s
+         */
+        public String format(long wallNanos) {
+            StringBuilder sb = new StringBuilder();
+            double seconds = wallNanos / 1e9;
+            sb.append(String.format(Locale.ROOT, "%n  wall time: %.1f s", seconds));
+            for (Timer timer : Timer.values()) {
+                long count = getCount(timer);
+                if (count > 0) {
+                    sb.append(String.format(Locale.ROOT, "%n  %s: %d x %.1f ms = %.1f s", timer.name(), count,
+                        getNanos(timer) / 1e6 / count, getNanos(timer) / 1e9));
+                }
+            }
+            for (Counter counter : Counter.values()) {
+                if (get(counter) > 0) {
+                    sb.append(String.format(Locale.ROOT, "%n  %s: %d", counter.name(), get(counter)));
+                }
+            }
+            if (seconds > 0) {
+                long received = get(Counter.CATALOG_BYTES) + get(Counter.MANIFEST_BYTES) + get(Counter.IMAGE_BYTES);
+                sb.append(String.format(Locale.ROOT, "%n  %.1f tiles/s, %.2f MB/s received, %.2f MB/s written",
+                    get(Counter.TILES) / seconds, received / 1e6 / seconds, get(Counter.WRITTEN_BYTES) / 1e6 / seconds));
+            }
+            return sb.toString();
+        }
+
+        private static long[] subtract(long[] values, long[] earlier) {
+            long[] result = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                result[i] = values[i] - earlier[i];
+            }
+            return result;
+        }
+    }
+
+    private static class InstanceHolder {
+        private static final ImportMetrics INSTANCE = createInstance();
+
+        private static ImportMetrics createInstance() {
+            ImportMetrics metrics = new ImportMetrics();
+            try {
+                MCRJMXBridge.register(metrics, "Kartenspeicher", "ImportMetrics");
+            } catch (RuntimeException e) {
+                // the metrics are still logged at the end of every command
+                LOGGER.warn("Could not register the import metrics in JMX", e);
+            }
+            return metrics;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link ImportMetrics}, all maps are keyed by the name of the timer or counter.
+ */
+public interface ImportMetricsMXBean {
+
+    /**
+     * @return how often every stage was timed since the start or the last reset
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * @return the total time spent in every stage in milliseconds
+     */
+    Map<String, Double> getTotalMillis();
+
+    /**
+     * @return the average time of every stage in milliseconds
+     */
+    Map<String, Double> getAverageMillis();
+
+    /**
+     * @return the longest time of every stage in milliseconds
+     */
+    Map<String, Double> getMaxMillis();
+
+    /**
+     * @return the values of all counters, like received bytes and tile cache hits
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * Sets all timers and counters to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,112 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.filter.Filters;
+import org.jdom2.xpath.XPathExpression;
+import org.jdom2.xpath.XPathFactory;
+import org.mycore.common.MCRConstants;
+import org.mycore.datamodel.common.MCRXMLMetadataManager;
+import org.mycore.datamodel.metadata.MCRObjectID;
+import org.mycore.solr.MCRSolrClientFactory;
+import org.mycore.solr.index.MCRSolrIndexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Indexes the extent of a map as Solr BBoxField <code>mods.bbox</code>, so maps in an area can be found with
+ * <code>mods.bbox:"Intersects(ENVELOPE(west, east, north, south))"</code>. The field is written by
+ * <code>xsl/karten-speicher-solr.xsl</code>, which calls {@link #getEnvelope(String)}.
+ */
+public class MapExtentIndexer {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final XPathExpression<Element> COORDINATES_XPATH = XPathFactory.instance().compile(
+        "metadata/def.modsContainer/modsContainer/mods:mods/mods:subject/mods:cartographics/mods:coordinates",
+        Filters.element(), null, MCRConstants.MODS_NAMESPACE);
+
+    /**
+     * Converts coordinates to the envelope syntax of Solr. Both the corners written by the import and coordinates
+     * in the notation of the catalog are accepted.
+     *
+     * @return <code>ENVELOPE(west, east, north, south)</code> or an empty string if the coordinates are invalid or
+     * outside of the world
+     */
+    public static String getEnvelope(String coordinates) {
+        if (coordinates == null) {
+            return "";
+        }
+        CoordinateConverter.BoundingBox box = CoordinateConverter.parsePolygon(coordinates);
+        if (!box.isValid()) {
+            box = CoordinateConverter.parse(coordinates.trim());
+        }
+        if (!box.isValid() || !isLongitude(box.getWest()) || !isLongitude(box.getEast())
+            || !isLatitude(box.getNorth()) || !isLatitude(box.getSouth())) {
+            return "";
+        }
+        // the catalog sometimes swaps north and south, a west greater than east crosses the date line
+        return String.format(Locale.ROOT, "ENVELOPE(%s, %s, %s, %s)", box.getWest(), box.getEast(),
+            Math.max(box.getNorth(), box.getSouth()), Math.min(box.getNorth(), box.getSouth()));
+    }
+
+    /**
+     * Indexes all mods objects with coordinates again, so objects which were indexed before <code>mods.bbox</code>
+     * existed get the field.
+     *
+     * @return the number of objects which are indexed
+     */
+    public static int indexAll() {
+        List<String> ids = MCRXMLMetadataManager.instance().listIDsOfType("mods");
+        LOGGER.info("Looking for coordinates in {} objects", ids.size());
+        List<String> withExtent = new ArrayList<>();
+        for (String id : ids) {
+            try {
+                Document object = MCRXMLMetadataManager.instance().retrieveXML(MCRObjectID.getInstance(id));
+                if (object != null && hasExtent(object)) {
+                    withExtent.add(id);
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Could not read object {}", id, e);
+            }
+        }
+        LOGGER.info("Indexing {} objects with coordinates", withExtent.size());
+        MCRSolrIndexer.rebuildMetadataIndex(withExtent, MCRSolrClientFactory.getMainSolrClient());
+        return withExtent.size();
+    }
+
+    static boolean hasExtent(Document object) {
+        List<Element> coordinates = COORDINATES_XPATH.evaluate(object.getRootElement());
+        return !coordinates.isEmpty() && !getEnvelope(coordinates.get(0).getTextTrim()).isEmpty();
+    }
+
+    private static boolean isLongitude(double value) {
+        return value >= -180 && value <= 180;
+    }
+
+    private static boolean isLatitude(double value) {
+        return value >= -90 && value <= 90;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.mycore.common.config.MCRConfiguration2;
+import org.mycore.datamodel.metadata.MCRObjectID;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches the results of the Solr lookups from (catalog, ppn) to the object which was imported from the record. The
+ * cache holds at most {@link #MAX_SIZE_PROPERTY} entries and drops the least recently used one if it is full.
+ * Entries expire after {@link #TTL_PROPERTY} seconds, so objects which were deleted by others are noticed in a long
+ * running session.
+ * <p>
+ * Only found objects are cached, a ppn without object is looked up again next time.
+ */
+public class PPNLookupCache {
+
+    public static final String MAX_SIZE_PROPERTY = "MCR.Kartenspeicher.PPNCache.MaxSize";
+
+    public static final String TTL_PROPERTY = "MCR.Kartenspeicher.PPNCache.TTL";
+
+    private final int maxSize;
+
+    private final long ttlMillis;
+
+    private final LongSupplier clock;
+
+    private final Map<String, CachedObject> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public PPNLookupCache(int maxSize, long ttlMillis) {
+        this(maxSize, ttlMillis, System::currentTimeMillis);
+    }
+
+    PPNLookupCache(int maxSize, long ttlMillis, LongSupplier clock) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedObject> eldest) {
+                if (size() > PPNLookupCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static PPNLookupCache getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * @return the cached object of the ppn or an empty optional if it is not cached or expired
+     */
+    public Optional<MCRObjectID> get(String catalog, String ppn) {
+        String key = key(catalog, ppn);
+        synchronized (entries) {
+            CachedObject entry = entries.get(key);
+            if (entry != null && clock.getAsLong() - entry.created > ttlMillis) {
+                entries.remove(key);
+                evictions.incrementAndGet();
+                entry = null;
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+                return Optional.empty();
+            }
+            hits.incrementAndGet();
+            return Optional.of(entry.objectID);
+        }
+    }
+
+    public void put(String catalog, String ppn, MCRObjectID objectID) {
+        if (maxSize < 1) {
+            return;
+        }
+        CachedObject entry = new CachedObject(objectID, clock.getAsLong());
+        synchronized (entries) {
+            entries.put(key(catalog, ppn), entry);
+        }
+    }
+
+    public void remove(String catalog, String ppn) {
+        synchronized (entries) {
+            entries.remove(key(catalog, ppn));
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of entries which were dropped because the cache was full or they were expired
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        return "PPNLookupCache{size=" + size() + ", hits=" + hitCount + ", misses=" + misses.get()
+            + ", hitRate=" + (lookups == 0 ? 0 : hitCount * 100 / lookups) + "%, evictions=" + evictions.get() + '}';
+    }
+
+    private static String key(String catalog, String ppn) {
+        return catalog + ":ppn:" + ppn;
+    }
+
+    private static class CachedObject {
+        private final MCRObjectID objectID;
+
+        private final long created;
+
+        CachedObject(MCRObjectID objectID, long created) {
+            this.objectID = objectID;
+            this.created = created;
+        }
+    }
+
+    private static class InstanceHolder {
+        private static final PPNLookupCache INSTANCE = new PPNLookupCache(
+            MCRConfiguration2.getInt(MAX_SIZE_PROPERTY).orElse(10000),
+            TimeUnit.SECONDS.toMillis(MCRConfiguration2.getLong(TTL_PROPERTY).orElse(3600L)));
+    }
+}
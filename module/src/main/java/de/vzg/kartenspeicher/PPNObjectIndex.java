@@ -0,0 +1,156 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.mycore.common.config.MCRConfiguration2;
+import org.mycore.datamodel.metadata.MCRObjectID;
+import org.mycore.solr.MCRSolrClientFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in memory index from (catalog, ppn) to the object which was imported from the record. It is loaded with one
+ * cursor over all objects with a catalog identifier, so a large import does not need one Solr query per ppn.
+ * <p>
+ * As long as the index is loaded, it is authoritative: a ppn which is not in the index has no object. Objects which
+ * are created by the importer are added to it, objects which are created or deleted by others after the index was
+ * loaded are not seen, so it should only be loaded for the duration of an import.
+ */
+public class PPNObjectIndex {
+
+    public static final String PAGE_SIZE_PROPERTY = "MCR.Kartenspeicher.PPNIndex.PageSize";
+
+    public static final String CATALOG_URI_PREFIX = "https://uri.gbv.de/document/";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private volatile Map<String, MCRObjectID> objects;
+
+    public static PPNObjectIndex getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Reads all catalog identifiers from Solr and replaces the current content of the index.
+     */
+    public synchronized void load() throws SolrServerException, IOException {
+        long start = System.currentTimeMillis();
+        SolrClient solrClient = MCRSolrClientFactory.getMainSolrClient();
+        SolrQuery query = new SolrQuery("mods.identifier:" + ClientUtils.escapeQueryChars(CATALOG_URI_PREFIX) + "*");
+        query.setFields("id", "mods.identifier");
+        query.setRows(MCRConfiguration2.getInt(PAGE_SIZE_PROPERTY).orElse(1000));
+        query.setSort("id", SolrQuery.ORDER.asc);
+
+        Map<String, MCRObjectID> loaded = new ConcurrentHashMap<>();
+        String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+        while (true) {
+            query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+            QueryResponse response = solrClient.query(query);
+            for (SolrDocument document : response.getResults()) {
+                addDocument(loaded, document);
+            }
+            String nextCursorMark = response.getNextCursorMark();
+            if (cursorMark.equals(nextCursorMark)) {
+                break;
+            }
+            cursorMark = nextCursorMark;
+        }
+        objects = loaded;
+        LOGGER.info("Loaded {} ppns into the index in {} ms", loaded.size(), System.currentTimeMillis() - start);
+    }
+
+    private static void addDocument(Map<String, MCRObjectID> index, SolrDocument document) {
+        MCRObjectID objectID = MCRObjectID.getInstance((String) document.getFirstValue("id"));
+        Collection<Object> identifiers = document.getFieldValues("mods.identifier");
+        if (identifiers == null) {
+            return;
+        }
+        for (Object identifier : identifiers) {
+            IIIFMapImporter.Tuple<String, String> catalogPpn = IIIFMapImporter.parseCatalogURI(identifier.toString());
+            if (catalogPpn == null) {
+                continue;
+            }
+            MCRObjectID previous = index.put(key(catalogPpn.getE1(), catalogPpn.getE2()), objectID);
+            if (previous != null && !previous.equals(objectID)) {
+                LOGGER.warn("The ppn {} of catalog {} is used by {} and {}", catalogPpn.getE2(), catalogPpn.getE1(),
+                    previous, objectID);
+            }
+        }
+    }
+
+    /**
+     * Drops the content of the index, following lookups go to Solr again.
+     */
+    public synchronized void unload() {
+        objects = null;
+    }
+
+    public boolean isLoaded() {
+        return objects != null;
+    }
+
+    /**
+     * Looks up the object of a ppn. Must only be called if the index {@link #isLoaded()}.
+     *
+     * @return the object or an empty optional if there is none
+     */
+    public Optional<MCRObjectID> get(String catalog, String ppn) {
+        Map<String, MCRObjectID> current = objects;
+        if (current == null) {
+            throw new IllegalStateException("The ppn index is not loaded!");
+        }
+        return Optional.ofNullable(current.get(key(catalog, ppn)));
+    }
+
+    /**
+     * Adds a created object to the index, does nothing if the index is not loaded.
+     */
+    public void put(String catalog, String ppn, MCRObjectID objectID) {
+        Map<String, MCRObjectID> current = objects;
+        if (current != null) {
+            current.put(key(catalog, ppn), objectID);
+        }
+    }
+
+    public int size() {
+        Map<String, MCRObjectID> current = objects;
+        return current == null ? 0 : current.size();
+    }
+
+    private static String key(String catalog, String ppn) {
+        return catalog + ":ppn:" + ppn;
+    }
+
+    private static class InstanceHolder {
+        private static final PPNObjectIndex INSTANCE = new PPNObjectIndex();
+    }
+}
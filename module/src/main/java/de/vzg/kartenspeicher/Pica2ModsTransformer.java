@@ -0,0 +1,122 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.transform.JDOMResult;
+import org.jdom2.transform.JDOMSource;
+import org.mycore.common.MCRClassTools;
+import org.mycore.common.MCRException;
+import org.mycore.common.config.MCRConfiguration2;
+import org.mycore.common.xml.MCRURIResolver;
+import org.mycore.common.xsl.MCRParameterCollector;
+import org.mycore.common.xsl.MCRTemplatesSource;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import java.util.Map;
+
+/**
+ * Transforms PICA records to mods with the stylesheet of the <code>pica2mods_iiif</code> content transformer. The
+ * stylesheet is compiled once and the compiled templates are shared by all threads. The record is passed to the
+ * stylesheet as JDOM tree and the result is built as JDOM tree directly, so it is not serialized and parsed again
+ * between the steps.
+ * <p>
+ * Changes of the stylesheet are only noticed after a restart.
+ */
+public class Pica2ModsTransformer {
+
+    /**
+     * If false, the records are transformed by the content transformer of the layout service like before.
+     */
+    public static final String ENABLED_PROPERTY = "MCR.Kartenspeicher.Transform.CompiledStylesheet";
+
+    public static final String STYLESHEET_PROPERTY = "MCR.ContentTransformer.pica2mods_iiif.Stylesheet";
+
+    public static final String FACTORY_PROPERTY = "MCR.ContentTransformer.pica2mods_iiif.TransformerFactoryClass";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final Templates templates;
+
+    public Pica2ModsTransformer(String stylesheet, String factoryClass) {
+        long start = System.currentTimeMillis();
+        try {
+            TransformerFactory factory = factoryClass == null ? TransformerFactory.newInstance()
+                : TransformerFactory.newInstance(factoryClass, MCRClassTools.getClassLoader());
+            factory.setURIResolver(MCRURIResolver.instance());
+            templates = factory.newTemplates(new MCRTemplatesSource(stylesheet).getSource());
+        } catch (Exception e) {
+            throw new MCRException("Could not compile stylesheet " + stylesheet, e);
+        }
+        LOGGER.info("Compiled stylesheet {} in {} ms", stylesheet, System.currentTimeMillis() - start);
+    }
+
+    public static Pica2ModsTransformer getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    public static boolean isEnabled() {
+        return MCRConfiguration2.getBoolean(ENABLED_PROPERTY).orElse(true);
+    }
+
+    /**
+     * Transforms a PICA record. This method is thread safe.
+     *
+     * @param parameters the parameters of the stylesheet
+     * @return the root element of the result
+     */
+    public Element transform(Document record, MCRParameterCollector parameters) throws TransformerException {
+        return transform(record, parameters.getParameterMap());
+    }
+
+    /**
+     * Transforms a PICA record with parameters which are not collected from the session. This method is thread safe.
+     *
+     * @param parameters the parameters of the stylesheet, null values are skipped
+     * @return the root element of the result
+     */
+    public Element transform(Document record, Map<String, ?> parameters) throws TransformerException {
+        Transformer transformer = templates.newTransformer();
+        transformer.setURIResolver(MCRURIResolver.instance());
+        parameters.forEach((name, value) -> {
+            if (value != null) {
+                transformer.setParameter(name, value);
+            }
+        });
+        JDOMResult result = new JDOMResult();
+        transformer.transform(new JDOMSource(record), result);
+        Document resultDocument = result.getDocument();
+        if (resultDocument == null || !resultDocument.hasRootElement()) {
+            throw new TransformerException("The stylesheet did not produce a root element");
+        }
+        return resultDocument.detachRootElement();
+    }
+
+    private static class InstanceHolder {
+        private static final Pica2ModsTransformer INSTANCE = new Pica2ModsTransformer(
+            MCRConfiguration2.getStringOrThrow(STYLESHEET_PROPERTY),
+            MCRConfiguration2.getString(FACTORY_PROPERTY).orElse(null));
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jdom2.Content;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.Text;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.mycore.common.MCRException;
+import org.mycore.common.config.MCRConfiguration2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the PICA XML of every imported catalog record on disk, keyed by catalog and ppn. The stored records are
+ * used to detect unchanged records and allow to transform the records again without asking the catalog.
+ * <p>
+ * The records are stored in <code>{catalog}/{last 3 characters of the ppn}/{ppn}.xml</code>.
+ */
+public class PicaRecordStore {
+
+    public static final String DIRECTORY_PROPERTY = "MCR.Kartenspeicher.PicaStore.Directory";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final Pattern KEY_PATTERN = Pattern.compile("[a-zA-Z0-9]+");
+
+    private static final String SUFFIX = ".xml";
+
+    private final Path directory;
+
+    public PicaRecordStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public static PicaRecordStore getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Serializes a record the way it is stored, so two versions of a record can be compared byte by byte.
+     */
+    public static byte[] serialize(Document record) {
+        return new XMLOutputter(Format.getRawFormat()).outputString(record).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the stored record or an empty optional if the record was never stored
+     */
+    public Optional<byte[]> get(String catalog, String ppn) throws IOException {
+        try {
+            return Optional.of(Files.readAllBytes(getFile(catalog, ppn)));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Compares the record with its stored version. Records of the unAPI and records cut out of a SRU response differ
+     * in the whitespace between the elements and in the namespace declarations, so if the bytes differ the records
+     * are compared by their {@link #canonicalize(Element) canonical form}.
+     *
+     * @return true if the stored version of the record has the same content
+     */
+    public boolean containsEqual(String catalog, String ppn, Document record) {
+        try {
+            Optional<byte[]> stored = get(catalog, ppn);
+            if (!stored.isPresent()) {
+                return false;
+            }
+            if (Arrays.equals(stored.get(), serialize(record))) {
+                return true;
+            }
+            Document storedRecord = new SAXBuilder().build(new ByteArrayInputStream(stored.get()));
+            return canonicalize(storedRecord.getRootElement()).equals(canonicalize(record.getRootElement()));
+        } catch (IOException | JDOMException e) {
+            LOGGER.warn("Could not read stored record of ppn {} in catalog {}", ppn, catalog, e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the names, attributes and text of the element and its descendants without prefixes, namespace
+     * declarations and whitespace-only text, so two records which only differ in their formatting have the same
+     * canonical form.
+     */
+    static String canonicalize(Element element) {
+        StringBuilder canonical = new StringBuilder();
+        appendCanonical(canonical, element);
+        return canonical.toString();
+    }
+
+    private static void appendCanonical(StringBuilder canonical, Element element) {
+        canonical.append("<{").append(element.getNamespaceURI()).append('}').append(element.getName());
+        element.getAttributes().stream()
+            .map(attribute -> " {" + attribute.getNamespaceURI() + "}" + attribute.getName() + "=\""
+                + attribute.getValue() + "\"")
+            .sorted()
+            .forEach(canonical::append);
+        canonical.append('>');
+        for (Content content : element.getContent()) {
+            if (content instanceof Element) {
+                appendCanonical(canonical, (Element) content);
+            } else if (content instanceof Text && !((Text) content).getTextTrim().isEmpty()) {
+                canonical.append(((Text) content).getText());
+            }
+        }
+        canonical.append("</>");
+    }
+
+    public void put(String catalog, String ppn, byte[] content) throws IOException {
+        Path file = getFile(catalog, ppn);
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), "tmp-", null);
+        Files.write(temp, content);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Like {@link #put(String, String, byte[])} but only logs errors.
+     */
+    void putQuietly(String catalog, String ppn, byte[] content) {
+        try {
+            put(catalog, ppn, content);
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.warn("Could not store record of ppn {} in catalog {}", ppn, catalog, e);
+        }
+    }
+
+    /**
+     * Lists the keys of all stored records. The stream must be closed.
+     *
+     * @return tuples of catalog and ppn
+     */
+    public Stream<IIIFMapImporter.Tuple<String, String>> list() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Stream.empty();
+        }
+        return Files.walk(directory, 3)
+            .filter(Files::isRegularFile)
+            .filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+            .filter(file -> directory.relativize(file).getNameCount() == 3)
+            .map(file -> {
+                String fileName = file.getFileName().toString();
+                String catalog = directory.relativize(file).getName(0).toString();
+                return new IIIFMapImporter.Tuple<>(catalog,
+                    fileName.substring(0, fileName.length() - SUFFIX.length()));
+            });
+    }
+
+    private Path getFile(String catalog, String ppn) {
+        if (!KEY_PATTERN.matcher(catalog).matches() || !KEY_PATTERN.matcher(ppn).matches()) {
+            throw new MCRException("Invalid catalog " + catalog + " or ppn " + ppn);
+        }
+        return directory.resolve(catalog).resolve(ppn.substring(Math.max(0, ppn.length() - 3)))
+            .resolve(ppn + SUFFIX);
+    }
+
+    private static class InstanceHolder {
+        private static final PicaRecordStore INSTANCE = new PicaRecordStore(
+            Paths.get(MCRConfiguration2.getStringOrThrow(DIRECTORY_PROPERTY)));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.tiff.BaselineTIFFTagSet;
+import javax.imageio.plugins.tiff.TIFFDirectory;
+import javax.imageio.plugins.tiff.TIFFField;
+import javax.imageio.plugins.tiff.TIFFTag;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes a tiled, JPEG compressed TIFF with one directory per resolution level. The first directory contains the
+ * full resolution image, all further directories are marked as reduced resolution versions of it, so image servers
+ * can pick the level which fits the requested zoom without scaling the whole image.
+ */
+public class PyramidTiffWriter {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final float JPEG_QUALITY = 0.75f;
+
+    /**
+     * Writes the levels to the output stream. The levels are written one after another, so every level may be an
+     * image which is only created while it is read, like a {@link StripedImage}.
+     *
+     * @param levels     the resolution levels, beginning with the full resolution
+     * @param tileWidth  the width of the tiles in the tiff, will be rounded up to a multiple of 16
+     * @param tileHeight the height of the tiles in the tiff, will be rounded up to a multiple of 16
+     * @param os         the stream to write to, it will not be closed
+     */
+    public static void write(List<? extends RenderedImage> levels, int tileWidth, int tileHeight, OutputStream os)
+        throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("tiff");
+        if (!writers.hasNext()) {
+            throw new IOException("Could not find a writer for tiff images!");
+        }
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(os)) {
+            writer.setOutput(ios);
+            writer.prepareWriteSequence(null);
+            for (int level = 0; level < levels.size(); level++) {
+                RenderedImage image = levels.get(level);
+                LOGGER.info("Writing level {} with {}x{} pixels", level, image.getWidth(), image.getHeight());
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setTiling(roundToTiffTileSize(tileWidth), roundToTiffTileSize(tileHeight), 0, 0);
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionType("JPEG");
+                param.setCompressionQuality(JPEG_QUALITY);
+
+                IIOMetadata metadata = writer
+                    .getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+                if (level > 0) {
+                    metadata = markAsReducedResolution(metadata);
+                }
+                writer.writeToSequence(new IIOImage(image, null, metadata), param);
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static IIOMetadata markAsReducedResolution(IIOMetadata metadata) throws IOException {
+        TIFFDirectory directory = TIFFDirectory.createFromMetadata(metadata);
+        TIFFTag newSubfileType = BaselineTIFFTagSet.getInstance().getTag(BaselineTIFFTagSet.TAG_NEW_SUBFILE_TYPE);
+        directory.addTIFFField(new TIFFField(newSubfileType, TIFFTag.TIFF_LONG, 1,
+            new long[] { BaselineTIFFTagSet.NEW_SUBFILE_TYPE_REDUCED_RESOLUTION }));
+        return directory.getAsMetadata();
+    }
+
+    /**
+     * The tiff specification requires tile sizes which are a multiple of 16.
+     *
+     * @return the size of the tiles which are written for the requested size
+     */
+    public static int roundToTiffTileSize(int size) {
+        return (size + 15) / 16 * 16;
+    }
+}
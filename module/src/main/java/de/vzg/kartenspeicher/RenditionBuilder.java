@@ -0,0 +1,281 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mycore.common.config.MCRConfiguration2;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Creates downscaled copies of an image while its rows pass by, so the stitched image is not decoded again to get a
+ * thumbnail or a preview. The rows are averaged into the largest rendition, the smaller renditions are scaled from it
+ * when the image is complete. Renditions which would not be smaller than the image are left out.
+ * <p>
+ * The renditions are configured in {@link #RENDITIONS_PROPERTY} as comma separated <code>name:size</code> pairs,
+ * the size is the length of the longer edge. They are stored as JPEG beside the image, the rendition
+ * <code>thumbnail</code> of <code>map.tif</code> is <code>map_thumbnail.jpg</code>.
+ */
+public class RenditionBuilder implements StripedImage.StripeListener {
+
+    public static final String RENDITIONS_PROPERTY = "MCR.Kartenspeicher.Download.Renditions";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final Pattern SEPARATOR = Pattern.compile("\\s*,\\s*");
+
+    private final int sourceWidth;
+
+    private final int sourceHeight;
+
+    private final Map<String, Integer> sizes;
+
+    private final BufferedImage largest;
+
+    private final int[] largestData;
+
+    private final int[] columns;
+
+    private final long[] sums;
+
+    private final int[] counts;
+
+    private int currentRow = -1;
+
+    private long nanos;
+
+    /**
+     * @param sourceWidth  the width of the rows which are passed to the builder
+     * @param sourceHeight the number of rows which are passed to the builder
+     * @param sizes        the longer edges of the renditions by their names
+     */
+    public RenditionBuilder(int sourceWidth, int sourceHeight, Map<String, Integer> sizes) {
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.sizes = new LinkedHashMap<>();
+        int longEdge = Math.max(sourceWidth, sourceHeight);
+        sizes.entrySet().stream()
+            .filter(size -> size.getValue() < longEdge)
+            .sorted(Map.Entry.<String, Integer>comparingByValue(Comparator.reverseOrder()))
+            .forEach(size -> this.sizes.put(size.getKey(), size.getValue()));
+
+        if (this.sizes.isEmpty()) {
+            this.largest = null;
+            this.largestData = null;
+            this.columns = null;
+            this.sums = null;
+            this.counts = null;
+            return;
+        }
+        int size = this.sizes.values().iterator().next();
+        this.largest = new BufferedImage(scale(sourceWidth, size, longEdge), scale(sourceHeight, size, longEdge),
+            BufferedImage.TYPE_INT_RGB);
+        this.largestData = ((DataBufferInt) largest.getRaster().getDataBuffer()).getData();
+        this.columns = new int[sourceWidth];
+        for (int x = 0; x < sourceWidth; x++) {
+            columns[x] = (int) ((long) x * largest.getWidth() / sourceWidth);
+        }
+        this.sums = new long[largest.getWidth() * 3];
+        this.counts = new int[largest.getWidth()];
+    }
+
+    /**
+     * Creates a builder with the renditions of {@link #RENDITIONS_PROPERTY}.
+     */
+    public static RenditionBuilder createConfigured(int sourceWidth, int sourceHeight) {
+        return new RenditionBuilder(sourceWidth, sourceHeight, getConfiguredSizes());
+    }
+
+    /**
+     * @return the longer edges of the configured renditions by their names
+     */
+    public static Map<String, Integer> getConfiguredSizes() {
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        String configured = MCRConfiguration2.getString(RENDITIONS_PROPERTY).orElse("").trim();
+        if (configured.isEmpty()) {
+            return sizes;
+        }
+        for (String rendition : SEPARATOR.split(configured)) {
+            int colon = rendition.indexOf(':');
+            if (colon < 1) {
+                throw new IllegalArgumentException("The rendition " + rendition + " in " + RENDITIONS_PROPERTY
+                    + " is not name:size");
+            }
+            sizes.put(rendition.substring(0, colon).trim(), Integer.parseInt(rendition.substring(colon + 1).trim()));
+        }
+        return sizes;
+    }
+
+    /**
+     * @return the name of the file in which a rendition of the image is stored
+     */
+    public static String getFilename(String filename, String rendition) {
+        int dot = filename.lastIndexOf('.');
+        return (dot > 0 ? filename.substring(0, dot) : filename) + "_" + rendition + ".jpg";
+    }
+
+    /**
+     * @return true if the file is one of the configured renditions of the image
+     */
+    public static boolean isRenditionOf(String candidate, String filename) {
+        return getConfiguredSizes().keySet().stream()
+            .anyMatch(rendition -> getFilename(filename, rendition).equals(candidate));
+    }
+
+    private static int scale(int length, int size, int longEdge) {
+        return Math.max(1, (int) Math.round((double) length * size / longEdge));
+    }
+
+    /**
+     * @return true if the image is too small for all renditions
+     */
+    public boolean isEmpty() {
+        return sizes.isEmpty();
+    }
+
+    /**
+     * @return the time spent downscaling the rows
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public void stripeDrawn(int[] rgb, int y, int rows) {
+        addRows(rgb, 0, y, rows);
+    }
+
+    /**
+     * Averages the next rows of the image into the largest rendition. The rows have to be passed from top to bottom.
+     *
+     * @param rgb    the pixels in <code>TYPE_INT_RGB</code>, one row after another
+     * @param offset the index of the first pixel of the first row
+     * @param y      the number of the first row in the image
+     * @param rows   the number of rows
+     */
+    public void addRows(int[] rgb, int offset, int y, int rows) {
+        if (isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        int height = largest.getHeight();
+        for (int row = y; row < y + rows; row++) {
+            int target = (int) ((long) row * height / sourceHeight);
+            if (target != currentRow) {
+                flushRow();
+                currentRow = target;
+            }
+            int index = offset + (row - y) * sourceWidth;
+            for (int x = 0; x < sourceWidth; x++) {
+                int pixel = rgb[index + x];
+                int column = columns[x];
+                sums[column * 3] += (pixel >> 16) & 0xFF;
+                sums[column * 3 + 1] += (pixel >> 8) & 0xFF;
+                sums[column * 3 + 2] += pixel & 0xFF;
+                counts[column]++;
+            }
+        }
+        nanos += System.nanoTime() - start;
+    }
+
+    private void flushRow() {
+        if (currentRow < 0) {
+            return;
+        }
+        int width = largest.getWidth();
+        int rowStart = currentRow * width;
+        for (int column = 0; column < width; column++) {
+            int count = Math.max(1, counts[column]);
+            int r = (int) (sums[column * 3] / count);
+            int g = (int) (sums[column * 3 + 1] / count);
+            int b = (int) (sums[column * 3 + 2] / count);
+            largestData[rowStart + column] = (r << 16) | (g << 8) | b;
+            sums[column * 3] = 0;
+            sums[column * 3 + 1] = 0;
+            sums[column * 3 + 2] = 0;
+            counts[column] = 0;
+        }
+    }
+
+    /**
+     * Writes the renditions as JPEG to the folder, after all rows were passed.
+     *
+     * @param filename the name of the image, the renditions are named after it
+     * @return the names of the written files
+     */
+    public List<String> write(Path folder, String filename) throws IOException {
+        List<String> written = new ArrayList<>();
+        if (isEmpty()) {
+            return written;
+        }
+        long start = System.nanoTime();
+        flushRow();
+        currentRow = -1;
+        BufferedImage image = largest;
+        for (Map.Entry<String, Integer> size : sizes.entrySet()) {
+            int longEdge = Math.max(sourceWidth, sourceHeight);
+            image = downscale(image, scale(sourceWidth, size.getValue(), longEdge),
+                scale(sourceHeight, size.getValue(), longEdge));
+            String renditionFile = getFilename(filename, size.getKey());
+            try (OutputStream os = Files.newOutputStream(folder.resolve(renditionFile))) {
+                if (!ImageIO.write(image, "jpg", os)) {
+                    throw new IOException("Could not find a writer for the rendition " + renditionFile);
+                }
+            }
+            LOGGER.debug("Wrote rendition {} with {}x{} pixels", renditionFile, image.getWidth(), image.getHeight());
+            written.add(renditionFile);
+        }
+        nanos += System.nanoTime() - start;
+        return written;
+    }
+
+    /**
+     * Scales the image down in steps of at most one half, so bilinear scaling still considers every pixel.
+     */
+    private static BufferedImage downscale(BufferedImage image, int width, int height) {
+        BufferedImage current = image;
+        while (current.getWidth() != width || current.getHeight() != height) {
+            int stepWidth = Math.max(width, (current.getWidth() + 1) / 2);
+            int stepHeight = Math.max(height, (current.getHeight() + 1) / 2);
+            BufferedImage step = new BufferedImage(stepWidth, stepHeight, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = step.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(current, 0, 0, stepWidth, stepHeight, null);
+            graphics.dispose();
+            current = step;
+        }
+        return current;
+    }
+}
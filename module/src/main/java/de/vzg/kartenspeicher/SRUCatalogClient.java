@@ -0,0 +1,133 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.filter.Filters;
+import org.jdom2.input.SAXBuilder;
+import org.mycore.common.config.MCRConfiguration2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Fetches many records of a catalog with one SRU request. The response is split into one document per record, like
+ * the documents of the unAPI.
+ */
+public class SRUCatalogClient {
+
+    /**
+     * The base url of the SRU interface, the database of the catalog is appended.
+     */
+    public static final String URL_PROPERTY = "MCR.Kartenspeicher.SRU.URL";
+
+    /**
+     * The name of the SRU database of a catalog is configured in this property followed by the catalog, it defaults
+     * to the name of the catalog.
+     */
+    public static final String DATABASE_PROPERTY_PREFIX = "MCR.Kartenspeicher.SRU.Database.";
+
+    /**
+     * The maximum number of records per request, 0 disables SRU and all records are fetched from the unAPI.
+     */
+    public static final String BATCH_SIZE_PROPERTY = "MCR.Kartenspeicher.SRU.BatchSize";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    public static int getBatchSize() {
+        return MCRConfiguration2.getInt(BATCH_SIZE_PROPERTY).orElse(0);
+    }
+
+    /**
+     * Fetches the records of the ppns with as many requests as the batch size requires.
+     *
+     * @return the records by ppn, ppns which were not found are missing
+     */
+    public static Map<String, CatalogRecord> fetch(String catalog, Collection<String> ppns)
+        throws IOException, JDOMException {
+        int batchSize = Math.max(1, getBatchSize());
+        List<String> ppnList = new ArrayList<>(ppns);
+        Map<String, CatalogRecord> records = new HashMap<>();
+        for (int start = 0; start < ppnList.size(); start += batchSize) {
+            List<String> batch = ppnList.subList(start, Math.min(start + batchSize, ppnList.size()));
+            String url = getURL(catalog, batch);
+            LOGGER.info("Fetching {} records of catalog {} from {}", batch.size(), catalog, url);
+            long requestStart = System.nanoTime();
+            byte[] content = HttpFetcher.getInstance().fetch(url);
+            Document response = new SAXBuilder().build(new ByteArrayInputStream(content), url);
+            ImportMetrics metrics = ImportMetrics.getInstance();
+            metrics.stop(ImportMetrics.Timer.CATALOG, requestStart);
+            metrics.add(ImportMetrics.Counter.CATALOG_BYTES, content.length);
+            for (Document record : splitRecords(response)) {
+                String ppn = getPPN(record);
+                if (ppn != null) {
+                    records.put(ppn, CatalogRecord.of(ppn, catalog, record));
+                }
+            }
+        }
+        return records;
+    }
+
+    static String getURL(String catalog, List<String> ppns) {
+        String baseURL = MCRConfiguration2.getString(URL_PROPERTY).orElse("https://sru.k10plus.de/");
+        String database = MCRConfiguration2.getString(DATABASE_PROPERTY_PREFIX + catalog).orElse(catalog);
+        String query = ppns.stream().map(ppn -> "pica.ppn=" + ppn).collect(Collectors.joining(" or "));
+        return baseURL + database + "?version=1.1&operation=searchRetrieve&recordSchema=picaxml"
+            + "&maximumRecords=" + ppns.size()
+            + "&query=" + URLEncoder.encode(query, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Splits an SRU response into one document per PICA record.
+     */
+    static List<Document> splitRecords(Document response) {
+        List<Element> recordElements = new ArrayList<>();
+        response.getRootElement().getDescendants(Filters.element("record", IIIFMapImporter.PICA_NAMESPACE))
+            .forEach(recordElements::add);
+        return recordElements.stream()
+            .map(record -> new Document(record.detach()))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the ppn in field 003@ of the record or null if it has none
+     */
+    static String getPPN(Document record) {
+        return record.getRootElement().getChildren("datafield", IIIFMapImporter.PICA_NAMESPACE)
+            .stream()
+            .filter(field -> "003@".equals(field.getAttributeValue("tag")))
+            .flatMap(field -> field.getChildren("subfield", IIIFMapImporter.PICA_NAMESPACE).stream())
+            .filter(subfield -> "0".equals(subfield.getAttributeValue("code")))
+            .map(Element::getTextTrim)
+            .findFirst()
+            .orElse(null);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.mycore.common.MCRException;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs at most one task per key at the same time. Callers which request a key while its task is running wait for
+ * that task and get its result instead of running their own. Once the task is done the key is released, so the
+ * result is not cached.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the results
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> running = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<Set<K>> ownKeys = ThreadLocal.withInitial(HashSet::new);
+
+    /**
+     * Runs the task or waits for the running task of the key.
+     *
+     * @throws MCRException if the task of the key is already run by the current thread, waiting would never end
+     * @throws Exception    the exception of the task, also if it was run by another thread
+     */
+    public V run(K key, Callable<V> task) throws Exception {
+        CompletableFuture<V> own = new CompletableFuture<>();
+        CompletableFuture<V> other = running.putIfAbsent(key, own);
+        if (other != null) {
+            if (ownKeys.get().contains(key)) {
+                throw new MCRException("Recursive call for " + key + " while it is running");
+            }
+            return await(other);
+        }
+
+        ownKeys.get().add(key);
+        try {
+            V result = task.call();
+            own.complete(result);
+            return result;
+        } catch (Exception | Error e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            ownKeys.get().remove(key);
+            running.remove(key, own);
+        }
+    }
+
+    /**
+     * @return true if the current thread runs the task of the key, a nested {@link #run(Object, Callable)} for the
+     * key would fail
+     */
+    public boolean isRunByCurrentThread(K key) {
+        return ownKeys.get().contains(key);
+    }
+
+    /**
+     * @return the number of keys whose tasks are running
+     */
+    public int size() {
+        return running.size();
+    }
+
+    private V await(CompletableFuture<V> future) throws Exception {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new MCRException(cause);
+        }
+    }
+}
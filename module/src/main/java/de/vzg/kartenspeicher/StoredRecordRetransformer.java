@@ -0,0 +1,151 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.mycore.common.MCRException;
+import org.mycore.common.MCRSessionMgr;
+import org.mycore.common.MCRUserInformation;
+import org.mycore.common.config.MCRConfiguration2;
+import org.mycore.util.concurrent.MCRFixedUserCallable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Transforms all records of the {@link PicaRecordStore} again, spread over {@link #THREADS_PROPERTY} threads. The
+ * catalog is not asked, so a changed stylesheet can be applied to the whole collection at the speed of the
+ * transformation. The throughput is logged at the end, so the transformation can be measured without storing the
+ * results.
+ */
+public class StoredRecordRetransformer {
+
+    public static final String THREADS_PROPERTY = "MCR.Kartenspeicher.Retransform.Threads";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final boolean save;
+
+    private final MCRUserInformation userInformation;
+
+    private final AtomicInteger transformed = new AtomicInteger();
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private final AtomicLong transformNanos = new AtomicLong();
+
+    /**
+     * @param save if false the records are only transformed, the objects are not updated
+     */
+    public StoredRecordRetransformer(boolean save) {
+        this.save = save;
+        this.userInformation = MCRSessionMgr.getCurrentSession().getUserInformation();
+    }
+
+    /**
+     * Transforms all stored records and waits until all of them are done.
+     *
+     * @return the number of records which could not be transformed or saved
+     */
+    public int run() throws IOException {
+        List<IIIFMapImporter.Tuple<String, String>> keys;
+        try (Stream<IIIFMapImporter.Tuple<String, String>> stored = PicaRecordStore.getInstance().list()) {
+            keys = stored.collect(Collectors.toList());
+        }
+        int threads = MCRConfiguration2.getInt(THREADS_PROPERTY)
+            .orElse(Runtime.getRuntime().availableProcessors());
+        LOGGER.info("Transforming {} stored records with {} threads", keys.size(), threads);
+
+        PPNObjectIndex index = PPNObjectIndex.getInstance();
+        boolean loadIndex = save && !index.isLoaded();
+        AtomicInteger threadCounter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "retransform-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        try {
+            if (loadIndex) {
+                index.load();
+            }
+            List<Future<?>> futures = new ArrayList<>();
+            for (IIIFMapImporter.Tuple<String, String> key : keys) {
+                futures.add(executor.submit(() -> retransform(key.getE1(), key.getE2())));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MCRException("Interrupted while transforming stored records", e);
+        } catch (ExecutionException | SolrServerException e) {
+            throw new MCRException("Could not transform stored records", e);
+        } finally {
+            executor.shutdownNow();
+            if (loadIndex) {
+                index.unload();
+            }
+        }
+        logThroughput(System.nanoTime() - start);
+        return failed.get();
+    }
+
+    private void retransform(String catalog, String ppn) {
+        try {
+            new MCRFixedUserCallable<>(() -> {
+                long start = System.nanoTime();
+                if (save) {
+                    IIIFMapImporter.retransformStoredRecord(ppn, catalog);
+                } else {
+                    CatalogRecord record = CatalogRecord.readStored(ppn, catalog).orElseThrow(
+                        () -> new MCRException("The record of ppn " + ppn + " was removed from the store"));
+                    IIIFMapImporter.transformRecord(record, null, null);
+                }
+                transformNanos.addAndGet(System.nanoTime() - start);
+                return null;
+            }, userInformation).call();
+            transformed.incrementAndGet();
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            LOGGER.error("Could not transform stored record of ppn {} in catalog {}", ppn, catalog, e);
+        }
+    }
+
+    private void logThroughput(long nanos) {
+        int count = transformed.get();
+        double seconds = nanos / 1e9;
+        LOGGER.info(String.format(Locale.ROOT,
+            "%s %d records in %.1f s: %.1f records/s, %.1f ms per record and thread, %d failed, compiled stylesheet: %b",
+            save ? "Transformed and saved" : "Transformed", count, seconds, seconds > 0 ? count / seconds : 0,
+            count > 0 ? transformNanos.get() / 1e6 / count : 0, failed.get(), Pica2ModsTransformer.isEnabled()));
+    }
+}
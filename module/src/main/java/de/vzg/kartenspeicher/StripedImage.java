@@ -0,0 +1,309 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Vector;
+
+/**
+ * A RGB image which is never completely held in memory. The image is divided in horizontal stripes, which are
+ * requested one after another from a {@link StripeSource}. Only the current stripe is kept, so image writers have to
+ * read the image from top to bottom, which is what the JPEG and TIFF writers of ImageIO do.
+ * <p>
+ * The source is called while the image is written, an {@link IOException} of the source is rethrown as
+ * {@link UncheckedIOException}.
+ */
+public class StripedImage implements RenderedImage {
+
+    private static final ColorModel COLOR_MODEL = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB)
+        .getColorModel();
+
+    private final int width;
+
+    private final int height;
+
+    private final int stripeHeight;
+
+    private final StripeSource source;
+
+    private final StripeListener listener;
+
+    private final BufferedImage stripe;
+
+    private final int[] stripeData;
+
+    private int currentStripe = -1;
+
+    public StripedImage(int width, int height, int stripeHeight, StripeSource source) {
+        this(width, height, stripeHeight, source, null);
+    }
+
+    /**
+     * @param listener gets the pixels of every stripe after it was drawn, may be null
+     */
+    public StripedImage(int width, int height, int stripeHeight, StripeSource source, StripeListener listener) {
+        this.width = width;
+        this.height = height;
+        this.stripeHeight = Math.min(stripeHeight, height);
+        this.source = source;
+        this.listener = listener;
+        this.stripe = new BufferedImage(width, this.stripeHeight, BufferedImage.TYPE_INT_RGB);
+        this.stripeData = ((DataBufferInt) stripe.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * @return true if the whole image can be addressed by a single raster, which is needed for {@link #getData()}
+     */
+    public static boolean fitsInRaster(int width, int height) {
+        return (long) width * height <= Integer.MAX_VALUE;
+    }
+
+    private int stripeStart(int stripeIndex) {
+        return stripeIndex * stripeHeight;
+    }
+
+    private int stripeRows(int stripeIndex) {
+        return Math.min(stripeHeight, height - stripeStart(stripeIndex));
+    }
+
+    /**
+     * Moves forward to the stripe which contains the row.
+     */
+    private void moveTo(int row) {
+        int stripeIndex = row / stripeHeight;
+        if (stripeIndex < currentStripe) {
+            throw new IllegalStateException("Row " + row + " was already passed, the image can only be read once "
+                + "from top to bottom!");
+        }
+        while (currentStripe < stripeIndex) {
+            currentStripe++;
+            Graphics2D graphics = stripe.createGraphics();
+            try {
+                graphics.setBackground(Color.BLACK);
+                graphics.clearRect(0, 0, width, stripeHeight);
+                source.drawStripe(currentStripe, stripeStart(currentStripe), stripeRows(currentStripe), graphics);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                graphics.dispose();
+            }
+            if (listener != null) {
+                listener.stripeDrawn(stripeData, stripeStart(currentStripe), stripeRows(currentStripe));
+            }
+        }
+    }
+
+    @Override
+    public Raster getData() {
+        if (!fitsInRaster(width, height)) {
+            throw new UnsupportedOperationException("The image " + width + "x" + height
+                + " is too large to be addressed as one raster!");
+        }
+        SampleModel sampleModel = COLOR_MODEL.createCompatibleSampleModel(width, height);
+        return Raster.createWritableRaster(sampleModel, new StripeDataBuffer(width * height), null);
+    }
+
+    @Override
+    public Raster getData(Rectangle rect) {
+        WritableRaster raster = COLOR_MODEL.createCompatibleWritableRaster(rect.width, rect.height)
+            .createWritableTranslatedChild(rect.x, rect.y);
+        return copyData(raster);
+    }
+
+    @Override
+    public WritableRaster copyData(WritableRaster raster) {
+        if (raster == null) {
+            raster = COLOR_MODEL.createCompatibleWritableRaster(width, height);
+        }
+        int minY = Math.max(raster.getMinY(), 0);
+        int maxY = Math.min(raster.getMinY() + raster.getHeight(), height);
+        int minX = Math.max(raster.getMinX(), 0);
+        int maxX = Math.min(raster.getMinX() + raster.getWidth(), width);
+        int row = minY;
+        while (row < maxY) {
+            moveTo(row);
+            int start = stripeStart(currentStripe);
+            int rows = Math.min(start + stripeRows(currentStripe), maxY) - row;
+            Raster part = stripe.getRaster().createChild(minX, row - start, maxX - minX, rows, minX, row, null);
+            raster.setRect(part);
+            row += rows;
+        }
+        return raster;
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        int start = stripeStart(tileY);
+        return getData(new Rectangle(0, start, width, stripeRows(tileY)));
+    }
+
+    @Override
+    public Vector<RenderedImage> getSources() {
+        return null;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return Image.UndefinedProperty;
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+        return null;
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return COLOR_MODEL;
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+        return COLOR_MODEL.createCompatibleSampleModel(width, stripeHeight);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getMinX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinY() {
+        return 0;
+    }
+
+    @Override
+    public int getNumXTiles() {
+        return 1;
+    }
+
+    @Override
+    public int getNumYTiles() {
+        return (height + stripeHeight - 1) / stripeHeight;
+    }
+
+    @Override
+    public int getMinTileX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinTileY() {
+        return 0;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return width;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return stripeHeight;
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+        return 0;
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+        return 0;
+    }
+
+    /**
+     * Serves the pixels of the whole image to writers which want a single raster (like the JPEG writer), while only
+     * the current stripe exists in memory.
+     */
+    private class StripeDataBuffer extends DataBuffer {
+
+        StripeDataBuffer(int size) {
+            super(DataBuffer.TYPE_INT, size);
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            int row = i / width;
+            if (currentStripe < 0 || row < stripeStart(currentStripe)
+                || row >= stripeStart(currentStripe) + stripeRows(currentStripe)) {
+                moveTo(row);
+            }
+            return stripeData[i - stripeStart(currentStripe) * width];
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            throw new UnsupportedOperationException("The image is read only!");
+        }
+    }
+
+    /**
+     * Delivers the content of the stripes. The stripes are requested exactly once and in ascending order.
+     */
+    public interface StripeSource {
+
+        /**
+         * Draws the content of one stripe.
+         *
+         * @param stripeIndex the number of the stripe, starting with 0
+         * @param y           the first row of the image which is covered by the stripe
+         * @param rows        the number of rows of the stripe, only the last stripe may be shorter
+         * @param graphics    the graphics of the stripe, the point (0,0) is the point (0,y) of the image
+         */
+        void drawStripe(int stripeIndex, int y, int rows, Graphics2D graphics) throws IOException;
+    }
+
+    /**
+     * Is called with every stripe after it was drawn, in ascending order.
+     */
+    public interface StripeListener {
+
+        /**
+         * @param rgb  the pixels of the stripe in <code>TYPE_INT_RGB</code>, one row of the image after another,
+         *             the array is reused for the next stripe
+         * @param y    the first row of the image which is covered by the stripe
+         * @param rows the number of rows of the stripe
+         */
+        void stripeDrawn(int[] rgb, int y, int rows);
+    }
+}
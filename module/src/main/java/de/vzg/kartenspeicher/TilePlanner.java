@@ -0,0 +1,229 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import de.digitalcollections.iiif.model.image.ImageApiProfile;
+import de.digitalcollections.iiif.model.image.ImageService;
+import de.digitalcollections.iiif.model.image.TileInfo;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mycore.common.config.MCRConfiguration2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Plans the requests which download an image with as few requests as the image service allows. Servers which support
+ * arbitrary regions (<code>regionByPx</code>) are asked for regions of several tiles, as large as the
+ * <code>maxWidth</code>, <code>maxHeight</code> and <code>maxArea</code> of the profile and
+ * {@link #MAX_REGION_PIXELS_PROPERTY} allow, or for the whole image in one request. Level 0 servers only deliver their
+ * tiles, so they get one request per tile.
+ * <p>
+ * Regions stay aligned to the tile grid, so servers can still answer from their tile cache. Among the plans with the
+ * fewest requests the one with the lowest regions is chosen, because the stitching holds a whole row of regions in
+ * memory.
+ */
+public class TilePlanner {
+
+    /**
+     * The largest region in pixels which is requested at once, it bounds the memory of a decoded region.
+     */
+    public static final String MAX_REGION_PIXELS_PROPERTY = "MCR.Kartenspeicher.Download.MaxRegionPixels";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final String serviceId;
+
+    private final int width;
+
+    private final int height;
+
+    private final int tileWidth;
+
+    private final int tileHeight;
+
+    private final boolean regionByPx;
+
+    private final int maxWidth;
+
+    private final int maxHeight;
+
+    private final long maxArea;
+
+    /**
+     * @param serviceId       the id of the image service to which the requests are sent
+     * @param tileInfo        the tiles to which the regions are aligned
+     * @param maxRegionPixels the largest region in pixels which is requested at once
+     */
+    public TilePlanner(String serviceId, ImageService imageService, TileInfo tileInfo, long maxRegionPixels) {
+        this.serviceId = serviceId;
+        this.width = imageService.getWidth();
+        this.height = imageService.getHeight();
+        this.tileWidth = tileInfo.getWidth();
+        // the height is optional and defaults to the width
+        this.tileHeight = tileInfo.getHeight() != null ? tileInfo.getHeight() : tileWidth;
+
+        ImageApiProfile profile = getProfile(imageService);
+        Set<ImageApiProfile.Feature> features = profile != null ? profile.getFeatures() : null;
+        this.regionByPx = features != null && features.contains(ImageApiProfile.Feature.REGION_BY_PX);
+        Integer profileMaxWidth = profile != null ? profile.getMaxWidth() : null;
+        Integer profileMaxHeight = profile != null ? profile.getMaxHeight() : null;
+        Long profileMaxArea = profile != null ? profile.getMaxArea() : null;
+        this.maxWidth = profileMaxWidth != null ? profileMaxWidth : Integer.MAX_VALUE;
+        // the maximum height defaults to the maximum width
+        this.maxHeight = profileMaxHeight != null ? profileMaxHeight : maxWidth;
+        this.maxArea = Math.min(profileMaxArea != null ? profileMaxArea : Long.MAX_VALUE, maxRegionPixels);
+    }
+
+    /**
+     * Creates a planner with the region limit of {@link #MAX_REGION_PIXELS_PROPERTY}.
+     */
+    public TilePlanner(String serviceId, ImageService imageService, TileInfo tileInfo) {
+        this(serviceId, imageService, tileInfo,
+            MCRConfiguration2.getLong(MAX_REGION_PIXELS_PROPERTY).orElse(4_194_304L));
+    }
+
+    private static ImageApiProfile getProfile(ImageService imageService) {
+        if (imageService.getProfiles() == null || imageService.getProfiles().isEmpty()) {
+            return null;
+        }
+        try {
+            return ImageApiProfile.merge(imageService.getProfiles());
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not read the profile of {}, requesting single tiles", imageService.getIdentifier(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Plans the requests of one resolution level.
+     *
+     * @param scaleFactor the image is reduced by this factor, 1 for the full resolution
+     */
+    public Plan plan(int scaleFactor) {
+        int levelWidth = (width + scaleFactor - 1) / scaleFactor;
+        int levelHeight = (height + scaleFactor - 1) / scaleFactor;
+        int columns = (levelWidth + tileWidth - 1) / tileWidth;
+        int rows = (levelHeight + tileHeight - 1) / tileHeight;
+
+        int bestColumns = 1;
+        int bestRows = 1;
+        if (regionByPx) {
+            long bestRequests = (long) columns * rows;
+            long bestHeight = Math.min(tileHeight, levelHeight);
+            long bestArea = (long) Math.min(tileWidth, levelWidth) * bestHeight;
+            for (int regionRows = 1; regionRows <= rows; regionRows++) {
+                int regionHeight = Math.min(regionRows * tileHeight, levelHeight);
+                if (regionHeight > maxHeight) {
+                    break;
+                }
+                for (int regionColumns = 1; regionColumns <= columns; regionColumns++) {
+                    int regionWidth = Math.min(regionColumns * tileWidth, levelWidth);
+                    long area = (long) regionWidth * regionHeight;
+                    if (regionWidth > maxWidth || area > maxArea) {
+                        break;
+                    }
+                    long requests = (long) ceilDiv(columns, regionColumns) * ceilDiv(rows, regionRows);
+                    if (requests < bestRequests || requests == bestRequests && (regionHeight < bestHeight
+                        || regionHeight == bestHeight && area < bestArea)) {
+                        bestRequests = requests;
+                        bestHeight = regionHeight;
+                        bestArea = area;
+                        bestColumns = regionColumns;
+                        bestRows = regionRows;
+                    }
+                }
+            }
+        }
+        return new Plan(planTiles(levelWidth, levelHeight, bestColumns * tileWidth, bestRows * tileHeight,
+            scaleFactor), Math.min(bestRows * tileHeight, levelHeight));
+    }
+
+    /**
+     * Lists the regions of one resolution level in the order in which they are drawn.
+     *
+     * @param regionWidth  the width of a region in the scaled image
+     * @param regionHeight the height of a region in the scaled image
+     * @return the tiles with their positions in the scaled image
+     */
+    private List<IIIFTileFetcher.Tile> planTiles(int levelWidth, int levelHeight, int regionWidth, int regionHeight,
+        int scaleFactor) {
+        if (regionWidth >= levelWidth && regionHeight >= levelHeight) {
+            String size = scaleFactor == 1 ? "full" : levelWidth + ",";
+            return Collections.singletonList(new IIIFTileFetcher.Tile(0, 0, levelWidth, levelHeight, serviceId,
+                "full", size));
+        }
+        int fullRegionWidth = regionWidth * scaleFactor;
+        int fullRegionHeight = regionHeight * scaleFactor;
+
+        List<IIIFTileFetcher.Tile> tileList = new ArrayList<>();
+        for (int yStart = 0, yLevel = 0; yStart < height; yStart += fullRegionHeight, yLevel += regionHeight) {
+            int curTileHeight = Math.min(fullRegionHeight, height - yStart);
+            for (int xStart = 0, xLevel = 0; xStart < width; xStart += fullRegionWidth, xLevel += regionWidth) {
+                int curTileWidth = Math.min(fullRegionWidth, width - xStart);
+
+                String region = xStart + "," + yStart + "," + curTileWidth + "," + curTileHeight;
+                if (scaleFactor == 1) {
+                    tileList.add(new IIIFTileFetcher.Tile(xStart, yStart, curTileWidth, curTileHeight, serviceId,
+                        region, "full"));
+                } else {
+                    int scaledWidth = (curTileWidth + scaleFactor - 1) / scaleFactor;
+                    int scaledHeight = (curTileHeight + scaleFactor - 1) / scaleFactor;
+                    tileList.add(new IIIFTileFetcher.Tile(xLevel, yLevel, scaledWidth, scaledHeight, serviceId,
+                        region, scaledWidth + ","));
+                }
+            }
+        }
+        return tileList;
+    }
+
+    private static int ceilDiv(int dividend, int divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    /**
+     * The requests of one resolution level.
+     */
+    public static class Plan {
+        private final List<IIIFTileFetcher.Tile> tiles;
+
+        private final int rowHeight;
+
+        Plan(List<IIIFTileFetcher.Tile> tiles, int rowHeight) {
+            this.tiles = tiles;
+            this.rowHeight = rowHeight;
+        }
+
+        /**
+         * @return the requests with the positions of their results in the scaled image, row by row
+         */
+        public List<IIIFTileFetcher.Tile> getTiles() {
+            return tiles;
+        }
+
+        /**
+         * @return the height of a row of regions in the scaled image, which is the height of the stitched stripes
+         */
+        public int getRowHeight() {
+            return rowHeight;
+        }
+    }
+}
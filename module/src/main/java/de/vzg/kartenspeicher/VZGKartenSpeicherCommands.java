@@ -22,11 +22,12 @@ import org.mycore.frontend.cli.annotation.MCRCommandGroup;
 import org.mycore.mods.MCRMODSWrapper;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Locale;
 import java.util.Optional;
 
@@ -37,44 +38,206 @@ public class VZGKartenSpeicherCommands {
             help = "tries to reload object {0} from the catalog",
             order = 30)
     public static void reloadObject(String objid) throws Exception {
-        IIIFMapImporter.updateObject(objid, false);
+        ImportMetrics.measure("update object " + objid, () -> IIIFMapImporter.updateObject(objid, false));
+    }
+
+    @MCRCommand(syntax = "update object {0} from catalog and reload as pyramid tiff",
+            help = "tries to reload object {0} from the catalog and stores the maps as tiled multi-resolution tiff",
+            order = 14)
+    public static void reloadObjectReloadTiff(String objid) throws Exception {
+        ImportMetrics.measure("update object " + objid,
+            () -> IIIFMapImporter.updateObject(objid, true, IIIFMapImporter.OutputFormat.PYRAMID_TIFF));
+    }
+
+    @MCRCommand(syntax = "update object {0} from catalog and reference images",
+            help = "tries to reload object {0} from the catalog and replaces the maps with references to the iiif images, which are fetched when they are viewed",
+            order = 13)
+    public static void reloadObjectReference(String objid) throws Exception {
+        ImportMetrics.measure("update object " + objid,
+            () -> IIIFMapImporter.updateObject(objid, true, IIIFMapImporter.OutputFormat.IIIF_REFERENCE));
+    }
+
+    @MCRCommand(syntax = "update object {0} from catalog and reload all",
+            help = "tries to reload object {0} from the catalog and downloads all maps again, even those which did not change in the manifest",
+            order = 11)
+    public static void reloadObjectReloadAll(String objid) throws Exception {
+        ImportMetrics.measure("update object " + objid, () -> IIIFMapImporter.updateObject(objid, true,
+            IIIFMapImporter.OutputFormat.getConfigured(), true));
     }
 
     @MCRCommand(syntax = "update object {0} from catalog and reload",
             help = "tries to reload object {0} from the catalog",
             order = 15)
     public static void reloadObjectReload(String objid) throws Exception {
-        IIIFMapImporter.updateObject(objid, true);
+        ImportMetrics.measure("update object " + objid, () -> IIIFMapImporter.updateObject(objid, true));
     }
     @MCRCommand(syntax = "update ppn {0} from {1}",
             help = "tries to reload the xml metadata of the ppn {0} from the catalog {1}",
             order = 25)
     public static void reloadPicaIIIF(String ppn, String catalog) throws Exception {
-        IIIFMapImporter.importPair(ppn, catalog, null,null,null,null, false);
+        ImportMetrics.measure("update ppn " + ppn,
+            () -> IIIFMapImporter.importPair(ppn, catalog, null,null,null,null, false));
+    }
+
+    @MCRCommand(syntax = "update ppn {0} from {1} with stored record",
+            help = "transforms the stored catalog record of the ppn {0} from the catalog {1} again and updates the object, without asking the catalog",
+            order = 8)
+    public static void retransformStoredRecord(String ppn, String catalog) throws Exception {
+        ImportMetrics.measure("update ppn " + ppn, () -> IIIFMapImporter.retransformStoredRecord(ppn, catalog));
+    }
+
+    @MCRCommand(syntax = "update ppn {0} from {1} and reload all",
+            help = "tries to reload the xml metadata of the ppn {0} from the catalog {1} and downloads all maps again, even those which did not change in the manifest",
+            order = 7)
+    public static void reloadPicaIIIFRedownloadAll(String ppn, String catalog) throws Exception {
+        ImportMetrics.measure("update ppn " + ppn, () -> IIIFMapImporter.importPair(ppn, catalog, null,null,null,null,
+            true, IIIFMapImporter.OutputFormat.getConfigured(), true));
+    }
+
+    @MCRCommand(syntax = "update ppn {0} from {1} and reload as pyramid tiff",
+            help = "tries to reload the xml metadata of the ppn {0} from the catalog {1} and redownloads the maps as tiled multi-resolution tiff",
+            order = 9)
+    public static void reloadPicaIIIFRedownloadTiff(String ppn, String catalog) throws Exception {
+        ImportMetrics.measure("update ppn " + ppn, () -> IIIFMapImporter.importPair(ppn, catalog, null,null,null,null,
+            true, IIIFMapImporter.OutputFormat.PYRAMID_TIFF));
     }
 
     @MCRCommand(syntax = "update ppn {0} from {1} and reload",
             help = "tries to reload the xml metadata of the ppn {0} from the catalog {1} and redownloads the maps",
             order = 10)
     public static void reloadPicaIIIFRedownload(String ppn, String catalog) throws Exception {
-        IIIFMapImporter.importPair(ppn, catalog, null,null,null,null, true);
+        ImportMetrics.measure("update ppn " + ppn,
+            () -> IIIFMapImporter.importPair(ppn, catalog, null,null,null,null, true));
     }
     @MCRCommand(syntax = "import ppn {0} from {1} with manifest {2} with project {3} with institute {4} with collection {5}",
             help = "Imports a object represented by ppn from k10p and downloads all images from a iiif manifest to a derivate",
             order = 20)
     public static void importPicaIIIF(String ppn, String catalog, String manifest, String projectID, String instituteID, String collection) throws Exception {
-        IIIFMapImporter.importPair(ppn, catalog, manifest, projectID, instituteID, collection, false);
+        ImportMetrics.measure("import ppn " + ppn, () -> IIIFMapImporter.importPair(ppn, catalog, manifest, projectID,
+            instituteID, collection, false));
+    }
+
+    @MCRCommand(syntax = "import ppn {0} from {1} with manifest {2} with project {3} with institute {4} with collection {5} and reload as pyramid tiff",
+            help = "Imports a object represented by ppn from k10p and downloads all images from a iiif manifest as tiled multi-resolution tiff to a derivate",
+            order = 4)
+    public static void importPicaIIIFRedownloadTiff(String ppn, String catalog, String manifest, String projectID, String instituteID, String collection) throws Exception {
+        ImportMetrics.measure("import ppn " + ppn, () -> IIIFMapImporter.importPair(ppn, catalog, manifest, projectID,
+            instituteID, collection, true, IIIFMapImporter.OutputFormat.PYRAMID_TIFF));
+    }
+
+    @MCRCommand(syntax = "import ppn {0} from {1} with manifest {2} with project {3} with institute {4} with collection {5} and reference images",
+            help = "Imports a object represented by ppn from k10p and creates a derivate which only references the images of a iiif manifest, they are fetched when they are viewed",
+            order = 6)
+    public static void importPicaIIIFReference(String ppn, String catalog, String manifest, String projectID, String instituteID, String collection) throws Exception {
+        ImportMetrics.measure("import ppn " + ppn, () -> IIIFMapImporter.importPair(ppn, catalog, manifest, projectID,
+            instituteID, collection, true, IIIFMapImporter.OutputFormat.IIIF_REFERENCE));
     }
 
     @MCRCommand(syntax = "import ppn {0} from {1} with manifest {2} with project {3} with institute {4} with collection {5} and reload",
             help = "Imports a object represented by ppn from k10p and downloads all images from a iiif manifest to a derivate",
             order = 5)
     public static void importPicaIIIFRedownload(String ppn, String catalog, String manifest, String projectID, String instituteID, String collection) throws Exception {
-        IIIFMapImporter.importPair(ppn, catalog, manifest, projectID, instituteID, collection, true);
+        ImportMetrics.measure("import ppn " + ppn, () -> IIIFMapImporter.importPair(ppn, catalog, manifest, projectID,
+            instituteID, collection, true));
+    }
+
+    @MCRCommand(syntax = "import batch from file {0} with report {1} and reload",
+            help = "Imports all rows (ppn, catalog, manifest, project, institute, collection) of the tab or comma separated file {0}, redownloads the maps of existing objects and writes the result of every row to {1}",
+            order = 2)
+    public static void importBatchRedownload(String file, String report) throws Exception {
+        ImportMetrics.measure("import batch from file " + file,
+            () -> new BatchImporter(true, IIIFMapImporter.OutputFormat.getConfigured())
+                .importFile(Paths.get(file), Paths.get(report)));
     }
 
-    private static final String MAP_DOWNLOAD = "MAP_DOWNLOAD";
-    private static final String URL_TEMPLATE = "http://gdz.sub.uni-goettingen.de/tiff/%s/00000001.tif";
+    @MCRCommand(syntax = "import batch from file {0} with report {1}",
+            help = "Imports all rows (ppn, catalog, manifest, project, institute, collection) of the tab or comma separated file {0} and writes the result of every row to {1}",
+            order = 3)
+    public static void importBatch(String file, String report) throws Exception {
+        ImportMetrics.measure("import batch from file " + file,
+            () -> new BatchImporter(false, IIIFMapImporter.OutputFormat.getConfigured())
+                .importFile(Paths.get(file), Paths.get(report)));
+    }
+
+    @MCRCommand(syntax = "load ppn index",
+            help = "Loads the ppns of all objects from solr, so following imports in this session do not look up every ppn in solr. Objects which are created or deleted by others afterwards are not noticed.",
+            order = 40)
+    public static void loadPPNIndex() throws Exception {
+        PPNObjectIndex.getInstance().load();
+    }
+
+    @MCRCommand(syntax = "unload ppn index",
+            help = "Drops the ppn index, following imports look up every ppn in solr again",
+            order = 41)
+    public static void unloadPPNIndex() {
+        PPNObjectIndex.getInstance().unload();
+    }
+
+    @MCRCommand(syntax = "retransform all stored records without saving",
+            help = "Transforms all stored catalog records with pica2mods in parallel and logs the throughput, the objects are not changed",
+            order = 44)
+    public static void retransformStoredRecordsWithoutSaving() throws Exception {
+        ImportMetrics.measure("retransform all stored records without saving",
+            () -> new StoredRecordRetransformer(false).run());
+    }
+
+    @MCRCommand(syntax = "retransform all stored records",
+            help = "Transforms all stored catalog records with pica2mods in parallel and updates their objects, without asking the catalog",
+            order = 45)
+    public static void retransformStoredRecords() throws Exception {
+        ImportMetrics.measure("retransform all stored records", () -> {
+            int failed = new StoredRecordRetransformer(true).run();
+            if (failed > 0) {
+                throw new MCRException(failed + " stored records could not be transformed, see the log for details");
+            }
+        });
+    }
+
+    @MCRCommand(syntax = "index map extents of all objects",
+            help = "Indexes all objects with coordinates again, so their extent is searchable in the solr field mods.bbox",
+            order = 46)
+    public static void indexMapExtents() {
+        MapExtentIndexer.indexAll();
+    }
+
+    @MCRCommand(syntax = "verify project {0}",
+            help = "Checks the files of all objects of the project {0} in parallel against their recorded digests and downloads the images of damaged objects again",
+            order = 47)
+    public static void verifyProject(String project) throws Exception {
+        ImportMetrics.measure("verify project " + project, () -> {
+            int damaged = new DerivateVerifier(project, true).run();
+            if (damaged > 0) {
+                throw new MCRException(damaged + " objects of project " + project + " are still damaged, see the log for details");
+            }
+        });
+    }
+
+    @MCRCommand(syntax = "verify project {0} without reimport",
+            help = "Checks the files of all objects of the project {0} in parallel against their recorded digests and only logs the damaged objects",
+            order = 48)
+    public static void verifyProjectWithoutReimport(String project) throws Exception {
+        ImportMetrics.measure("verify project " + project, () -> {
+            int damaged = new DerivateVerifier(project, false).run();
+            if (damaged > 0) {
+                throw new MCRException(damaged + " objects of project " + project + " are damaged, see the log for details");
+            }
+        });
+    }
+
+    @MCRCommand(syntax = "download maps for query {0}",
+            help = "Downloads the maps of all objects matching the solr query {0} in parallel into derivates with the label " + MAP_DOWNLOAD + ", maps which are already present with the same size are skipped. Needs a full reindex once, so Solr knows mods.location.url and derivateLabel",
+            order = 49)
+    public static void downloadMapsForQuery(String query) throws Exception {
+        ImportMetrics.measure("download maps for query " + query, () -> {
+            List<String> failed = new GDZMapDownloader(query).run();
+            if (!failed.isEmpty()) {
+                throw new MCRException("The maps of " + failed.size() + " objects could not be downloaded: " + failed);
+            }
+        });
+    }
+
+    static final String MAP_DOWNLOAD = "MAP_DOWNLOAD";
+    static final String URL_TEMPLATE = "http://gdz.sub.uni-goettingen.de/tiff/%s/00000001.tif";
     private static final Logger LOGGER = LogManager.getLogger();
 
     @MCRCommand(syntax = "download map for {0}",
@@ -128,12 +291,17 @@ public class VZGKartenSpeicherCommands {
         String fileName = parts[parts.length - 1];
 
         LOGGER.info("Download from url {}", imageURLString);
-        try (InputStream is = imageURL.openStream()) {
+        long start = System.nanoTime();
+        try {
             // Create new if not exist
             MCRDerivate derivate;
             derivate = prevDerivate.map(MCRMetadataManager::retrieveMCRDerivate).orElseGet(() -> createDerivate(objectID, MAP_DOWNLOAD));
             rootPath = MCRPath.getPath(derivate.getId().toString(), "/");
-            Files.copy(is, rootPath.resolve(fileName));
+            long size = HttpFetcher.getInstance().download(imageURLString, rootPath.resolve(fileName));
+            ImportMetrics metrics = ImportMetrics.getInstance();
+            metrics.stop(ImportMetrics.Timer.IMAGE, start);
+            metrics.add(ImportMetrics.Counter.IMAGE_BYTES, size);
+            metrics.add(ImportMetrics.Counter.WRITTEN_BYTES, size);
             derivate.getDerivate().getInternals().setMainDoc(fileName);
             rethrow(() -> MCRMetadataManager.update(derivate));
         } catch (IOException e) {
@@ -143,7 +311,7 @@ public class VZGKartenSpeicherCommands {
 
     }
 
-    private static MCRDerivate createDerivate(String parentObjectID, String label) {
+    static MCRDerivate createDerivate(String parentObjectID, String label) {
         final String projectId = MCRObjectID.getInstance(parentObjectID).getProjectId();
         MCRObjectID oid = MCRObjectID.getNextFreeId(projectId, "derivate");
         final String derivateID = oid.toString();
@@ -0,0 +1,191 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.vzg.kartenspeicher;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.digitalcollections.iiif.model.ImageContent;
+import de.digitalcollections.iiif.model.Service;
+import de.digitalcollections.iiif.model.jackson.IiifObjectMapper;
+import de.digitalcollections.iiif.model.openannotation.Annotation;
+import de.digitalcollections.iiif.model.sharedcanvas.Canvas;
+import de.digitalcollections.iiif.model.sharedcanvas.Manifest;
+import de.digitalcollections.iiif.model.sharedcanvas.Resource;
+import de.digitalcollections.iiif.model.sharedcanvas.Sequence;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A manifest which was fetched and parsed once and contains exactly one image with exactly one image service in
+ * every canvas, which is what the importer can handle. The validation and the download both work on this handle, so
+ * the manifest is not fetched twice.
+ */
+public class ValidatedManifest {
+
+    /**
+     * Shared by all imports, the mapper is thread safe once it is configured.
+     */
+    public static final ObjectMapper IIIF_MAPPER = new IiifObjectMapper();
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final String url;
+
+    private final Manifest manifest;
+
+    private final List<ManifestImage> images;
+
+    private ValidatedManifest(String url, Manifest manifest, List<ManifestImage> images) {
+        this.url = url;
+        this.manifest = manifest;
+        this.images = Collections.unmodifiableList(images);
+    }
+
+    /**
+     * Fetches, parses and validates a manifest.
+     *
+     * @return the manifest or an empty optional if it could not be read or is not valid
+     */
+    public static Optional<ValidatedManifest> read(String manifestURL) {
+        ImportMetrics metrics = ImportMetrics.getInstance();
+        long start = System.nanoTime();
+        ConditionalHttpFetcher.Response response;
+        try {
+            response = ConditionalHttpFetcher.getInstance().fetch(manifestURL);
+        } catch (IOException e) {
+            LOGGER.warn("Could not read manifest {}", manifestURL, e);
+            return Optional.empty();
+        }
+        if (response.isModified()) {
+            metrics.add(ImportMetrics.Counter.MANIFEST_BYTES, response.getContent().length);
+        }
+        Optional<ValidatedManifest> manifest = parse(manifestURL, response.getContent());
+        metrics.stop(ImportMetrics.Timer.MANIFEST, start);
+        if (manifest.isPresent()) {
+            response.commit();
+        }
+        return manifest;
+    }
+
+    /**
+     * Parses and validates a manifest which was already fetched.
+     *
+     * @return the manifest or an empty optional if it could not be parsed or is not valid
+     */
+    static Optional<ValidatedManifest> parse(String manifestURL, byte[] content) {
+        Manifest manifest;
+        try {
+            manifest = IIIF_MAPPER.readValue(content, Manifest.class);
+        } catch (IOException e) {
+            LOGGER.warn("Could not read manifest {}", manifestURL, e);
+            return Optional.empty();
+        }
+
+        List<ManifestImage> images = new ArrayList<>();
+        for (Sequence sequence : manifest.getSequences()) {
+            for (Canvas canvas : sequence.getCanvases()) {
+                List<Annotation> canvasImages = canvas.getImages();
+                if (canvasImages.size() != 1) {
+                    LOGGER.warn("More than or less then one Image found in Canvas {}", canvas);
+                    return Optional.empty();
+                }
+                Annotation image = canvasImages.stream().findFirst().get();
+                Resource<ImageContent> imageResource = (Resource<ImageContent>) image.getResource();
+                List<Service> services = imageResource.getServices();
+                if (services.size() != 1) {
+                    LOGGER.warn("More than or less then one Services found in Image {}", image);
+                    return Optional.empty();
+                }
+                Service service = services.stream().findFirst().get();
+                String canvasId = canvas.getIdentifier() != null ? canvas.getIdentifier().toString() : null;
+                images.add(new ManifestImage(canvasId, service.getIdentifier().toString(), canvas.getWidth(),
+                    canvas.getHeight()));
+            }
+        }
+        return Optional.of(new ValidatedManifest(manifestURL, manifest, images));
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Manifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @return the images of all canvases in the order of the manifest
+     */
+    public List<ManifestImage> getImages() {
+        return images;
+    }
+
+    /**
+     * The image of a canvas.
+     */
+    public static class ManifestImage {
+        private final String canvasId;
+
+        private final String serviceId;
+
+        private final Integer width;
+
+        private final Integer height;
+
+        ManifestImage(String canvasId, String serviceId, Integer width, Integer height) {
+            this.canvasId = canvasId;
+            this.serviceId = serviceId;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * @return the id of the canvas, may be null
+         */
+        public String getCanvasId() {
+            return canvasId;
+        }
+
+        /**
+         * @return the id of the image service which delivers the image
+         */
+        public String getServiceId() {
+            return serviceId;
+        }
+
+        /**
+         * @return the width of the canvas, may be null
+         */
+        public Integer getWidth() {
+            return width;
+        }
+
+        /**
+         * @return the height of the canvas, may be null
+         */
+        public Integer getHeight() {
+            return height;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<xsl:stylesheet version="1.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+                xmlns:mods="http://www.loc.gov/mods/v3"
+                xmlns:extent="xalan://de.vzg.kartenspeicher.MapExtentIndexer"
+                exclude-result-prefixes="mods extent">
+    <xsl:import href="xslImport:solr-document:karten-speicher-solr.xsl"/>
+
+    <xsl:template match="mycoreobject[./metadata/def.modsContainer/modsContainer/mods:mods]">
+        <xsl:apply-imports/>
+        <!-- mods.bbox is a BBoxField, so only the first coordinates are indexed -->
+        <xsl:variable name="coordinates"
+                      select="(metadata/def.modsContainer/modsContainer/mods:mods/mods:subject/mods:cartographics/mods:coordinates)[1]"/>
+        <xsl:if test="$coordinates">
+            <xsl:variable name="envelope" select="extent:getEnvelope(normalize-space($coordinates))"/>
+            <xsl:if test="string-length($envelope) &gt; 0">
+                <field name="mods.bbox">
+                    <xsl:value-of select="$envelope"/>
+                </field>
+            </xsl:if>
+        </xsl:if>
+        <xsl:for-each select="metadata/def.modsContainer/modsContainer/mods:mods/mods:location/mods:url">
+            <field name="mods.location.url">
+                <xsl:value-of select="normalize-space(.)"/>
+            </field>
+        </xsl:for-each>
+    </xsl:template>
+
+    <xsl:template match="mycorederivate">
+        <xsl:apply-imports/>
+        <xsl:if test="@label">
+            <field name="derivateLabel">
+                <xsl:value-of select="@label"/>
+            </field>
+        </xsl:if>
+    </xsl:template>
+</xsl:stylesheet>
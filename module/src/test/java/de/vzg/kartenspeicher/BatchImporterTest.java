@@ -0,0 +1,88 @@
+package de.vzg.kartenspeicher;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mycore.common.MCRTestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class BatchImporterTest extends MCRTestCase {
+
+    @Test
+    public void readRows() throws Exception {
+        Path file = Files.createTempFile("batch", ".csv");
+        try {
+            Files.write(file, List.of(
+                "ppn,catalog,manifest,project,institute,collection",
+                "# comment",
+                "100619533,ikar,https://example.org/manifest,kartenspeicher,lbo,maps",
+                "",
+                "100619534,k10plus,,null"), StandardCharsets.UTF_8);
+
+            List<BatchImporter.Row> rows = BatchImporter.readRows(file);
+
+            Assert.assertEquals("header, comments and empty lines should be skipped", 2, rows.size());
+            BatchImporter.Row first = rows.get(0);
+            Assert.assertEquals(3, first.getLine());
+            Assert.assertEquals("100619533", first.getPpn());
+            Assert.assertEquals("ikar", first.getCatalog());
+            Assert.assertEquals("https://example.org/manifest", first.getManifestURL());
+            Assert.assertEquals("kartenspeicher", first.getProjectID());
+            Assert.assertEquals("lbo", first.getInstituteID());
+            Assert.assertEquals("maps", first.getCollection());
+
+            BatchImporter.Row second = rows.get(1);
+            Assert.assertEquals("k10plus", second.getCatalog());
+            Assert.assertNull("empty columns should be null", second.getManifestURL());
+            Assert.assertNull("null columns should be null", second.getProjectID());
+            Assert.assertNull("missing columns should be null", second.getCollection());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void readRowsSkipsRepeatedPPN() throws Exception {
+        Path file = Files.createTempFile("batch", ".csv");
+        try {
+            Files.write(file, List.of(
+                "1,k10plus,https://a.example.org/1",
+                "1,ikar,https://a.example.org/2",
+                "1,k10plus,https://b.example.org/3"), StandardCharsets.UTF_8);
+
+            List<Integer> lines = BatchImporter.readRows(file).stream()
+                .map(BatchImporter.Row::getLine)
+                .collect(Collectors.toList());
+
+            Assert.assertEquals("the same ppn in another catalog is another record", List.of(1, 2), lines);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void interleaveByHost() throws Exception {
+        Path file = Files.createTempFile("batch", ".csv");
+        try {
+            Files.write(file, List.of(
+                "1,k10plus,https://a.example.org/1",
+                "2,k10plus,https://a.example.org/2",
+                "3,k10plus,https://a.example.org/3",
+                "4,k10plus,https://b.example.org/4",
+                "5,k10plus",
+                "6,k10plus,https://b.example.org/6"), StandardCharsets.UTF_8);
+
+            List<String> ppns = BatchImporter.interleaveByHost(BatchImporter.readRows(file)).stream()
+                .map(BatchImporter.Row::getPpn)
+                .collect(Collectors.toList());
+
+            Assert.assertEquals(List.of("1", "4", "5", "2", "6", "3"), ppns);
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package de.vzg.kartenspeicher;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CoordinateConverterTest {
+
+    @Test
+    public void convertCoordinate() {
+        Assert.assertEquals("5.533333 53.183333, 5.550000 53.183333, 5.550000 53.191667, 5.533333 53.191667 ",
+            CoordinateConverter.convertCoordinate("E 005 32 00E 005 33 00N 053 11 00N 053 11 30"));
+        Assert.assertEquals("-12.500000 -4.000000, -10.250000 -4.000000, -10.250000 -5.500000, -12.500000 -5.500000 ",
+            CoordinateConverter.convertCoordinate("W 01230-W 01015/S 00400-S 00530"));
+        Assert.assertEquals("-0.000000 51.000000, 1.000000 51.000000, 1.000000 50.500000, -0.000000 50.500000 ",
+            CoordinateConverter.convertCoordinate("W 000°00°00 E 001°00 N 051°00 N 050°30"));
+    }
+
+    @Test
+    public void parse() {
+        CoordinateConverter.BoundingBox box = CoordinateConverter
+            .parse("E 005 32 00E 005 33 00N 053 11 00N 053 11 30");
+
+        Assert.assertTrue(box.isValid());
+        Assert.assertEquals(5 + 32 / 60.0, box.getWest(), 0);
+        Assert.assertEquals(5 + 33 / 60.0, box.getEast(), 0);
+        Assert.assertEquals(53 + 11 / 60.0, box.getNorth(), 0);
+        Assert.assertEquals(53 + 11 / 60.0 + 30 / 3600.0, box.getSouth(), 0);
+    }
+
+    @Test
+    public void invalid() {
+        long before = CoordinateConverter.getInvalidCount();
+
+        assertInvalid(CoordinateConverter.Reason.EMPTY, " / ");
+        assertInvalid(CoordinateConverter.Reason.MISSING_DIRECTION, "N 005 32 00E 005 33 00N 053 11 00N 053 11 30");
+        assertInvalid(CoordinateConverter.Reason.MISSING_VALUE, "E W 005 33 00N 053 11 00N 053 11 30");
+        assertInvalid(CoordinateConverter.Reason.INVALID_VALUE, "E 0053E 005 33 00N 053 11 00N 053 11 30");
+        assertInvalid(CoordinateConverter.Reason.TRAILING_CHARACTERS, "E 005 32 00E 005 33 00N 053 11 00N 053 11 30 ");
+        Assert.assertNull(CoordinateConverter.convertCoordinate("E 005 32 00E 005 33 00N 053 11 00N 053 11 30x"));
+
+        Assert.assertEquals(before + 6, CoordinateConverter.getInvalidCount());
+    }
+
+    private static void assertInvalid(CoordinateConverter.Reason reason, String coordinate) {
+        CoordinateConverter.BoundingBox box = CoordinateConverter.parse(coordinate);
+        Assert.assertFalse(box.isValid());
+        Assert.assertEquals(reason, box.getReason());
+    }
+}
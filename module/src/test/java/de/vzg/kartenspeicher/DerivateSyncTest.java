@@ -0,0 +1,147 @@
+package de.vzg.kartenspeicher;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Map;
+
+public class DerivateSyncTest extends KartenSpeicherTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Override
+    protected Map<String, String> getTestProperties() {
+        Map<String, String> properties = super.getTestProperties();
+        properties.put("MCR.Kartenspeicher.Download.Renditions", "thumbnail:100");
+        return properties;
+    }
+
+    @Test
+    public void testSyncOnlyChangedImages() throws Exception {
+        try (IIIFStandInServer server = new IIIFStandInServer(300, 200, 256, 0, 0, null)) {
+            Path root = folder.newFolder("derivate").toPath();
+
+            DerivateSync.Result first = sync(server, root, false, "a", "b");
+            Assert.assertEquals(2, first.getDownloaded());
+            Assert.assertEquals("a.jpg", first.getMainFile());
+            Assert.assertTrue(Files.exists(root.resolve("b_thumbnail.jpg")));
+            Assert.assertFalse(Files.exists(root.resolve(DerivateSync.STAGING_DIRECTORY)));
+            FileTime unchanged = Files.getLastModifiedTime(root.resolve("a.jpg"));
+
+            // the second canvas shows another image now
+            Files.writeString(root.resolve("notes.txt"), "stale");
+            DerivateSync.Result second = sync(server, root, false, "a", "c");
+            Assert.assertEquals(1, second.getDownloaded());
+            Assert.assertEquals(1, second.getKept());
+            // b.jpg, its thumbnail and notes.txt
+            Assert.assertEquals(3, second.getRemoved());
+            Assert.assertEquals(unchanged, Files.getLastModifiedTime(root.resolve("a.jpg")));
+            Assert.assertTrue(Files.exists(root.resolve("c.jpg")));
+            Assert.assertFalse(Files.exists(root.resolve("b.jpg")));
+            Assert.assertFalse(Files.exists(root.resolve("notes.txt")));
+            Assert.assertTrue(Files.exists(root.resolve("a_thumbnail.jpg")));
+            Assert.assertTrue(Files.exists(root.resolve("c_thumbnail.jpg")));
+
+            long requests = server.getRequests();
+            DerivateSync.Result third = sync(server, root, false, "a", "c");
+            Assert.assertEquals(0, third.getDownloaded());
+            Assert.assertEquals(requests, server.getRequests());
+
+            DerivateSync.Result forced = sync(server, root, true, "a", "c");
+            Assert.assertEquals(2, forced.getDownloaded());
+        }
+    }
+
+    @Test
+    public void testVerifyRecordedDigests() throws Exception {
+        try (IIIFStandInServer server = new IIIFStandInServer(300, 200, 256, 0, 0, null)) {
+            Path root = folder.newFolder("derivate").toPath();
+            sync(server, root, false, "a", "b");
+            Assert.assertTrue(DerivateSync.verify(root).get().isIntact());
+            Assert.assertEquals(server.getManifestURL("sync"), DerivateSync.verify(root).get().getManifestURL());
+
+            Files.writeString(root.resolve("b.jpg"), "damaged");
+            Files.delete(root.resolve("a.jpg"));
+            DerivateSync.Verification verification = DerivateSync.verify(root).get();
+            Assert.assertEquals(Arrays.asList("a.jpg", "b.jpg"), verification.getDamaged());
+            Assert.assertEquals(IIIFMapImporter.OutputFormat.JPEG, verification.getFormat());
+
+            sync(server, root, true, "a", "b");
+            Assert.assertTrue(DerivateSync.verify(root).get().isIntact());
+        }
+    }
+
+    @Test
+    public void testAdoptFilesOfLegacyDerivate() throws Exception {
+        try (IIIFStandInServer server = new IIIFStandInServer(300, 200, 256, 0, 0, null)) {
+            Path root = folder.newFolder("derivate").toPath();
+            Files.writeString(root.resolve("a.jpg"), "imported before the record existed");
+
+            DerivateSync.Result result = sync(server, root, false, "a", "b");
+            Assert.assertEquals(1, result.getDownloaded());
+            Assert.assertEquals(1, result.getKept());
+            Assert.assertTrue(Files.exists(root.resolve(DerivateSync.RECORD_FILE)));
+            Assert.assertTrue(DerivateSync.verify(root).get().isIntact());
+
+            // the digest of the adopted file was recorded, so a later change is noticed
+            Files.writeString(root.resolve("a.jpg"), "damaged after the adoption");
+            Assert.assertEquals(Arrays.asList("a.jpg"), DerivateSync.verify(root).get().getDamaged());
+        }
+    }
+
+    @Test
+    public void testLegacyFileOfOtherFormatIsDownloadedAgain() throws Exception {
+        try (IIIFStandInServer server = new IIIFStandInServer(300, 200, 256, 0, 0, null)) {
+            Path root = folder.newFolder("derivate").toPath();
+            Files.writeString(root.resolve("a.jpg"), "imported as jpeg");
+
+            DerivateSync.Result result = sync(server, root, IIIFMapImporter.OutputFormat.PYRAMID_TIFF, false, "a");
+            Assert.assertEquals(1, result.getDownloaded());
+            Assert.assertEquals(0, result.getKept());
+            Assert.assertEquals("a.tif", result.getMainFile());
+            Assert.assertFalse(Files.exists(root.resolve("a.jpg")));
+            Assert.assertEquals(IIIFMapImporter.OutputFormat.PYRAMID_TIFF, DerivateSync.verify(root).get().getFormat());
+        }
+    }
+
+    private static DerivateSync.Result sync(IIIFStandInServer server, Path root, boolean force, String... images)
+        throws IOException {
+        return sync(server, root, IIIFMapImporter.OutputFormat.JPEG, force, images);
+    }
+
+    private static DerivateSync.Result sync(IIIFStandInServer server, Path root, IIIFMapImporter.OutputFormat format,
+        boolean force, String... images) throws IOException {
+        ValidatedManifest manifest = ValidatedManifest.parse(server.getManifestURL("sync"),
+            createManifest(server, images)).get();
+        return new DerivateSync(root, manifest, format, force).sync();
+    }
+
+    static byte[] createManifest(IIIFStandInServer server, String... images) {
+        StringBuilder canvases = new StringBuilder();
+        for (int i = 0; i < images.length; i++) {
+            String canvas = server.getBaseURL() + "canvas/" + i;
+            String service = server.getBaseURL() + "iiif/" + images[i];
+            canvases.append(i > 0 ? "," : "")
+                .append("{\"@id\":\"").append(canvas).append("\",\"@type\":\"sc:Canvas\",\"label\":\"").append(i)
+                .append("\",\"width\":300,\"height\":200,\"images\":[{\"@type\":\"oa:Annotation\",")
+                .append("\"motivation\":\"sc:painting\",\"on\":\"").append(canvas).append("\",")
+                .append("\"resource\":{\"@id\":\"").append(service).append("/full/full/0/default.jpg\",")
+                .append("\"@type\":\"dctypes:Image\",\"service\":{")
+                .append("\"@context\":\"http://iiif.io/api/image/2/context.json\",\"@id\":\"").append(service)
+                .append("\",\"profile\":\"http://iiif.io/api/image/2/level1.json\"}}}]}");
+        }
+        return ("{\"@context\":\"http://iiif.io/api/presentation/2/context.json\",\"@id\":\""
+            + server.getManifestURL("sync") + "\",\"@type\":\"sc:Manifest\",\"label\":\"sync\","
+            + "\"sequences\":[{\"@type\":\"sc:Sequence\",\"canvases\":[" + canvases + "]}]}")
+            .getBytes(StandardCharsets.UTF_8);
+    }
+}
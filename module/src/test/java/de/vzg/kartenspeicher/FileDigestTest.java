@@ -0,0 +1,43 @@
+package de.vzg.kartenspeicher;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class FileDigestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDigestWhileWriting() throws IOException {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        FileDigest.DigestingOutputStream os = FileDigest.digesting(target);
+        try (os) {
+            os.write('a');
+            os.write("bc".getBytes(StandardCharsets.US_ASCII));
+        }
+        FileDigest digest = os.getDigest();
+        Assert.assertEquals("abc", target.toString(StandardCharsets.US_ASCII));
+        Assert.assertEquals(3, digest.getSize());
+        Assert.assertEquals("900150983cd24fb0d6963f7d28e17f72", digest.getMD5());
+        Assert.assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", digest.getSHA256());
+
+        Path file = folder.newFile().toPath();
+        Files.writeString(file, "abc");
+        Assert.assertEquals(digest, FileDigest.of(file));
+    }
+
+    @Test
+    public void testDigestOnlyAfterClose() {
+        FileDigest.DigestingOutputStream os = FileDigest.digesting(new ByteArrayOutputStream());
+        Assert.assertThrows(IllegalStateException.class, os::getDigest);
+    }
+}
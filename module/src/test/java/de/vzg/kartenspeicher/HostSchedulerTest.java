@@ -0,0 +1,75 @@
+package de.vzg.kartenspeicher;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class HostSchedulerTest {
+
+    @Test
+    public void testParseRetryAfter() {
+        Instant now = Instant.parse("2021-10-21T07:28:00Z");
+        Assert.assertEquals(Optional.of(Duration.ofSeconds(120)), HostScheduler.parseRetryAfter(" 120 ", now));
+        Assert.assertEquals(Optional.of(Duration.ofSeconds(30)),
+            HostScheduler.parseRetryAfter("Thu, 21 Oct 2021 07:28:30 GMT", now));
+        Assert.assertEquals(Optional.of(Duration.ZERO),
+            HostScheduler.parseRetryAfter("Thu, 21 Oct 2021 07:00:00 GMT", now));
+        Assert.assertEquals(Optional.empty(), HostScheduler.parseRetryAfter("soon", now));
+        Assert.assertEquals(Optional.empty(), HostScheduler.parseRetryAfter(null, now));
+    }
+
+    @Test
+    public void testRequestsPerSecond() throws InterruptedException {
+        HostScheduler scheduler = new HostScheduler(4, 1000, Duration.ofSeconds(1),
+            Map.of(), Map.of("slow.example.org", 10d));
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            scheduler.acquire("https://slow.example.org/tile/" + i).close();
+        }
+        long slow = System.nanoTime() - start;
+        Assert.assertTrue("4 requests at 10 per second need 300 ms, but took " + slow / 1_000_000 + " ms",
+            slow >= 290_000_000L);
+
+        start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            scheduler.acquire("https://fast.example.org/tile/" + i).close();
+        }
+        Assert.assertTrue("other hosts should not wait", System.nanoTime() - start < 200_000_000L);
+    }
+
+    @Test
+    public void testMaxConcurrent() throws InterruptedException {
+        HostScheduler scheduler = new HostScheduler(1, 0, Duration.ofSeconds(1), Map.of(), Map.of());
+        HostScheduler.Permit first = scheduler.acquire("https://example.org/a");
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread second = new Thread(() -> {
+            try {
+                scheduler.acquire("https://example.org/b").close();
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        second.start();
+        Assert.assertFalse("the second request has to wait", acquired.await(200, TimeUnit.MILLISECONDS));
+        scheduler.acquire("https://other.example.org/a").close();
+        first.close();
+        Assert.assertTrue(acquired.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRetryAfterIsCapped() throws InterruptedException {
+        HostScheduler scheduler = new HostScheduler(4, 0, Duration.ofMillis(300), Map.of(), Map.of());
+        scheduler.retryAfter("https://example.org/a", Duration.ofHours(1));
+        long start = System.nanoTime();
+        scheduler.acquire("https://example.org/b").close();
+        long waited = System.nanoTime() - start;
+        Assert.assertTrue("waited " + waited / 1_000_000 + " ms", waited >= 250_000_000L && waited < 1_000_000_000L);
+    }
+}
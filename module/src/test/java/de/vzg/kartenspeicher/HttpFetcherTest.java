@@ -0,0 +1,162 @@
+package de.vzg.kartenspeicher;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HttpFetcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private HttpServer server;
+
+    private HttpFetcher fetcher;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        // fails twice with 503, then answers
+        server.createContext("/flaky", exchange -> {
+            if (requests.incrementAndGet() <= 2) {
+                exchange.sendResponseHeaders(503, -1);
+            } else {
+                respond(exchange, "content");
+            }
+            exchange.close();
+        });
+        server.createContext("/missing", exchange -> {
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.createContext("/stalled", exchange -> {
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(200, 100);
+            exchange.getResponseBody().write(new byte[10]);
+            exchange.getResponseBody().flush();
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        });
+        // asks to wait one second once
+        server.createContext("/busy", exchange -> {
+            if (requests.incrementAndGet() == 1) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(429, -1);
+            } else {
+                respond(exchange, "content");
+            }
+            exchange.close();
+        });
+        server.createContext("/file", exchange -> {
+            requests.incrementAndGet();
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Length", "7");
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                respond(exchange, "content");
+            }
+            exchange.close();
+        });
+        server.setExecutor(executor);
+        server.start();
+        fetcher = new HttpFetcher(HttpClient.Version.HTTP_1_1, Duration.ofSeconds(1), Duration.ofMillis(300), 2, 10,
+            20, new HostScheduler(4, 0, Duration.ofSeconds(5), Map.of(), Map.of()));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRetryTemporaryStatus() throws IOException {
+        Assert.assertEquals("content", new String(fetcher.fetch(url("/flaky")), StandardCharsets.UTF_8));
+        Assert.assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testDownloadRetries() throws IOException {
+        Path target = folder.getRoot().toPath().resolve("download");
+        Assert.assertEquals(7, fetcher.download(url("/flaky"), target));
+        Assert.assertEquals("content", Files.readString(target));
+    }
+
+    @Test
+    public void testContentLengthWithoutBody() throws IOException {
+        Assert.assertEquals(7, fetcher.getContentLength(url("/file")));
+        Assert.assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testRetryAfter() throws IOException {
+        long start = System.nanoTime();
+        Assert.assertEquals("content", new String(fetcher.fetch(url("/busy")), StandardCharsets.UTF_8));
+        Assert.assertEquals(2, requests.get());
+        Assert.assertTrue("the host should be paused for a second", System.nanoTime() - start >= 900_000_000L);
+    }
+
+    @Test
+    public void testNoRetryForMissing() {
+        HttpFetcher.StatusException e = Assert.assertThrows(HttpFetcher.StatusException.class,
+            () -> fetcher.fetch(url("/missing")));
+        Assert.assertEquals(404, e.getStatus());
+        Assert.assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testStalledBodyTimesOut() {
+        Assert.assertThrows(HttpTimeoutException.class, () -> fetcher.fetch(url("/stalled")));
+        Assert.assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testStalledDownloadKeepsPreviousFile() throws IOException {
+        Path target = folder.getRoot().toPath().resolve("download");
+        Files.writeString(target, "previous");
+        Assert.assertThrows(HttpTimeoutException.class, () -> fetcher.download(url("/stalled"), target));
+        Assert.assertEquals(3, requests.get());
+        Assert.assertEquals("previous", Files.readString(target));
+        Assert.assertEquals("the partial file should be removed", 1, folder.getRoot().list().length);
+    }
+
+    private String url(String path) {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    private static void respond(HttpExchange exchange, String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
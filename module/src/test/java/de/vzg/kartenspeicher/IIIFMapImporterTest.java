@@ -2,11 +2,71 @@ package de.vzg.kartenspeicher;
 
 import org.jdom2.Element;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mycore.common.MCRConstants;
-import  org.mycore.common.MCRTestCase;
 
-public class IIIFMapImporterTest extends MCRTestCase {
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+public class IIIFMapImporterTest extends KartenSpeicherTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Override
+    protected Map<String, String> getTestProperties() {
+        Map<String, String> properties = super.getTestProperties();
+        // regions of 2 x 1 tiles, so the rows of the regions are 100 pixels high
+        properties.put("MCR.Kartenspeicher.Download.MaxRegionPixels", "20000");
+        return properties;
+    }
+
+    @Test
+    public void testPyramidTiffWithUnalignedTileSize() throws Exception {
+        // the tiff tiles are 112 pixels high, the regions of the image service 100
+        try (IIIFStandInServer server = new IIIFStandInServer(500, 350, 100, 0, 0, null);
+            IIIFTileFetcher tileFetcher = new IIIFTileFetcher()) {
+            Path target = folder.getRoot().toPath();
+            ValidatedManifest.ManifestImage image = new ValidatedManifest.ManifestImage(null,
+                server.getBaseURL() + "iiif/map", 500, 350);
+            String filename = IIIFMapImporter.downloadImage(tileFetcher, "test", image, target,
+                IIIFMapImporter.OutputFormat.PYRAMID_TIFF).getE1();
+
+            ImageReader reader = ImageIO.getImageReadersByFormatName("tiff").next();
+            try (ImageInputStream iis = ImageIO.createImageInputStream(target.resolve(filename).toFile())) {
+                reader.setInput(iis);
+                Assert.assertEquals(500, reader.getWidth(0));
+                Assert.assertEquals(350, reader.getHeight(0));
+                Assert.assertEquals(112, reader.getTileHeight(0));
+                BufferedImage read = reader.read(0);
+                Assert.assertEquals(350, read.getHeight());
+                // the second row of regions starts above the second stripe and has to be drawn into both
+                int[] row = read.getRGB(0, 150, 500, 1, null, 0, 500);
+                Assert.assertTrue(Arrays.stream(row).anyMatch(pixel -> (pixel & 0xFFFFFF) != 0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    @Test
+    public void keepsInstituteAndCollection() {
+        Assert.assertTrue("nothing passed", IIIFMapImporter.keepsInstituteAndCollection(null, null, "null"));
+        Assert.assertTrue(IIIFMapImporter.keepsValue("lbo", () -> "lbo"));
+        Assert.assertFalse("another institute has to update the object",
+            IIIFMapImporter.keepsValue("gwlb", () -> "lbo"));
+        Assert.assertTrue("the object should only be read if a value was passed",
+            IIIFMapImporter.keepsValue(null, () -> {
+                throw new AssertionError();
+            }));
+    }
 
     @Test
     public void extractPPN() {
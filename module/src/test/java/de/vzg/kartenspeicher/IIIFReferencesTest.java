@@ -0,0 +1,89 @@
+package de.vzg.kartenspeicher;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class IIIFReferencesTest extends KartenSpeicherTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Override
+    protected Map<String, String> getTestProperties() {
+        Map<String, String> properties = super.getTestProperties();
+        properties.put("MCR.Kartenspeicher.Download.Renditions", "thumbnail:100");
+        return properties;
+    }
+
+    @Test
+    public void testFetchOnFirstAccess() throws Exception {
+        try (IIIFStandInServer server = new IIIFStandInServer(300, 200, 256, 0, 0, null)) {
+            Path root = folder.newFolder("derivate").toPath();
+            Files.writeString(root.resolve("a.jpg"), "downloaded by an earlier import");
+            ValidatedManifest manifest = ValidatedManifest.parse(server.getManifestURL("references"),
+                DerivateSyncTest.createManifest(server, "a", "b")).get();
+
+            // the main file is a rendition which the derivate really holds
+            Assert.assertEquals("a_thumbnail.jpg", IIIFReferences.write(root, manifest));
+            try (Stream<Path> files = Files.list(root)) {
+                Assert.assertEquals(Arrays.asList(IIIFReferences.RECORD_FILE, "a_thumbnail.jpg", "b_thumbnail.jpg"),
+                    files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList()));
+            }
+            Assert.assertEquals(100, ImageIO.read(root.resolve("a_thumbnail.jpg").toFile()).getWidth());
+            // one size request per rendition, nothing is stitched
+            Assert.assertEquals(2, server.getRequests());
+
+            IIIFReferences references = IIIFReferences.read(root).get();
+            Assert.assertEquals(Arrays.asList("a.jpg", "b.jpg"), references.getFilenames().stream()
+                .collect(Collectors.toList()));
+            Assert.assertEquals(Integer.valueOf(300), references.getImage("b.jpg").get().getWidth());
+
+            IIIFTileCache cache = new IIIFTileCache(folder.newFolder("cache").toPath(), 10_000_000);
+            // a thumbnail is fetched with a single size request, the image is not stitched for it
+            Optional<Path> thumbnail = references.fetch("b_thumbnail.jpg", cache);
+            Assert.assertEquals(100, ImageIO.read(thumbnail.get().toFile()).getWidth());
+            Assert.assertEquals(3, server.getRequests());
+
+            BufferedImage image = ImageIO.read(references.fetch("a.jpg", cache).get().toFile());
+            Assert.assertEquals(300, image.getWidth());
+            Assert.assertEquals(200, image.getHeight());
+            long requests = server.getRequests();
+            Assert.assertTrue(requests > 3);
+
+            Assert.assertTrue(references.fetch("a.jpg", cache).isPresent());
+            Assert.assertTrue(references.fetch("b_thumbnail.jpg", cache).isPresent());
+            Assert.assertEquals(requests, server.getRequests());
+
+            Assert.assertFalse(references.fetch("c.jpg", cache).isPresent());
+            Assert.assertFalse(IIIFReferences.read(folder.newFolder("stored").toPath()).isPresent());
+        }
+    }
+
+    @Test
+    public void testStoreImageSmallerThanRenditions() throws Exception {
+        try (IIIFStandInServer server = new IIIFStandInServer(80, 60, 256, 0, 0, null)) {
+            Path root = folder.newFolder("derivate").toPath();
+            String json = new String(DerivateSyncTest.createManifest(server, "a"), StandardCharsets.UTF_8)
+                .replace("\"width\":300,\"height\":200", "\"width\":80,\"height\":60");
+            ValidatedManifest manifest = ValidatedManifest.parse(server.getManifestURL("references"),
+                json.getBytes(StandardCharsets.UTF_8)).get();
+
+            Assert.assertEquals("a.jpg", IIIFReferences.write(root, manifest));
+            Assert.assertEquals(80, ImageIO.read(root.resolve("a.jpg").toFile()).getWidth());
+            Assert.assertEquals(1, server.getRequests());
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package de.vzg.kartenspeicher;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * A local stand-in for the unAPI of the catalog and the IIIF servers of the libraries. Every ppn is a map with one
+ * tiled image of the configured size. The records are read from a {@link PicaRecordStore} if one is given, otherwise
+ * a minimal record is generated. Tiles are synthetic JPEGs, encoded once per size.
+ * <p>
+ * Every response is delayed by the latency and written with at most the bandwidth (in bytes per second, 0 for no
+ * limit) per connection.
+ * <ul>
+ *     <li><code>/unapi/?&amp;format=picaxml&amp;id={catalog}:ppn:{ppn}</code></li>
+ *     <li><code>/manifest/{ppn}</code></li>
+ *     <li><code>/iiif/{ppn}/info.json</code> and <code>/iiif/{ppn}/{region}/{size}/0/default.jpg</code>, where the
+ *     size is <code>full</code>, <code>max</code> or <code>w,</code> like on a level 1 service</li>
+ * </ul>
+ */
+public class IIIFStandInServer implements AutoCloseable {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private static final Pattern CANONICAL_SIZE = Pattern.compile("\\d+,");
+
+    private final int width;
+
+    private final int height;
+
+    private final int tileSize;
+
+    private final long latencyMillis;
+
+    private final long bytesPerSecond;
+
+    private final PicaRecordStore recordStore;
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final ConcurrentMap<String, byte[]> tiles = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong servedBytes = new AtomicLong();
+
+    /**
+     * @param recordStore the recorded catalog records or null to generate them
+     */
+    public IIIFStandInServer(int width, int height, int tileSize, long latencyMillis, long bytesPerSecond,
+        PicaRecordStore recordStore) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.latencyMillis = latencyMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        this.recordStore = recordStore;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "stand-in-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/unapi/", exchange -> handle(exchange, this::record));
+        server.createContext("/manifest/", exchange -> handle(exchange, this::manifest));
+        server.createContext("/iiif/", exchange -> handle(exchange, this::image));
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String getBaseURL() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    public String getUnAPIURL() {
+        return getBaseURL() + "unapi/";
+    }
+
+    public String getManifestURL(String ppn) {
+        return getBaseURL() + "manifest/" + ppn;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getServedBytes() {
+        return servedBytes.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange, ContentSource source) throws IOException {
+        try {
+            requests.incrementAndGet();
+            String path = exchange.getRequestURI().getPath();
+            Optional<byte[]> content = source.get(path.substring(path.indexOf('/', 1) + 1),
+                exchange.getRequestURI().getQuery());
+            Thread.sleep(latencyMillis);
+            if (!content.isPresent()) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, content.get().length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                write(content.get(), os);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (RuntimeException e) {
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void write(byte[] content, OutputStream os) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        for (int offset = 0; offset < content.length; offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, content.length - offset);
+            os.write(content, offset, length);
+            servedBytes.addAndGet(length);
+            if (bytesPerSecond > 0) {
+                long due = (offset + length) * 1_000_000_000L / bytesPerSecond;
+                long ahead = due - (System.nanoTime() - start);
+                if (ahead > 0) {
+                    Thread.sleep(ahead / 1_000_000, (int) (ahead % 1_000_000));
+                }
+            }
+        }
+    }
+
+    private Optional<byte[]> record(String path, String query) throws IOException {
+        String id = query.substring(query.indexOf("id=") + 3);
+        String catalog = id.substring(0, id.indexOf(':'));
+        String ppn = id.substring(id.lastIndexOf(':') + 1);
+        if (recordStore != null) {
+            return recordStore.get(catalog, ppn);
+        }
+        return Optional.of(("<record xmlns=\"info:srw/schema/5/picaXML-v1.0\">"
+            + "<datafield tag=\"003@\"><subfield code=\"0\">" + ppn + "</subfield></datafield>"
+            + "<datafield tag=\"017H\"><subfield code=\"u\">" + getManifestURL(ppn) + "</subfield></datafield>"
+            + "<datafield tag=\"021A\"><subfield code=\"a\">Karte " + ppn + "</subfield></datafield>"
+            + "<datafield tag=\"035G\"><subfield code=\"a\">E 007 10 00</subfield><subfield code=\"b\">E 007 50 00"
+            + "</subfield><subfield code=\"c\">N 053 40 00</subfield><subfield code=\"d\">N 053 20 00</subfield>"
+            + "</datafield></record>").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Optional<byte[]> manifest(String ppn, String query) {
+        String canvas = getBaseURL() + "canvas/" + ppn;
+        String service = getBaseURL() + "iiif/" + ppn;
+        return Optional.of(("{\"@context\":\"http://iiif.io/api/presentation/2/context.json\","
+            + "\"@id\":\"" + getManifestURL(ppn) + "\",\"@type\":\"sc:Manifest\",\"label\":\"" + ppn + "\","
+            + "\"sequences\":[{\"@type\":\"sc:Sequence\",\"canvases\":[{\"@id\":\"" + canvas + "\","
+            + "\"@type\":\"sc:Canvas\",\"label\":\"1\",\"width\":" + width + ",\"height\":" + height + ","
+            + "\"images\":[{\"@type\":\"oa:Annotation\",\"motivation\":\"sc:painting\",\"on\":\"" + canvas + "\","
+            + "\"resource\":{\"@id\":\"" + service + "/full/full/0/default.jpg\",\"@type\":\"dctypes:Image\","
+            + "\"format\":\"image/jpeg\",\"service\":{\"@context\":\"http://iiif.io/api/image/2/context.json\","
+            + "\"@id\":\"" + service + "\",\"profile\":\"http://iiif.io/api/image/2/level1.json\"}}}]}]}]}")
+            .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Optional<byte[]> image(String path, String query) {
+        String[] parts = path.split("/");
+        if (parts.length == 2 && parts[1].equals("info.json")) {
+            return Optional.of(("{\"@context\":\"http://iiif.io/api/image/2/context.json\","
+                + "\"@id\":\"" + getBaseURL() + "iiif/" + parts[0] + "\",\"protocol\":\"http://iiif.io/api/image\","
+                + "\"width\":" + width + ",\"height\":" + height + ",\"tiles\":[{\"width\":" + tileSize
+                + ",\"scaleFactors\":[1,2,4,8,16]}],\"profile\":[\"http://iiif.io/api/image/2/level1.json\"]}")
+                .getBytes(StandardCharsets.UTF_8));
+        }
+        if (parts.length != 5) {
+            return Optional.empty();
+        }
+        int regionWidth = width;
+        int regionHeight = height;
+        if (!parts[1].equals("full")) {
+            String[] region = parts[1].split(",");
+            regionWidth = Math.min(Integer.parseInt(region[2]), width - Integer.parseInt(region[0]));
+            regionHeight = Math.min(Integer.parseInt(region[3]), height - Integer.parseInt(region[1]));
+        }
+        int tileWidth = regionWidth;
+        int tileHeight = regionHeight;
+        if (!parts[2].equals("full") && !parts[2].equals("max")) {
+            // a level 1 service only scales by width, like the canonical tile requests of image api 2
+            if (!CANONICAL_SIZE.matcher(parts[2]).matches()) {
+                return Optional.empty();
+            }
+            tileWidth = Integer.parseInt(parts[2].substring(0, parts[2].length() - 1));
+            tileHeight = (int) Math.round((double) regionHeight * tileWidth / regionWidth);
+        }
+        return Optional.of(tiles.computeIfAbsent(tileWidth + "x" + tileHeight, this::createTile));
+    }
+
+    private byte[] createTile(String size) {
+        int tileWidth = Integer.parseInt(size.substring(0, size.indexOf('x')));
+        int tileHeight = Integer.parseInt(size.substring(size.indexOf('x') + 1));
+        Random random = new Random(size.hashCode());
+        BufferedImage tile = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = tile.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, new Color(random.nextInt()), tileWidth, tileHeight,
+            new Color(random.nextInt())));
+        graphics.fillRect(0, 0, tileWidth, tileHeight);
+        graphics.setColor(Color.DARK_GRAY);
+        for (int i = 0; i < 200; i++) {
+            graphics.drawLine(random.nextInt(tileWidth), random.nextInt(tileHeight), random.nextInt(tileWidth),
+                random.nextInt(tileHeight));
+        }
+        graphics.dispose();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(tile, "jpg", bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private interface ContentSource {
+        Optional<byte[]> get(String path, String query) throws IOException;
+    }
+}
@@ -0,0 +1,236 @@
+package de.vzg.kartenspeicher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.rules.TemporaryFolder;
+import org.mycore.common.MCRTestCaseHelper;
+import org.mycore.common.config.MCRConfiguration2;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Drives the network and image part of the import against an {@link IIIFStandInServer}: the catalog record is
+ * fetched from the unAPI, optionally transformed with the pica2mods stylesheet, the manifest is read and validated
+ * and the tiled image is downloaded and stitched. Creating the objects is left out, it needs a database and Solr.
+ * <p>
+ * Run it with <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=de.vzg.kartenspeicher.ImportLoadHarness</code> and configure it with system properties:
+ * <code>objects</code> (200), <code>threads</code> (4), <code>width</code> and <code>height</code> of the images
+ * (8000 x 6000), <code>tileSize</code> (512), <code>latency</code> in ms (20), <code>bandwidth</code> in bytes per
+ * second and connection (0 for no limit), <code>records</code> a directory of recorded records in the layout of the
+ * {@link PicaRecordStore} (catalog k10plus) and <code>stylesheet</code> and <code>transformerFactory</code> to
+ * transform the records.
+ */
+public class ImportLoadHarness {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final String CATALOG = "k10plus";
+
+    private final IIIFStandInServer server;
+
+    private final List<String> ppns;
+
+    private final int threads;
+
+    private final Pica2ModsTransformer transformer;
+
+    private final Path workDirectory;
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private final AtomicLong writtenBytes = new AtomicLong();
+
+    /**
+     * @param transformer transforms the records or null to skip the transformation
+     */
+    public ImportLoadHarness(IIIFStandInServer server, List<String> ppns, int threads,
+        Pica2ModsTransformer transformer, Path workDirectory) {
+        this.server = server;
+        this.ppns = ppns;
+        this.threads = threads;
+        this.transformer = transformer;
+        this.workDirectory = workDirectory;
+    }
+
+    /**
+     * Imports all ppns and waits for them. The unAPI url has to point to the server.
+     */
+    public Result run() throws Exception {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        AtomicLong peakHeap = new AtomicLong(memory.getHeapMemoryUsage().getUsed());
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(
+            () -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max), 0, 20,
+            TimeUnit.MILLISECONDS);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long servedBefore = server.getServedBytes();
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (String ppn : ppns) {
+                futures.add(executor.submit(() -> importPPN(ppn)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+            sampler.shutdownNow();
+        }
+        return new Result(ppns.size() - failed.get(), failed.get(), System.nanoTime() - start,
+            server.getServedBytes() - servedBefore, writtenBytes.get(), server.getRequests(), peakHeap.get());
+    }
+
+    private void importPPN(String ppn) {
+        try {
+            CatalogRecord record = CatalogRecord.fetch(ppn, CATALOG);
+            if (transformer != null) {
+                Map<String, Object> parameters = new HashMap<>();
+                parameters.put("institute", "institute");
+                parameters.put("collection", "collection");
+                transformer.transform(record.getDocument(), parameters);
+            }
+            ValidatedManifest manifest = ValidatedManifest.read(server.getManifestURL(ppn))
+                .orElseThrow(() -> new IOException("Invalid manifest for " + ppn));
+            Path target = Files.createTempDirectory(workDirectory, ppn);
+            String mainFile = IIIFMapImporter.downloadMaps(manifest, target, IIIFMapImporter.OutputFormat.JPEG);
+            writtenBytes.addAndGet(Files.size(target.resolve(mainFile)));
+            Files.delete(target.resolve(mainFile));
+            Files.delete(target);
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            LOGGER.error("Could not import ppn {}", ppn, e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        try {
+            MCRTestCaseHelper.beforeClass(folder);
+            Map<String, String> properties = new HashMap<>();
+            properties.put("MCR.Kartenspeicher.Revalidation.Enabled", "false");
+            properties.put("MCR.Kartenspeicher.Revalidation.Directory", folder.newFolder("validators").toString());
+            properties.put("MCR.Kartenspeicher.TileCache.Directory", folder.newFolder("tiles").toString());
+            properties.put("MCR.Kartenspeicher.TileCache.MaxSize", "0");
+            properties.put("MCR.Kartenspeicher.Download.Stitching", "stripes");
+            // the stand-in server has no limits to protect
+            properties.put(HostScheduler.MAX_CONCURRENT_PROPERTY, "64");
+            properties.put(HostScheduler.REQUESTS_PER_SECOND_PROPERTY, "0");
+            MCRTestCaseHelper.before(properties);
+
+            String records = System.getProperty("records");
+            PicaRecordStore recordStore = records == null ? null : new PicaRecordStore(Paths.get(records));
+            List<String> ppns = new ArrayList<>();
+            int objects = Integer.getInteger("objects", 200);
+            for (int i = 0; i < objects; i++) {
+                ppns.add(String.valueOf(100000000 + i));
+            }
+            if (recordStore != null) {
+                ppns.clear();
+                try (Stream<IIIFMapImporter.Tuple<String, String>> stored = recordStore.list()) {
+                    stored.filter(key -> key.getE1().equals(CATALOG)).limit(objects)
+                        .forEach(key -> ppns.add(key.getE2()));
+                }
+            }
+            String stylesheet = System.getProperty("stylesheet");
+            Pica2ModsTransformer transformer = stylesheet == null ? null
+                : new Pica2ModsTransformer(stylesheet, System.getProperty("transformerFactory"));
+
+            try (IIIFStandInServer server = new IIIFStandInServer(Integer.getInteger("width", 8000),
+                Integer.getInteger("height", 6000), Integer.getInteger("tileSize", 512),
+                Long.getLong("latency", 20), Long.getLong("bandwidth", 0), recordStore)) {
+                MCRConfiguration2.set(CatalogRecord.UNAPI_URL_PROPERTY, server.getUnAPIURL());
+                Result result = new ImportLoadHarness(server, ppns, Integer.getInteger("threads", 4), transformer,
+                    folder.newFolder("work").toPath()).run();
+                System.out.println(result);
+            }
+        } finally {
+            MCRTestCaseHelper.after();
+            folder.delete();
+        }
+    }
+
+    public static class Result {
+        private final int imported;
+
+        private final int failed;
+
+        private final long nanos;
+
+        private final long servedBytes;
+
+        private final long writtenBytes;
+
+        private final long requests;
+
+        private final long peakHeap;
+
+        Result(int imported, int failed, long nanos, long servedBytes, long writtenBytes, long requests,
+            long peakHeap) {
+            this.imported = imported;
+            this.failed = failed;
+            this.nanos = nanos;
+            this.servedBytes = servedBytes;
+            this.writtenBytes = writtenBytes;
+            this.requests = requests;
+            this.peakHeap = peakHeap;
+        }
+
+        public int getImported() {
+            return imported;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public long getServedBytes() {
+            return servedBytes;
+        }
+
+        public long getWrittenBytes() {
+            return writtenBytes;
+        }
+
+        public double getObjectsPerMinute() {
+            return imported * 60e9 / nanos;
+        }
+
+        public double getBytesPerSecond() {
+            return servedBytes * 1e9 / nanos;
+        }
+
+        public long getPeakHeap() {
+            return peakHeap;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                "%d objects imported, %d failed in %.1f s: %.1f objects/min, %.2f MB/s received in %d requests, "
+                    + "%.1f MB written, peak heap %.1f MB",
+                imported, failed, nanos / 1e9, getObjectsPerMinute(), getBytesPerSecond() / 1e6, requests,
+                writtenBytes / 1e6, peakHeap / 1e6);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package de.vzg.kartenspeicher;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mycore.common.config.MCRConfiguration2;
+
+import java.util.Arrays;
+import java.util.Map;
+
+public class ImportLoadHarnessTest extends KartenSpeicherTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Override
+    protected Map<String, String> getTestProperties() {
+        Map<String, String> properties = super.getTestProperties();
+        properties.put("MCR.Kartenspeicher.Download.TileThreads", "2");
+        // regions of 2 x 1 tiles, so the images are still stitched
+        properties.put("MCR.Kartenspeicher.Download.MaxRegionPixels", "131072");
+        return properties;
+    }
+
+    @Test
+    public void importFromStandInServer() throws Exception {
+        try (IIIFStandInServer server = new IIIFStandInServer(1000, 700, 256, 0, 0, null)) {
+            MCRConfiguration2.set(CatalogRecord.UNAPI_URL_PROPERTY, server.getUnAPIURL());
+
+            ImportLoadHarness.Result result = new ImportLoadHarness(server, Arrays.asList("1", "2", "3"), 2, null,
+                folder.getRoot().toPath()).run();
+
+            Assert.assertEquals(3, result.getImported());
+            Assert.assertEquals(0, result.getFailed());
+            Assert.assertTrue(result.getWrittenBytes() > 0);
+            // record, manifest, info.json and 2 x 3 regions per object
+            Assert.assertEquals(3 * 9, server.getRequests());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package de.vzg.kartenspeicher;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ImportMetricsTest {
+
+    @Test
+    public void testSnapshotSince() {
+        ImportMetrics metrics = new ImportMetrics();
+        metrics.record(ImportMetrics.Timer.TILE_DOWNLOAD, 5_000_000);
+        metrics.add(ImportMetrics.Counter.IMAGE_BYTES, 100);
+        ImportMetrics.Snapshot before = metrics.snapshot();
+
+        metrics.record(ImportMetrics.Timer.TILE_DOWNLOAD, 3_000_000);
+        metrics.record(ImportMetrics.Timer.TILE_DOWNLOAD, 1_000_000);
+        metrics.add(ImportMetrics.Counter.IMAGE_BYTES, 50);
+        metrics.increment(ImportMetrics.Counter.TILES);
+        ImportMetrics.Snapshot delta = metrics.snapshot().since(before);
+
+        Assert.assertEquals(2, delta.getCount(ImportMetrics.Timer.TILE_DOWNLOAD));
+        Assert.assertEquals(4_000_000, delta.getNanos(ImportMetrics.Timer.TILE_DOWNLOAD));
+        Assert.assertEquals(50, delta.get(ImportMetrics.Counter.IMAGE_BYTES));
+        Assert.assertEquals(1, delta.get(ImportMetrics.Counter.TILES));
+        Assert.assertEquals(0, delta.getCount(ImportMetrics.Timer.ENCODE));
+
+        String summary = delta.format(1_000_000_000L);
+        Assert.assertTrue(summary, summary.contains("TILE_DOWNLOAD: 2 x 2.0 ms = 0.0 s"));
+        Assert.assertTrue(summary, summary.contains("1.0 tiles/s"));
+        Assert.assertFalse(summary, summary.contains("ENCODE"));
+    }
+
+    @Test
+    public void testMXBean() {
+        ImportMetrics metrics = new ImportMetrics();
+        metrics.record(ImportMetrics.Timer.ENCODE, 2_000_000);
+        metrics.record(ImportMetrics.Timer.ENCODE, 4_000_000);
+        Assert.assertEquals(2L, (long) metrics.getCounts().get("ENCODE"));
+        Assert.assertEquals(3.0, metrics.getAverageMillis().get("ENCODE"), 0.001);
+        Assert.assertEquals(4.0, metrics.getMaxMillis().get("ENCODE"), 0.001);
+
+        metrics.reset();
+        Assert.assertEquals(0L, (long) metrics.getCounts().get("ENCODE"));
+        Assert.assertEquals(0.0, metrics.getMaxMillis().get("ENCODE"), 0.001);
+    }
+}
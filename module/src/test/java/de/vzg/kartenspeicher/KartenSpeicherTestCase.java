@@ -0,0 +1,22 @@
+package de.vzg.kartenspeicher;
+
+import org.mycore.common.MCRTestCase;
+
+import java.util.Map;
+
+/**
+ * Configures the importer for tests: catalog records are not revalidated and tiles are not cached, the directories
+ * are in the data directory of the test. Tests override only the properties they vary.
+ */
+public abstract class KartenSpeicherTestCase extends MCRTestCase {
+
+    @Override
+    protected Map<String, String> getTestProperties() {
+        Map<String, String> properties = super.getTestProperties();
+        properties.put("MCR.Kartenspeicher.Revalidation.Enabled", "false");
+        properties.put("MCR.Kartenspeicher.Revalidation.Directory", "%MCR.datadir%/validators");
+        properties.put("MCR.Kartenspeicher.TileCache.Directory", "%MCR.datadir%/tiles");
+        properties.put("MCR.Kartenspeicher.TileCache.MaxSize", "0");
+        return properties;
+    }
+}
@@ -0,0 +1,46 @@
+package de.vzg.kartenspeicher;
+
+import org.jdom2.Document;
+import org.jdom2.input.SAXBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.StringReader;
+
+public class MapExtentIndexerTest {
+
+    @Test
+    public void getEnvelope() {
+        String converted = CoordinateConverter.convertCoordinate("E 005 32 00E 005 33 00N 053 11 30N 053 11 00");
+        Assert.assertEquals("ENVELOPE(5.533333, 5.55, 53.191667, 53.183333)", MapExtentIndexer.getEnvelope(converted));
+        Assert.assertEquals("ENVELOPE(-12.5, -10.25, -4.0, -5.5)",
+            MapExtentIndexer.getEnvelope("W 01230-W 01015/S 00400-S 00530"));
+        // north and south swapped
+        Assert.assertEquals("ENVELOPE(5.0, 6.0, 54.0, 53.0)",
+            MapExtentIndexer.getEnvelope("5.000000 53.000000, 6.000000 53.000000, 6.000000 54.000000, 5.000000 54.000000"));
+    }
+
+    @Test
+    public void getEnvelopeInvalid() {
+        Assert.assertEquals("", MapExtentIndexer.getEnvelope(null));
+        Assert.assertEquals("", MapExtentIndexer.getEnvelope("Maßstab 1:25000"));
+        Assert.assertEquals("", MapExtentIndexer.getEnvelope("5.0 53.0, 6.0 53.0, 6.0 54.0, 5.5 54.0"));
+        Assert.assertEquals("", MapExtentIndexer.getEnvelope("E 190 00E 191 00N 053 00N 052 00"));
+    }
+
+    @Test
+    public void hasExtent() throws Exception {
+        String object = "<mycoreobject><metadata><def.modsContainer><modsContainer>"
+            + "<mods:mods xmlns:mods=\"http://www.loc.gov/mods/v3\"><mods:subject><mods:cartographics>"
+            + "<mods:coordinates>%s</mods:coordinates>"
+            + "</mods:cartographics></mods:subject></mods:mods>"
+            + "</modsContainer></def.modsContainer></metadata></mycoreobject>";
+
+        Assert.assertTrue(MapExtentIndexer.hasExtent(parse(String.format(object, "E 005 32E 005 33N 053 11N 053 10"))));
+        Assert.assertFalse(MapExtentIndexer.hasExtent(parse(String.format(object, "unknown"))));
+    }
+
+    private static Document parse(String xml) throws Exception {
+        return new SAXBuilder().build(new StringReader(xml));
+    }
+}
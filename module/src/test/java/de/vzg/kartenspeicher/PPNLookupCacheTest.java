@@ -0,0 +1,52 @@
+package de.vzg.kartenspeicher;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mycore.common.MCRTestCase;
+import org.mycore.datamodel.metadata.MCRObjectID;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PPNLookupCacheTest extends MCRTestCase {
+
+    @Test
+    public void catalogIsPartOfTheKey() {
+        PPNLookupCache cache = new PPNLookupCache(10, 1000);
+        MCRObjectID ikarObject = MCRObjectID.getInstance("kartenspeicher_mods_00000001");
+        cache.put("ikar", "100619533", ikarObject);
+
+        Assert.assertEquals(ikarObject, cache.get("ikar", "100619533").orElse(null));
+        Assert.assertFalse("the same ppn in another catalog should not match",
+            cache.get("k10plus", "100619533").isPresent());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() {
+        PPNLookupCache cache = new PPNLookupCache(2, 1000);
+        cache.put("ikar", "1", MCRObjectID.getInstance("kartenspeicher_mods_00000001"));
+        cache.put("ikar", "2", MCRObjectID.getInstance("kartenspeicher_mods_00000002"));
+        cache.get("ikar", "1");
+        cache.put("ikar", "3", MCRObjectID.getInstance("kartenspeicher_mods_00000003"));
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertTrue(cache.get("ikar", "1").isPresent());
+        Assert.assertFalse("the least recently used entry should be evicted", cache.get("ikar", "2").isPresent());
+        Assert.assertTrue(cache.get("ikar", "3").isPresent());
+        Assert.assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void expire() {
+        AtomicLong time = new AtomicLong();
+        PPNLookupCache cache = new PPNLookupCache(10, 1000, time::get);
+        cache.put("ikar", "1", MCRObjectID.getInstance("kartenspeicher_mods_00000001"));
+
+        time.set(1000);
+        Assert.assertTrue(cache.get("ikar", "1").isPresent());
+        time.set(1001);
+        Assert.assertFalse("the entry should be expired", cache.get("ikar", "1").isPresent());
+        Assert.assertEquals(0, cache.size());
+    }
+}
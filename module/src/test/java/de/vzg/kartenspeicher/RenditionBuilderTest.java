@@ -0,0 +1,61 @@
+package de.vzg.kartenspeicher;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RenditionBuilderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAverageStripes() throws IOException {
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        sizes.put("thumbnail", 10);
+        sizes.put("preview", 50);
+        sizes.put("original", 400);
+        RenditionBuilder builder = new RenditionBuilder(200, 100, sizes);
+
+        // the upper half is white, the lower half black, passed in stripes of 30 rows
+        int[] stripe = new int[200 * 30];
+        for (int y = 0; y < 100; y += 30) {
+            int rows = Math.min(30, 100 - y);
+            for (int row = 0; row < rows; row++) {
+                Arrays.fill(stripe, row * 200, (row + 1) * 200, y + row < 50 ? 0xFFFFFF : 0);
+            }
+            builder.stripeDrawn(stripe, y, rows);
+        }
+
+        Path target = folder.getRoot().toPath();
+        List<String> written = builder.write(target, "map.tif");
+        // the image is smaller than the original rendition
+        Assert.assertEquals(Arrays.asList("map_preview.jpg", "map_thumbnail.jpg"), written);
+
+        BufferedImage preview = ImageIO.read(target.resolve("map_preview.jpg").toFile());
+        Assert.assertEquals(50, preview.getWidth());
+        Assert.assertEquals(25, preview.getHeight());
+        Assert.assertTrue((preview.getRGB(25, 2) & 0xFF) > 200);
+        Assert.assertTrue((preview.getRGB(25, 22) & 0xFF) < 50);
+
+        BufferedImage thumbnail = ImageIO.read(target.resolve("map_thumbnail.jpg").toFile());
+        Assert.assertEquals(10, thumbnail.getWidth());
+        Assert.assertEquals(5, thumbnail.getHeight());
+    }
+
+    @Test
+    public void testFilename() {
+        Assert.assertEquals("map_thumbnail.jpg", RenditionBuilder.getFilename("map.tif", "thumbnail"));
+        Assert.assertEquals("map_thumbnail.jpg", RenditionBuilder.getFilename("map", "thumbnail"));
+    }
+}
@@ -0,0 +1,68 @@
+package de.vzg.kartenspeicher;
+
+import org.jdom2.Document;
+import org.jdom2.input.SAXBuilder;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mycore.common.MCRTestCase;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class SRUCatalogClientTest extends MCRTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String RESPONSE = "<zs:searchRetrieveResponse xmlns:zs=\"http://www.loc.gov/zing/srw/\">"
+        + "<zs:numberOfRecords>2</zs:numberOfRecords><zs:records>"
+        + record("100619533") + record("10061954X")
+        + "</zs:records></zs:searchRetrieveResponse>";
+
+    private static String record(String ppn) {
+        return "<zs:record><zs:recordData>"
+            + "<record xmlns=\"info:srw/schema/5/picaXML-v1.0\">"
+            + "<datafield tag=\"003@\"><subfield code=\"0\">" + ppn + "</subfield></datafield>"
+            + "</record></zs:recordData></zs:record>";
+    }
+
+    @Test
+    public void splitRecords() throws Exception {
+        Document response = new SAXBuilder().build(new StringReader(RESPONSE));
+
+        List<Document> records = SRUCatalogClient.splitRecords(response);
+
+        Assert.assertEquals(2, records.size());
+        Assert.assertEquals("record", records.get(0).getRootElement().getName());
+        Assert.assertEquals(IIIFMapImporter.PICA_NAMESPACE, records.get(0).getRootElement().getNamespace());
+        Assert.assertEquals("100619533", SRUCatalogClient.getPPN(records.get(0)));
+        Assert.assertEquals("10061954X", SRUCatalogClient.getPPN(records.get(1)));
+    }
+
+    @Test
+    public void compareWithStoredUnAPIRecord() throws Exception {
+        PicaRecordStore store = new PicaRecordStore(folder.getRoot().toPath());
+        // the unAPI indents its records and declares more namespaces
+        store.put("ikar", "100619533", ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<pica:record xmlns:pica=\"info:srw/schema/5/picaXML-v1.0\" "
+            + "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n"
+            + "  <pica:datafield tag=\"003@\">\n    <pica:subfield code=\"0\">100619533</pica:subfield>\n"
+            + "  </pica:datafield>\n</pica:record>\n").getBytes(StandardCharsets.UTF_8));
+        List<Document> records = SRUCatalogClient.splitRecords(new SAXBuilder().build(new StringReader(RESPONSE)));
+
+        Assert.assertTrue(store.containsEqual("ikar", "100619533", records.get(0)));
+        records.get(0).getRootElement().getChildren().get(0).getChildren().get(0).setText("100619534");
+        Assert.assertFalse(store.containsEqual("ikar", "100619533", records.get(0)));
+    }
+
+    @Test
+    public void getURL() {
+        String url = SRUCatalogClient.getURL("ikar", List.of("100619533", "10061954X"));
+
+        Assert.assertEquals("https://sru.k10plus.de/ikar?version=1.1&operation=searchRetrieve&recordSchema=picaxml"
+            + "&maximumRecords=2&query=pica.ppn%3D100619533+or+pica.ppn%3D10061954X", url);
+    }
+}
@@ -0,0 +1,63 @@
+package de.vzg.kartenspeicher;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mycore.common.MCRException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+    @Test
+    public void concurrentCallsShareOneTask() throws Exception {
+        SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            results.add(executor.submit(() -> singleFlight.run("ikar:ppn:1", () -> {
+                started.countDown();
+                release.await();
+                return runs.incrementAndGet();
+            })));
+            started.await();
+            for (int i = 0; i < 3; i++) {
+                results.add(executor.submit(() -> singleFlight.run("ikar:ppn:1", runs::incrementAndGet)));
+            }
+            // give the waiting calls time to join the running task
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<Integer> result : results) {
+                Assert.assertEquals("all calls should get the result of the first task", 1,
+                    result.get(5, TimeUnit.SECONDS).intValue());
+            }
+            Assert.assertEquals(1, runs.get());
+            Assert.assertEquals("the key should be released", 0, singleFlight.size());
+            Assert.assertEquals(2, singleFlight.run("ikar:ppn:1", runs::incrementAndGet).intValue());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = MCRException.class)
+    public void recursiveCallFails() throws Exception {
+        SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+        singleFlight.run("ikar:ppn:1", () -> singleFlight.run("ikar:ppn:1", () -> 1));
+    }
+
+    @Test
+    public void runByCurrentThread() throws Exception {
+        SingleFlight<String, Boolean> singleFlight = new SingleFlight<>();
+        Assert.assertTrue(singleFlight.run("ikar:ppn:1", () -> singleFlight.isRunByCurrentThread("ikar:ppn:1")));
+        Assert.assertFalse(singleFlight.isRunByCurrentThread("ikar:ppn:1"));
+    }
+}
@@ -0,0 +1,90 @@
+package de.vzg.kartenspeicher;
+
+import de.digitalcollections.iiif.model.image.ImageApiProfile;
+import de.digitalcollections.iiif.model.image.ImageService;
+import de.digitalcollections.iiif.model.image.TileInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class TilePlannerTest {
+
+    private static final String SERVICE_ID = "https://iiif.example.org/image";
+
+    private static ImageService createService(int width, int height, ImageApiProfile... profiles) {
+        ImageService service = new ImageService(SERVICE_ID);
+        for (ImageApiProfile profile : profiles) {
+            service.addProfile(profile);
+        }
+        service.setWidth(width);
+        service.setHeight(height);
+        return service;
+    }
+
+    private static TileInfo createTileInfo(int width, int height) {
+        TileInfo tileInfo = new TileInfo(width);
+        tileInfo.setHeight(height);
+        tileInfo.addScaleFactor(1, 2, 4);
+        return tileInfo;
+    }
+
+    @Test
+    public void testWholeImageInOneRequest() {
+        TilePlanner planner = new TilePlanner(SERVICE_ID, createService(1000, 700, ImageApiProfile.LEVEL_ONE),
+            createTileInfo(256, 256), Long.MAX_VALUE);
+
+        TilePlanner.Plan plan = planner.plan(1);
+        Assert.assertEquals(1, plan.getTiles().size());
+        Assert.assertEquals(SERVICE_ID + "/full/full/0/default.jpg", plan.getTiles().get(0).getUrl());
+        Assert.assertEquals(700, plan.getRowHeight());
+
+        IIIFTileFetcher.Tile scaled = planner.plan(2).getTiles().get(0);
+        Assert.assertEquals("full", scaled.getRegion());
+        Assert.assertEquals("500,", scaled.getSize());
+    }
+
+    @Test
+    public void testLevelZeroRequestsTiles() {
+        TilePlanner planner = new TilePlanner(SERVICE_ID, createService(1000, 700, ImageApiProfile.LEVEL_ZERO),
+            createTileInfo(256, 256), Long.MAX_VALUE);
+
+        TilePlanner.Plan plan = planner.plan(1);
+        Assert.assertEquals(4 * 3, plan.getTiles().size());
+        Assert.assertEquals(256, plan.getRowHeight());
+        Assert.assertEquals("768,512,232,188", plan.getTiles().get(11).getRegion());
+    }
+
+    @Test
+    public void testProfileLimits() {
+        ImageApiProfile limits = new ImageApiProfile();
+        limits.setMaxWidth(600);
+        limits.setMaxArea(600L * 600L);
+        TilePlanner planner = new TilePlanner(SERVICE_ID,
+            createService(1000, 700, ImageApiProfile.LEVEL_ONE, limits), createTileInfo(256, 256), Long.MAX_VALUE);
+
+        // regions of 2 x 2 tiles, 512 x 512 pixels
+        List<IIIFTileFetcher.Tile> tiles = planner.plan(1).getTiles();
+        Assert.assertEquals(4, tiles.size());
+        Assert.assertEquals("0,0,512,512", tiles.get(0).getRegion());
+        Assert.assertEquals("512,0,488,512", tiles.get(1).getRegion());
+        Assert.assertEquals("0,512,512,188", tiles.get(2).getRegion());
+        for (IIIFTileFetcher.Tile tile : tiles) {
+            Assert.assertTrue(tile.getWidth() <= 600 && tile.getHeight() <= 600);
+        }
+    }
+
+    @Test
+    public void testNonSquareTiles() {
+        TilePlanner planner = new TilePlanner(SERVICE_ID, createService(1000, 700, ImageApiProfile.LEVEL_ZERO),
+            createTileInfo(512, 256), Long.MAX_VALUE);
+
+        List<IIIFTileFetcher.Tile> tiles = planner.plan(2).getTiles();
+        Assert.assertEquals(2, tiles.size());
+        Assert.assertEquals("0,0,1000,512", tiles.get(0).getRegion());
+        Assert.assertEquals("0,512,1000,188", tiles.get(1).getRegion());
+        Assert.assertEquals(256, tiles.get(1).getY());
+        Assert.assertEquals("500,", tiles.get(1).getSize());
+        Assert.assertEquals(94, tiles.get(1).getHeight());
+    }
+}